@@ -0,0 +1,35 @@
+package imageProcessing.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler attached, so every result reports
+ * throughput and allocation rate. Any JMH command line option may be given, e.g.
+ *
+ *     mvn -B package
+ *     java -jar benchmarks/target/benchmarks.jar Scaling -p threads=1,8,32
+ *
+ * from the repository root, or with -Dimages.dir=... from elsewhere. The forks load
+ * the SIMD kernels; add -jvmArgsPrepend -DimageProcessing.simd=false to measure the
+ * scalar ones.
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+		if (cmd.getIncludes().isEmpty())
+			options.include("imageProcessing.benchmarks.*");
+		options.addProfiler(GCProfiler.class);
+		String imagesDir = System.getProperty("images.dir");
+		if (imagesDir != null)
+			options.jvmArgsPrepend("-Dimages.dir=" + imagesDir);
+		new Runner(options.build()).run();
+	}
+}
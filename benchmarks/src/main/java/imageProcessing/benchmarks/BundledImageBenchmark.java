@@ -0,0 +1,27 @@
+package imageProcessing.benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import imageProcessing.FilterEngine;
+
+/**
+ * Every filter on the images shipped in imageFiltering/images, in the type ImageIO
+ * decodes them to.
+ */
+@State(Scope.Benchmark)
+public class BundledImageBenchmark extends FilterBenchmark {
+
+	@Param({"queen-mary.png", "lena.jpg", "bw1.jpg", "sunriseIsland.jpg"})
+	public String file;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		prepare(new FilterEngine(), Images.bundled(file));
+	}
+}
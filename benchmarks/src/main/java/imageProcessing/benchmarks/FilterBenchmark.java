@@ -0,0 +1,120 @@
+package imageProcessing.benchmarks;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import imageProcessing.BorderMode;
+import imageProcessing.ConvolutionKernel;
+import imageProcessing.FilterEngine;
+
+/**
+ * One benchmark per Picture filter, run through the headless FilterEngine, plus
+ * the convolutions. Subclasses choose the input images and the engine.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g", "--add-modules=jdk.incubator.vector"})
+public abstract class FilterBenchmark {
+	private static final Color BORDER = new Color(55, 55, 55);
+	private static final ConvolutionKernel GAUSSIAN = ConvolutionKernel.gaussian(1.5);
+	private static final ConvolutionKernel SHARPEN = ConvolutionKernel.sharpen();
+
+	protected FilterEngine engine;
+	protected BufferedImage image;
+	protected int[] histogram;
+
+	/**
+	 * Sets the input and precomputes the histogram used by equalize and Sobel.
+	 */
+	protected void prepare(FilterEngine engine, BufferedImage image) {
+		this.engine = engine;
+		this.image = image;
+		this.histogram = engine.histogram(image);
+	}
+
+	@Benchmark
+	public BufferedImage grayscale() {
+		return engine.grayscale(image);
+	}
+
+	@Benchmark
+	public BufferedImage grayscaleLuminance() {
+		return engine.grayscaleLuminance(image);
+	}
+
+	@Benchmark
+	public int[] setHistogram() {
+		return engine.histogram(image);
+	}
+
+	@Benchmark
+	public BufferedImage histogramEqualize() {
+		return engine.histogramEqualize(image, histogram);
+	}
+
+	@Benchmark
+	public BufferedImage adaptiveEqualize() {
+		return engine.adaptiveEqualize(image, 8, 2.0);
+	}
+
+	@Benchmark
+	public BufferedImage adaptiveThreshold() {
+		return engine.adaptiveThreshold(image, 15, 0.2);
+	}
+
+	@Benchmark
+	public BufferedImage sobelEdgeDetect() {
+		return engine.sobelEdgeDetect(image, histogram);
+	}
+
+	@Benchmark
+	public BufferedImage scale() {
+		return engine.scale(image, image.getWidth() - 40, image.getHeight() - 40);
+	}
+
+	@Benchmark
+	public BufferedImage scaleTenth() {
+		return engine.scale(image, image.getWidth() / 10, image.getHeight() / 10);
+	}
+
+	@Benchmark
+	public BufferedImage frame() {
+		return engine.scaleAndMove(image, image.getWidth() - 40, image.getHeight() - 40, 20, 20);
+	}
+
+	@Benchmark
+	public BufferedImage moveImage() {
+		return engine.moveImage(image, 20, 20);
+	}
+
+	@Benchmark
+	public BufferedImage border() {
+		return engine.border(image, 10, BORDER);
+	}
+
+	@Benchmark
+	public BufferedImage gaussianBlur() {
+		return engine.convolve(image, GAUSSIAN, BorderMode.CLAMP);
+	}
+
+	@Benchmark
+	public BufferedImage sharpen() {
+		return engine.convolve(image, SHARPEN, BorderMode.CLAMP);
+	}
+
+	@Benchmark
+	public BufferedImage boxBlur() {
+		return engine.boxBlur(image, 8, BorderMode.CLAMP);
+	}
+}
@@ -0,0 +1,62 @@
+package imageProcessing.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Benchmark inputs.
+ */
+final class Images {
+	/** Directory of the bundled images, relative to the repository root by default. */
+	static final String IMAGES_DIR = System.getProperty("images.dir", "imageFiltering/images");
+
+	private Images() {
+	}
+
+	static int type(String name) {
+		switch (name) {
+		case "INT_ARGB":
+			return BufferedImage.TYPE_INT_ARGB;
+		case "BYTE_GRAY":
+			return BufferedImage.TYPE_BYTE_GRAY;
+		default:
+			throw new IllegalArgumentException("unknown image type " + name);
+		}
+	}
+
+	/**
+	 * A 4:3 image of roughly the given size with smooth gradients plus noise, so
+	 * histograms are spread out and edges exist everywhere. The content is the
+	 * same on every run.
+	 */
+	static BufferedImage synthetic(int megapixels, int type) {
+		int height = (int) Math.sqrt(megapixels * 1_000_000 * 3.0 / 4);
+		int width = megapixels * 1_000_000 / height;
+		BufferedImage image = new BufferedImage(width, height, type);
+		Random random = new Random(42);
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int noise = random.nextInt(64);
+				int r = (x * 191 / width + noise) & 0xFF;
+				int g = (y * 191 / height + noise) & 0xFF;
+				int b = ((x + y) * 95 / (width + height) + noise * 2) & 0xFF;
+				row[x] = 0xFF000000 | r << 16 | g << 8 | b;
+			}
+			image.setRGB(0, y, width, 1, row, 0, width);
+		}
+		return image;
+	}
+
+	static BufferedImage bundled(String name) throws IOException {
+		File file = new File(IMAGES_DIR, name);
+		BufferedImage image = ImageIO.read(file);
+		if (image == null)
+			throw new IOException("cannot decode " + file.getAbsolutePath());
+		return image;
+	}
+}
@@ -0,0 +1,66 @@
+package imageProcessing.benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import imageProcessing.FilterEngine;
+
+/**
+ * The parallel filters on a 12 megapixel image with an engine of 1 to 32 workers,
+ * to show how throughput scales with the thread count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g", "--add-modules=jdk.incubator.vector"})
+public class ScalingBenchmark {
+
+	@Param({"1", "2", "4", "8", "16", "32"})
+	public int threads;
+
+	private FilterEngine engine;
+	private BufferedImage image;
+	private int[] histogram;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		engine = new FilterEngine(threads);
+		image = Images.synthetic(12, BufferedImage.TYPE_INT_ARGB);
+		histogram = engine.histogram(image);
+	}
+
+	@Benchmark
+	public BufferedImage grayscaleLuminance() {
+		return engine.grayscaleLuminance(image);
+	}
+
+	@Benchmark
+	public int[] setHistogram() {
+		return engine.histogram(image);
+	}
+
+	@Benchmark
+	public BufferedImage histogramEqualize() {
+		return engine.histogramEqualize(image, histogram);
+	}
+
+	@Benchmark
+	public BufferedImage sobelEdgeDetect() {
+		return engine.sobelEdgeDetect(image, histogram);
+	}
+}
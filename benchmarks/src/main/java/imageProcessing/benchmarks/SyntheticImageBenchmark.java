@@ -0,0 +1,27 @@
+package imageProcessing.benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import imageProcessing.FilterEngine;
+
+/**
+ * Every filter on synthetic 1, 12 and 50 megapixel images of both pixel layouts.
+ */
+@State(Scope.Benchmark)
+public class SyntheticImageBenchmark extends FilterBenchmark {
+
+	@Param({"1", "12", "50"})
+	public int megapixels;
+
+	@Param({"INT_ARGB", "BYTE_GRAY"})
+	public String type;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		prepare(new FilterEngine(), Images.synthetic(megapixels, Images.type(type)));
+	}
+}
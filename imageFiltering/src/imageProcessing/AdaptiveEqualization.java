@@ -0,0 +1,182 @@
+package imageProcessing;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Contrast-limited adaptive histogram equalization (CLAHE). The image is cut into
+ * a grid of tiles and each tile gets its own equalization table, built from the
+ * luma histogram of the tile after clipping: counts above the clip limit are
+ * spread evenly over all levels, which bounds how much contrast a nearly uniform
+ * region can gain. Every pixel is then mapped through the tables of the four
+ * tiles whose centers surround it, interpolated bilinearly, so there are no
+ * seams at tile edges.
+ *
+ * Each pixel is counted into exactly one tile histogram and looked up in four
+ * tables, so the cost is linear in the number of pixels, independent of the tile
+ * size. Tile rows are counted in parallel and the mapping runs in row bands, see
+ * {@link BandScheduler}.
+ */
+public class AdaptiveEqualization {
+	/** Bits of the fixed-point interpolation weights. */
+	private static final int WEIGHT_BITS = 8;
+	private static final int ONE = 1 << WEIGHT_BITS;
+
+	private final BandScheduler scheduler;
+	private final PixelKernels kernels = PixelKernels.get();
+
+	/**
+	 * @param scheduler runs the tile rows and the row bands
+	 */
+	public AdaptiveEqualization(BandScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Writes the equalized gray levels of src to dst.
+	 *
+	 * @param src       the source image
+	 * @param dst       receives the gray levels, the same size as src
+	 * @param tiles     the number of tiles along each side, at most one per pixel is used
+	 * @param clipLimit the highest count a histogram level may keep, as a multiple of
+	 *                  the average count per level; 0 or less for no limit
+	 * @param weights   reduce colors to luma
+	 */
+	public void equalize(BufferedImage src, BufferedImage dst, int tiles, double clipLimit, LumaWeights weights) {
+		if (tiles < 1)
+			throw new IllegalArgumentException("tiles must be positive: " + tiles);
+		int w = src.getWidth();
+		int h = src.getHeight();
+		if (w == 0 || h == 0)
+			return;
+		int tx = Math.min(tiles, w);
+		int ty = Math.min(tiles, h);
+		int[] xs = bounds(w, tx);
+		int[] ys = bounds(h, ty);
+		PixelAccess in = PixelAccess.of(src);
+		int[][] luts = new int[tx * ty][];
+
+		// one histogram per tile; a tile row is sized as one row of its pixels
+		scheduler.forEach(w * ys[1], ty, (r0, r1) -> {
+			int[] row = new int[w];
+			for (int r = r0; r < r1; r++) {
+				int[][] hist = new int[tx][256];
+				for (int y = ys[r]; y < ys[r + 1]; y++) {
+					in.getPixels(0, y, w, row, 0);
+					kernels.luma(weights, row, 0, row, 0, w);
+					for (int c = 0; c < tx; c++) {
+						int[] hc = hist[c];
+						for (int x = xs[c]; x < xs[c + 1]; x++)
+							hc[row[x]]++;
+					}
+				}
+				for (int c = 0; c < tx; c++) {
+					int n = (xs[c + 1] - xs[c]) * (ys[r + 1] - ys[r]);
+					luts[r * tx + c] = lut(hist[c], n, clipLimit);
+				}
+			}
+		});
+
+		// each pixel between the centers of tiles k and k + 1 mixes their tables
+		int[] col = new int[w];
+		int[] colWeight = new int[w];
+		interpolation(xs, col, colWeight);
+		int[] rowTile = new int[h];
+		int[] rowWeight = new int[h];
+		interpolation(ys, rowTile, rowWeight);
+		PixelAccess out = PixelAccess.of(dst);
+		scheduler.forEach(w, h, (y0, y1) -> {
+			int[] row = new int[w];
+			for (int y = y0; y < y1; y++) {
+				in.getPixels(0, y, w, row, 0);
+				kernels.luma(weights, row, 0, row, 0, w);
+				int r0 = rowTile[y];
+				int r1 = Math.min(r0 + 1, ty - 1);
+				int wy = rowWeight[y];
+				int x = 0;
+				while (x < w) {
+					int c0 = col[x];
+					int c1 = Math.min(c0 + 1, tx - 1);
+					int[] a = luts[r0 * tx + c0], b = luts[r0 * tx + c1];
+					int[] c = luts[r1 * tx + c0], d = luts[r1 * tx + c1];
+					for (; x < w && col[x] == c0; x++) {
+						int l = row[x];
+						int wx = colWeight[x];
+						int top = a[l] * (ONE - wx) + b[l] * wx;
+						int bottom = c[l] * (ONE - wx) + d[l] * wx;
+						row[x] = (top * (ONE - wy) + bottom * wy + (1 << 2 * WEIGHT_BITS - 1)) >> 2 * WEIGHT_BITS;
+					}
+				}
+				out.setGrayPixels(0, y, w, row, 0);
+			}
+		});
+	}
+
+	/**
+	 * Tile edges: tile k covers k * size / count up to (k + 1) * size / count.
+	 */
+	private static int[] bounds(int size, int count) {
+		int[] b = new int[count + 1];
+		for (int k = 0; k <= count; k++)
+			b[k] = (int) ((long) k * size / count);
+		return b;
+	}
+
+	/**
+	 * For every position i, the tile k whose center is at or before i (0 before the
+	 * first center) and the weight of tile k + 1, in 1/ONE, at i.
+	 */
+	private static void interpolation(int[] bounds, int[] tile, int[] weight) {
+		int count = bounds.length - 1;
+		int k = 0;
+		for (int i = 0; i < tile.length; i++) {
+			while (k + 1 < count && center(bounds, k + 1) <= i)
+				k++;
+			double c0 = center(bounds, k);
+			if (k + 1 >= count || i <= c0) {
+				tile[i] = k;
+				weight[i] = 0;
+			} else {
+				double c1 = center(bounds, k + 1);
+				tile[i] = k;
+				weight[i] = (int) Math.round(ONE * (i - c0) / (c1 - c0));
+			}
+		}
+	}
+
+	private static double center(int[] bounds, int k) {
+		return (bounds[k] + bounds[k + 1] - 1) / 2.0;
+	}
+
+	/**
+	 * The equalization table of one tile: the histogram is clipped, the clipped
+	 * counts are spread over all levels, and the table is the scaled cumulative sum.
+	 */
+	static int[] lut(int[] hist, int n, double clipLimit) {
+		if (clipLimit > 0) {
+			int limit = (int) Math.max(1, clipLimit * n / 256);
+			int clipped = 0;
+			for (int i = 0; i < 256; i++) {
+				if (hist[i] > limit) {
+					clipped += hist[i] - limit;
+					hist[i] = limit;
+				}
+			}
+			int spread = clipped / 256;
+			int residual = clipped - spread * 256;
+			for (int i = 0; i < 256; i++)
+				hist[i] += spread;
+			if (residual > 0) {
+				int step = Math.max(1, 256 / residual);
+				for (int i = 0; i < 256 && residual > 0; i += step, residual--)
+					hist[i]++;
+			}
+		}
+		int[] lut = new int[256];
+		long sum = 0;
+		for (int i = 0; i < 256; i++) {
+			sum += hist[i];
+			lut[i] = (int) (255 * sum / n);
+		}
+		return lut;
+	}
+}
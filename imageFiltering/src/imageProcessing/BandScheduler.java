@@ -0,0 +1,288 @@
+package imageProcessing;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BinaryOperator;
+
+/**
+ * Splits an image into horizontal bands of whole rows and processes them on a
+ * fork-join pool. Bands are sized so that one band of 32-bit pixels fits in a
+ * typical per-core L2 cache, and rows are always visited in memory order.
+ * Neighborhood filters read their halo rows straight from the source image, so
+ * bands never have to be stitched back together.
+ *
+ * A scheduler made by {@link #monitored} reports the rows done to a
+ * {@link Monitor} and stops at the next band once the monitor is cancelled.
+ */
+public class BandScheduler {
+	/** Target size of one band in bytes. */
+	private static final int BAND_BYTES = 256 * 1024;
+
+	private final ForkJoinPool pool;
+	private final Monitor monitor;
+
+	/**
+	 * Work done on one band.
+	 */
+	public interface Band {
+		/**
+		 * Processes rows y0 (inclusive) to y1 (exclusive).
+		 */
+		void run(int y0, int y1);
+	}
+
+	/**
+	 * Work done on one band that produces a partial result.
+	 */
+	public interface BandFunction<T> {
+		/**
+		 * Processes rows y0 (inclusive) to y1 (exclusive).
+		 *
+		 * @return the partial result for those rows
+		 */
+		T apply(int y0, int y1);
+	}
+
+	/**
+	 * Watches the bands of a long-running filter.
+	 */
+	public interface Monitor {
+		/**
+		 * Called after each band, from the thread that ran it.
+		 *
+		 * @param rowsDone the rows of the current pass finished so far
+		 * @param rows     the rows of the current pass
+		 */
+		void progress(int rowsDone, int rows);
+
+		/**
+		 * Whether the work should stop. Checked before each band.
+		 */
+		boolean isCancelled();
+	}
+
+	/**
+	 * Creates a scheduler on the common fork-join pool.
+	 */
+	public BandScheduler() {
+		this(ForkJoinPool.commonPool(), null);
+	}
+
+	private BandScheduler(ForkJoinPool pool, Monitor monitor) {
+		this.pool = pool;
+		this.monitor = monitor;
+	}
+
+	/**
+	 * Creates a scheduler with its own pool.
+	 *
+	 * @param parallelism the number of worker threads, 1 runs every band on the caller
+	 */
+	public BandScheduler(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		pool = parallelism == 1 ? null : new ForkJoinPool(parallelism);
+		monitor = null;
+	}
+
+	/**
+	 * A scheduler on the same pool that reports to monitor. Bands started after
+	 * the monitor is cancelled throw a CancellationException out of forEach and
+	 * reduce instead of running.
+	 *
+	 * @param monitor receives the progress of every pass
+	 * @return the monitored scheduler
+	 */
+	public BandScheduler monitored(Monitor monitor) {
+		return new BandScheduler(pool, monitor);
+	}
+
+	public int getParallelism() {
+		return pool == null ? 1 : pool.getParallelism();
+	}
+
+	/**
+	 * Number of rows per band for an image of the given width.
+	 *
+	 * @param width  the image width in pixels
+	 * @param height the image height in pixels
+	 * @return rows per band, at least 1
+	 */
+	public int bandRows(int width, int height) {
+		int rows = Math.max(1, BAND_BYTES / (Math.max(1, width) * 4));
+		// keep at least a few bands per worker so uneven bands balance out
+		int minBands = getParallelism() * 4;
+		if (height / rows < minBands)
+			rows = Math.max(1, height / minBands);
+		return rows;
+	}
+
+	/**
+	 * Runs band over rows 0 to height - 1 and waits for all bands to finish.
+	 *
+	 * @param width  the image width, used to size the bands
+	 * @param height the number of rows
+	 * @param band   the work for one band
+	 */
+	public void forEach(int width, int height, Band band) {
+		forEach(width, height, 1, band);
+	}
+
+	/**
+	 * Like {@link #forEach(int, int, Band)}, with bands of at least minRows rows, for
+	 * filters that read so many halo rows that small bands would mostly read halo.
+	 *
+	 * @param width   the image width, used to size the bands
+	 * @param height  the number of rows
+	 * @param minRows the smallest band worth running
+	 * @param band    the work for one band
+	 */
+	public void forEach(int width, int height, int minRows, Band band) {
+		if (height <= 0)
+			return;
+		int rows = Math.max(minRows, bandRows(width, height));
+		band = charged(watched(band, height));
+		if (pool == null || height <= rows)
+			band.run(0, height);
+		else
+			pool.invoke(new BandTask(band, 0, height, rows));
+	}
+
+	/**
+	 * Runs band over rows 0 to height - 1 and combines the partial results. Every band
+	 * works on its own partial, so nothing is shared between workers until merge.
+	 *
+	 * @param width  the image width, used to size the bands
+	 * @param height the number of rows, must be positive
+	 * @param band   produces the partial result for one band
+	 * @param merge  combines two partial results, may return either argument
+	 * @return the merged result
+	 */
+	public <T> T reduce(int width, int height, BandFunction<T> band, BinaryOperator<T> merge) {
+		int rows = bandRows(width, height);
+		if (monitor != null) {
+			BandFunction<T> unwatched = band;
+			AtomicInteger done = new AtomicInteger();
+			band = (y0, y1) -> {
+				checkCancelled();
+				T partial = unwatched.apply(y0, y1);
+				monitor.progress(done.addAndGet(y1 - y0), height);
+				return partial;
+			};
+		}
+		FilterMetrics.Timer timer = FilterMetrics.current();
+		if (timer != null) {
+			BandFunction<T> uncharged = band;
+			band = (y0, y1) -> {
+				if (timer.isOwnThread())
+					return uncharged.apply(y0, y1);
+				long before = FilterMetrics.allocatedBytes();
+				try {
+					return uncharged.apply(y0, y1);
+				} finally {
+					timer.charge(FilterMetrics.allocatedBytes() - before);
+				}
+			};
+		}
+		if (pool == null || height <= rows)
+			return band.apply(0, height);
+		return pool.invoke(new ReduceTask<T>(band, merge, 0, height, rows));
+	}
+
+	/**
+	 * band, reporting to the monitor if there is one.
+	 */
+	private Band watched(Band band, int height) {
+		if (monitor == null)
+			return band;
+		AtomicInteger done = new AtomicInteger();
+		return (y0, y1) -> {
+			checkCancelled();
+			band.run(y0, y1);
+			monitor.progress(done.addAndGet(y1 - y0), height);
+		};
+	}
+
+	/**
+	 * band, charging what it allocates on pool threads to the {@link FilterMetrics}
+	 * timer open on the calling thread, if there is one.
+	 */
+	private static Band charged(Band band) {
+		FilterMetrics.Timer timer = FilterMetrics.current();
+		if (timer == null)
+			return band;
+		return (y0, y1) -> {
+			if (timer.isOwnThread()) {
+				band.run(y0, y1);
+				return;
+			}
+			long before = FilterMetrics.allocatedBytes();
+			try {
+				band.run(y0, y1);
+			} finally {
+				timer.charge(FilterMetrics.allocatedBytes() - before);
+			}
+		};
+	}
+
+	private void checkCancelled() {
+		if (monitor.isCancelled())
+			throw new CancellationException();
+	}
+
+	private static final class ReduceTask<T> extends RecursiveTask<T> {
+		private static final long serialVersionUID = 1L;
+		private final BandFunction<T> band;
+		private final BinaryOperator<T> merge;
+		private final int y0;
+		private final int y1;
+		private final int rows;
+
+		ReduceTask(BandFunction<T> band, BinaryOperator<T> merge, int y0, int y1, int rows) {
+			this.band = band;
+			this.merge = merge;
+			this.y0 = y0;
+			this.y1 = y1;
+			this.rows = rows;
+		}
+
+		@Override
+		protected T compute() {
+			if (y1 - y0 <= rows)
+				return band.apply(y0, y1);
+			int mid = y0 + (y1 - y0) / 2;
+			ReduceTask<T> top = new ReduceTask<T>(band, merge, y0, mid, rows);
+			top.fork();
+			T bottom = new ReduceTask<T>(band, merge, mid, y1, rows).compute();
+			return merge.apply(top.join(), bottom);
+		}
+	}
+
+	private static final class BandTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Band band;
+		private final int y0;
+		private final int y1;
+		private final int rows;
+
+		BandTask(Band band, int y0, int y1, int rows) {
+			this.band = band;
+			this.y0 = y0;
+			this.y1 = y1;
+			this.rows = rows;
+		}
+
+		@Override
+		protected void compute() {
+			if (y1 - y0 <= rows) {
+				band.run(y0, y1);
+				return;
+			}
+			int mid = y0 + (y1 - y0) / 2;
+			invokeAll(new BandTask(band, y0, mid, rows), new BandTask(band, mid, y1, rows));
+		}
+	}
+}
@@ -0,0 +1,402 @@
+package imageProcessing;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Headless command line tool that runs a filter chain over many images.
+ *
+ * <pre>
+ * java -cp image-filtering.jar imageProcessing.BatchProcessor
+ *     [-f luminance,equalize,sobel] [-o out] [-t png[,jpg...]] [-j threads] [-q inFlight]
+ *     [-l bt601|bt709] [-z pngLevel] [-Q jpegQuality] [-a store] input...
+ * </pre>
+ *
+ * Inputs are files, directories (their image files) or glob patterns such as
+ * "scans/**.jpg". Decoding runs on an I/O executor (virtual threads when the JVM
+ * has them), filters run on a fixed pool of CPU threads, and at most inFlight
+ * images are between decode and encode at any time, so memory stays flat no
+ * matter how many inputs there are. Decodes go through an {@link ImageLoader},
+ * which also caps them at threads at a time and at a quarter of the heap, and
+ * each result is written in all its formats at once by an {@link ImageEncoder}.
+ *
+ * With -a the results are not written; their histograms and summaries are added
+ * to a {@link HistogramStore} instead, and the filters default to none, so the
+ * store describes the images as decoded.
+ */
+public class BatchProcessor {
+	private final FilterEngine engine;
+	private final FilterChain chain;
+	private final File outputDir;
+	private final String[] formats;
+	private final int threads;
+	private final int inFlight;
+	private final ImageLoader loader;
+	private final ImageEncoder encoder;
+
+	private final AtomicInteger images = new AtomicInteger();
+	private final AtomicInteger failures = new AtomicInteger();
+	private final AtomicLong pixels = new AtomicLong();
+
+	/**
+	 * @param filters   comma separated filter names, see {@link FilterChain}
+	 * @param outputDir where results are written, created if missing
+	 * @param format    ImageIO format names of the results, comma separated
+	 * @param threads   number of images filtered at the same time
+	 * @param inFlight  number of images decoded but not yet written
+	 */
+	public BatchProcessor(String filters, File outputDir, String format, int threads, int inFlight) {
+		this(filters, outputDir, format, threads, inFlight, LumaWeights.BT601);
+	}
+
+	/**
+	 * @param filters   comma separated filter names, see {@link FilterChain}
+	 * @param outputDir where results are written, created if missing
+	 * @param format    ImageIO format names of the results, comma separated
+	 * @param threads   number of images filtered at the same time
+	 * @param inFlight  number of images decoded but not yet written
+	 * @param weights   reduce colors to luma
+	 */
+	public BatchProcessor(String filters, File outputDir, String format, int threads, int inFlight,
+			LumaWeights weights) {
+		this(filters, outputDir, format, threads, inFlight, weights, new ImageEncoder(Math.max(1, threads)));
+	}
+
+	/**
+	 * @param filters   comma separated filter names, see {@link FilterChain}
+	 * @param outputDir where results are written, created if missing
+	 * @param format    ImageIO format names of the results, comma separated
+	 * @param threads   number of images filtered at the same time
+	 * @param inFlight  number of images decoded but not yet written
+	 * @param weights   reduce colors to luma
+	 * @param encoder   writes the results, with its compression settings
+	 */
+	public BatchProcessor(String filters, File outputDir, String format, int threads, int inFlight,
+			LumaWeights weights, ImageEncoder encoder) {
+		if (threads < 1 || inFlight < 1)
+			throw new IllegalArgumentException("threads and inFlight must be positive");
+		String[] formats = format.split(",");
+		for (String f : formats)
+			if (!ImageEncoder.canWrite(f))
+				throw new IllegalArgumentException("no writer for format " + f);
+		// images are processed side by side, so each one is filtered single-threaded
+		this.engine = new FilterEngine(1).withLumaWeights(weights);
+		this.chain = FilterChain.parse(filters, engine);
+		this.outputDir = outputDir;
+		this.formats = formats;
+		this.threads = threads;
+		this.inFlight = inFlight;
+		this.loader = new ImageLoader(threads, Runtime.getRuntime().maxMemory() / 4);
+		this.encoder = encoder;
+	}
+
+	/**
+	 * Processes every input and prints a summary line. Each result keeps its path
+	 * relative to the deepest directory holding all inputs, so files of the same
+	 * name from different directories get different outputs. Inputs that would
+	 * still share an output with an earlier one, such as x.jpg and x.png, fail
+	 * without being decoded.
+	 *
+	 * @param inputs the image files
+	 * @return the number of images that failed
+	 * @throws InterruptedException if interrupted while waiting for a free slot
+	 */
+	public int run(List<File> inputs) throws InterruptedException {
+		outputDir.mkdirs();
+		Map<File, Path> bases = outputBases(inputs);
+		Map<Path, File> claimed = new HashMap<Path, File>();
+		List<File> unique = new ArrayList<File>();
+		for (File input : inputs) {
+			File first = claimed.putIfAbsent(bases.get(input), input);
+			if (first == null) {
+				unique.add(input);
+			} else {
+				failures.incrementAndGet();
+				System.err.println(input + ": same output as " + first);
+			}
+		}
+		return run(unique, (img, input) -> encode(img, bases.get(input)));
+	}
+
+	/**
+	 * The output path of each input without its suffix, relative to the deepest
+	 * directory holding all inputs.
+	 */
+	private Map<File, Path> outputBases(List<File> inputs) {
+		Path root = null;
+		for (File input : inputs) {
+			Path dir = input.getAbsoluteFile().toPath().normalize().getParent();
+			if (root == null)
+				root = dir;
+			while (!dir.startsWith(root))
+				root = root.getParent();
+		}
+		Map<File, Path> bases = new HashMap<File, Path>();
+		for (File input : inputs) {
+			Path relative = root.relativize(input.getAbsoluteFile().toPath().normalize());
+			String name = relative.getFileName().toString();
+			int dot = name.lastIndexOf('.');
+			bases.put(input, outputDir.toPath().resolve(relative).resolveSibling(dot < 0 ? name : name.substring(0, dot)));
+		}
+		return bases;
+	}
+
+	/**
+	 * Adds the histograms of every filtered input to a store instead of writing
+	 * the images, and prints a summary line. The store is flushed but not closed.
+	 *
+	 * @param inputs the image files
+	 * @param store  receives the histograms, named by input path
+	 * @return the number of images that failed
+	 * @throws InterruptedException if interrupted while waiting for a free slot
+	 * @throws IOException          if the store cannot be written
+	 */
+	public int analyze(List<File> inputs, HistogramStore store) throws InterruptedException, IOException {
+		int failed = run(inputs, (img, input) -> {
+			try {
+				store.add(input.getPath(), engine.histograms(img));
+			} catch (IOException ex) {
+				return CompletableFuture.failedFuture(ex);
+			}
+			count(img);
+			return CompletableFuture.completedFuture(null);
+		});
+		store.flush();
+		return failed;
+	}
+
+	/**
+	 * Decodes and filters every input and hands the result to finish.
+	 */
+	private int run(List<File> inputs, BiFunction<BufferedImage, File, CompletableFuture<Void>> finish)
+			throws InterruptedException {
+		ExecutorService io = ioExecutor();
+		ExecutorService cpu = Executors.newFixedThreadPool(threads);
+		Semaphore slots = new Semaphore(inFlight);
+		List<CompletableFuture<Void>> jobs = new ArrayList<CompletableFuture<Void>>();
+		long start = System.nanoTime();
+		try {
+			for (File input : inputs) {
+				slots.acquire();
+				CompletableFuture<Void> job = CompletableFuture.supplyAsync(() -> decode(input), io)
+						.thenApplyAsync(chain::apply, cpu)
+						.thenCompose(img -> finish.apply(img, input))
+						.whenComplete((v, ex) -> {
+							slots.release();
+							if (ex != null) {
+								failures.incrementAndGet();
+								System.err.println(input + ": " + rootCause(ex));
+							}
+						});
+				jobs.add(job);
+			}
+			CompletableFuture.allOf(jobs.toArray(new CompletableFuture<?>[0]))
+					.exceptionally(ex -> null).join();
+		} finally {
+			cpu.shutdown();
+			io.shutdown();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		double megapixels = pixels.get() / 1e6;
+		System.out.printf(Locale.ROOT,
+				"%d images (%.1f MP) in %.2f s: %.2f images/s, %.2f MP/s, %d failed%n",
+				images.get(), megapixels, seconds, images.get() / seconds, megapixels / seconds,
+				failures.get());
+		return failures.get();
+	}
+
+	private BufferedImage decode(File input) {
+		try {
+			return loader.read(input.toPath());
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	private CompletableFuture<Void> encode(BufferedImage img, Path base) {
+		try {
+			Files.createDirectories(base.getParent());
+		} catch (IOException ex) {
+			return CompletableFuture.failedFuture(ex);
+		}
+		return encoder.export(img, base, formats).thenRun(() -> count(img));
+	}
+
+	private void count(BufferedImage img) {
+		images.incrementAndGet();
+		pixels.addAndGet((long) img.getWidth() * img.getHeight());
+	}
+
+	private static String rootCause(Throwable ex) {
+		while (ex.getCause() != null)
+			ex = ex.getCause();
+		return ex.toString();
+	}
+
+	/**
+	 * One virtual thread per task on JVMs that have them, a cached pool otherwise.
+	 */
+	static ExecutorService ioExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException ex) {
+			return Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "image-io");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	/**
+	 * Expands files, directories and glob patterns into image files.
+	 *
+	 * @param args the inputs as given on the command line
+	 * @return the files in argument order, directory and glob matches sorted by name
+	 * @throws IOException if a directory cannot be listed
+	 */
+	public static List<File> expand(List<String> args) throws IOException {
+		List<String> suffixes = Arrays.stream(ImageIO.getReaderFileSuffixes())
+				.map(s -> s.toLowerCase(Locale.ROOT)).collect(Collectors.toList());
+		List<File> files = new ArrayList<File>();
+		for (String arg : args) {
+			if (arg.matches(".*[*?\\[{].*")) {
+				int wild = arg.replaceAll("[*?\\[{].*", "").lastIndexOf('/');
+				Path base = Paths.get(wild < 0 ? "." : arg.substring(0, wild + 1));
+				PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + arg);
+				try (Stream<Path> walk = Files.walk(base)) {
+					walk.filter(Files::isRegularFile)
+							.filter(p -> matcher.matches(wild < 0 ? base.relativize(p) : p))
+							.sorted().forEach(p -> files.add(p.toFile()));
+				}
+			} else if (new File(arg).isDirectory()) {
+				try (Stream<Path> list = Files.list(Paths.get(arg))) {
+					list.filter(Files::isRegularFile).filter(p -> hasSuffix(p, suffixes))
+							.sorted().forEach(p -> files.add(p.toFile()));
+				}
+			} else {
+				files.add(new File(arg));
+			}
+		}
+		return files;
+	}
+
+	private static boolean hasSuffix(Path p, List<String> suffixes) {
+		String name = p.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		return dot >= 0 && suffixes.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+
+	private static void usage() {
+		System.err.println("usage: BatchProcessor [-f filters] [-o dir] [-t format[,format...]] [-j threads] [-q inFlight]");
+		System.err.println("       [-l bt601|bt709] [-z pngLevel 0-9] [-Q jpegQuality 0-1] [-a store] input...");
+		System.err.println("  filters: comma separated, from grayscale, luminance, equalize, clahe, threshold,");
+		System.err.println("           sobel, frame, blur, box, mean, sharpen, laplacian");
+		System.err.println("  -a: add histograms and summaries to a store instead of writing images,");
+		System.err.println("      filters default to none; print a store with imageProcessing.HistogramStore");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String filters = null;
+		String output = "out";
+		String format = "png";
+		int threads = Runtime.getRuntime().availableProcessors();
+		int inFlight = 2 * threads;
+		LumaWeights weights = LumaWeights.BT601;
+		int pngLevel = 4;
+		float jpegQuality = 0.75f;
+		String store = null;
+		List<String> inputs = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.startsWith("-") && i + 1 >= args.length)
+				usage();
+			switch (arg) {
+			case "-f":
+				filters = args[++i];
+				break;
+			case "-o":
+				output = args[++i];
+				break;
+			case "-t":
+				format = args[++i].toLowerCase(Locale.ROOT);
+				break;
+			case "-j":
+				threads = Integer.parseInt(args[++i]);
+				break;
+			case "-q":
+				inFlight = Integer.parseInt(args[++i]);
+				break;
+			case "-l":
+				try {
+					weights = LumaWeights.valueOf(args[++i].toUpperCase(Locale.ROOT));
+				} catch (IllegalArgumentException ex) {
+					usage();
+				}
+				break;
+			case "-z":
+				pngLevel = Integer.parseInt(args[++i]);
+				break;
+			case "-Q":
+				jpegQuality = Float.parseFloat(args[++i]);
+				break;
+			case "-a":
+				store = args[++i];
+				break;
+			default:
+				if (arg.startsWith("-"))
+					usage();
+				inputs.add(arg);
+			}
+		}
+		if (inputs.isEmpty())
+			usage();
+		if (filters == null)
+			filters = store == null ? "luminance,equalize,sobel" : "";
+		BatchProcessor batch;
+		try {
+			ImageEncoder encoder = new ImageEncoder(Math.max(1, threads)).withPngLevel(pngLevel)
+					.withJpegQuality(jpegQuality);
+			batch = new BatchProcessor(filters, new File(output), format, threads, inFlight, weights, encoder);
+		} catch (IllegalArgumentException ex) {
+			System.err.println(ex.getMessage());
+			usage();
+			return;
+		}
+		int failed;
+		if (store == null) {
+			failed = batch.run(expand(inputs));
+		} else {
+			try (HistogramStore histograms = HistogramStore.open(Paths.get(store))) {
+				if (histograms.wasRecovered())
+					System.err.println(store + ": index missing, recovered " + histograms.size() + " images");
+				failed = batch.analyze(expand(inputs), histograms);
+			}
+		}
+		System.exit(failed == 0 ? 0 : 1);
+	}
+}
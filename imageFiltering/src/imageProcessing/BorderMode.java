@@ -0,0 +1,54 @@
+package imageProcessing;
+
+/**
+ * What a {@link Convolution} does where the kernel reaches past the edge of the
+ * image. The first four modes say which pixel is read instead; SKIP and COPY
+ * leave the outside unread and only compute the pixels the kernel fits around.
+ */
+public enum BorderMode {
+	/** Pixels outside the image are 0. */
+	ZERO,
+	/** The nearest edge pixel is repeated. */
+	CLAMP,
+	/** The image is mirrored at its edge, without repeating the edge pixel. */
+	REFLECT,
+	/** The image repeats, as if tiled. */
+	WRAP,
+	/** Output pixels the kernel does not fit around are 0. */
+	SKIP,
+	/** Output pixels the kernel does not fit around are copied from the source. */
+	COPY;
+
+	/**
+	 * Whether pixels outside the image are read at all.
+	 */
+	boolean readsOutside() {
+		return this != SKIP && this != COPY;
+	}
+
+	/**
+	 * Maps a coordinate into 0..size-1.
+	 *
+	 * @param i    the coordinate, possibly outside the image
+	 * @param size the image width or height, positive
+	 * @return the coordinate to read, or -1 for a pixel that is 0
+	 */
+	int index(int i, int size) {
+		if (i >= 0 && i < size)
+			return i;
+		switch (this) {
+		case CLAMP:
+			return i < 0 ? 0 : size - 1;
+		case REFLECT:
+			if (size == 1)
+				return 0;
+			int period = 2 * (size - 1);
+			int m = Math.floorMod(i, period);
+			return m < size ? m : period - m;
+		case WRAP:
+			return Math.floorMod(i, size);
+		default:
+			return -1;
+		}
+	}
+}
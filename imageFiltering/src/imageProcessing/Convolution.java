@@ -0,0 +1,461 @@
+package imageProcessing;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Convolves images with {@link ConvolutionKernel}s. Each band of output rows slides
+ * a window of kernel-height rows down the image: every source row is read once,
+ * padded according to the {@link BorderMode}, and, for separable kernels,
+ * filtered horizontally once as it enters the window, so an output row only costs
+ * the vertical pass. Integer kernels run on {@link PixelKernels}, and so use SIMD
+ * where available.
+ *
+ * Color images are convolved per channel, red, green and blue, with alpha taken
+ * from the source pixel; gray images as a single channel.
+ */
+public class Convolution {
+	private final BandScheduler scheduler;
+	private final PixelKernels kernels = PixelKernels.get();
+
+	/**
+	 * One channel of an image, read a row at a time.
+	 */
+	public interface Plane {
+		/**
+		 * Reads the values of row y into dst, starting at off.
+		 */
+		void row(int y, int[] dst, int off);
+	}
+
+	/**
+	 * Receives the raw sums of an output row, one array per kernel.
+	 */
+	public interface PlaneSink {
+		/**
+		 * @param y    the output row
+		 * @param sums the undivided sums of each kernel at columns 0..width-1; the
+		 *             arrays are reused for the next row
+		 */
+		void row(int y, int[][] sums);
+	}
+
+	/**
+	 * Fills the padded source rows of all channels for row y. Rows outside the
+	 * image have been resolved by the border mode already. scratch holds rows of
+	 * the band's own, as wide as the image.
+	 */
+	private interface RowReader {
+		void read(int y, int[][] padded, int[][] scratch);
+	}
+
+	/**
+	 * Consumes the windows of all channels once they hold output row y.
+	 */
+	private interface RowWriter {
+		void write(int y, Window[][] windows, int[][] scratch);
+	}
+
+	public Convolution(BandScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Convolves src into dst.
+	 *
+	 * @param src    the source image
+	 * @param dst    receives the result, the size of src
+	 * @param kernel the weights
+	 * @param mode   what to do at the edges
+	 */
+	public void convolve(BufferedImage src, BufferedImage dst, ConvolutionKernel kernel, BorderMode mode) {
+		run(src, dst, kernel.getWidth(), kernel.getHeight(), mode, width -> kernel.isInteger()
+				? new IntWindow(kernel, width, kernels)
+				: new FloatWindow(kernel, width));
+	}
+
+	/**
+	 * Averages the (2 * radius + 1)^2 pixels around each pixel with running sums, so
+	 * the cost per pixel does not depend on radius. The result is the same as
+	 * convolving with {@link ConvolutionKernel#box(int)}.
+	 *
+	 * @param src    the source image
+	 * @param dst    receives the result, the size of src
+	 * @param radius the number of pixels on each side of the center
+	 * @param mode   what to do at the edges
+	 */
+	public void boxBlur(BufferedImage src, BufferedImage dst, int radius, BorderMode mode) {
+		if (radius < 0)
+			throw new IllegalArgumentException("radius must not be negative: " + radius);
+		int size = 2 * radius + 1;
+		run(src, dst, size, size, mode, width -> new BoxWindow(radius, width));
+	}
+
+	/**
+	 * Convolves a single channel with integer kernels of the same size and hands the
+	 * undivided sums to sink, one row at a time. Rows are delivered from several
+	 * threads, but each row exactly once. With SKIP and COPY only the rows the
+	 * kernels fit around are delivered, and the sums in columns they do not fit
+	 * around are meaningless.
+	 *
+	 * @param width   the plane width
+	 * @param height  the plane height
+	 * @param plane   the values
+	 * @param mode    what to do at the edges
+	 * @param sink    receives the sums
+	 * @param filters integer kernels, all of one size
+	 */
+	public void convolvePlane(int width, int height, Plane plane, BorderMode mode, PlaneSink sink,
+			ConvolutionKernel... filters) {
+		ConvolutionKernel shape = filters[0];
+		for (ConvolutionKernel k : filters) {
+			if (!k.isInteger())
+				throw new IllegalArgumentException("convolvePlane needs integer kernels");
+			if (k.getWidth() != shape.getWidth() || k.getHeight() != shape.getHeight())
+				throw new IllegalArgumentException("kernels differ in size");
+		}
+		int ax = shape.anchorX();
+		slide(width, height, shape.getWidth(), shape.getHeight(), mode, 1, filters.length,
+				w -> {
+					Window[] windows = new Window[filters.length];
+					for (int k = 0; k < filters.length; k++)
+						windows[k] = new IntWindow(filters[k], w, kernels);
+					return windows;
+				},
+				(y, padded, scratch) -> {
+					plane.row(y, padded[0], ax);
+					pad(padded[0], ax, width, mode);
+				},
+				(y, windows, sums) -> {
+					for (int k = 0; k < filters.length; k++)
+						((IntWindow) windows[0][k]).sums(sums[k]);
+					sink.row(y, sums);
+				});
+	}
+
+	/**
+	 * Creates the window of one channel for a band.
+	 */
+	private interface WindowFactory {
+		Window create(int width);
+	}
+
+	/**
+	 * Convolves every channel of src into dst with one window per channel.
+	 */
+	private void run(BufferedImage src, BufferedImage dst, int kw, int kh, BorderMode mode, WindowFactory factory) {
+		int width = src.getWidth();
+		int height = src.getHeight();
+		int ax = (kw - 1) / 2;
+		int ay = (kh - 1) / 2;
+		PixelAccess in = PixelAccess.of(src);
+		PixelAccess out = PixelAccess.of(dst);
+		boolean gray = src.getType() == BufferedImage.TYPE_BYTE_GRAY
+				|| MappedRaster.isMapped(src) && MappedRaster.layoutOf(src) == BufferedImage.TYPE_BYTE_GRAY;
+		int channels = gray ? 1 : 3;
+		// columns the kernel fits around, the only ones written with SKIP and COPY
+		int x0 = mode.readsOutside() ? 0 : Math.min(ax, width);
+		int x1 = mode.readsOutside() ? width : Math.max(x0, width - (kw - 1 - ax));
+		// scratch rows: one per channel for the values, and one for the pixels
+		slide(width, height, kw, kh, mode, channels, channels + 1,
+				w -> new Window[] {factory.create(w)},
+				(y, padded, scratch) -> {
+					int[] argb = scratch[channels];
+					in.getPixels(0, y, width, argb, 0);
+					if (gray) {
+						for (int x = 0; x < width; x++)
+							padded[0][ax + x] = argb[x] & 0xFF;
+					} else {
+						for (int x = 0; x < width; x++) {
+							int p = argb[x];
+							padded[0][ax + x] = p >> 16 & 0xFF;
+							padded[1][ax + x] = p >> 8 & 0xFF;
+							padded[2][ax + x] = p & 0xFF;
+						}
+					}
+					for (int c = 0; c < channels; c++)
+						pad(padded[c], ax, width, mode);
+				},
+				(y, windows, v) -> {
+					for (int c = 0; c < channels; c++)
+						windows[c][0].values(v[c]);
+					if (gray) {
+						out.setGrayPixels(x0, y, x1 - x0, v[0], x0);
+						return;
+					}
+					int[] row = v[channels];
+					in.getPixels(0, y, width, row, 0);
+					for (int x = x0; x < x1; x++)
+						row[x] = row[x] & 0xFF000000 | v[0][x] << 16 | v[1][x] << 8 | v[2][x];
+					out.setPixels(x0, y, x1 - x0, row, x0);
+				});
+		if (mode == BorderMode.COPY)
+			copyEdges(in, out, width, height, x0, x1, ay, kh);
+	}
+
+	/**
+	 * Copies the pixels a kernel of height kh does not fit around.
+	 */
+	private void copyEdges(PixelAccess in, PixelAccess out, int width, int height, int x0, int x1, int ay, int kh) {
+		int y0 = Math.min(ay, height);
+		int y1 = Math.max(y0, height - (kh - 1 - ay));
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			in.getPixels(0, y, width, row, 0);
+			if (y < y0 || y >= y1) {
+				out.setPixels(0, y, width, row, 0);
+			} else {
+				out.setPixels(0, y, x0, row, 0);
+				out.setPixels(x1, y, width - x1, row, x1);
+			}
+		}
+	}
+
+	/**
+	 * Creates the windows of one channel, one per kernel.
+	 */
+	private interface WindowsFactory {
+		Window[] create(int width);
+	}
+
+	/**
+	 * Runs the windows down the image in bands and writes each output row.
+	 */
+	private void slide(int width, int height, int kw, int kh, BorderMode mode, int channels, int scratchRows,
+			WindowsFactory factory, RowReader reader, RowWriter writer) {
+		int ay = (kh - 1) / 2;
+		// output rows that are computed at all
+		int top = mode.readsOutside() ? 0 : Math.min(ay, height);
+		int bottom = mode.readsOutside() ? height : Math.max(top, height - (kh - 1 - ay));
+		if (width == 0 || bottom <= top)
+			return;
+		// every band reads kh - 1 rows twice, keep that a small fraction of the band
+		scheduler.forEach(width, bottom - top, 8 * (kh - 1), (b0, b1) -> {
+			int y0 = top + b0;
+			int y1 = top + b1;
+			Window[][] windows = new Window[channels][];
+			for (int c = 0; c < channels; c++)
+				windows[c] = factory.create(width);
+			int[][] padded = new int[channels][width + kw - 1];
+			int[][] zero = new int[channels][width + kw - 1];
+			int[][] scratch = new int[scratchRows][width];
+			for (int r = y0 - ay; r < y1 - ay + kh - 1; r++) {
+				int source = mode.index(r, height);
+				int[][] row = zero;
+				if (source >= 0) {
+					reader.read(source, padded, scratch);
+					row = padded;
+				}
+				for (int c = 0; c < channels; c++)
+					for (Window window : windows[c])
+						window.push(row[c]);
+				int y = r - kh + 1 + ay;
+				if (y >= y0)
+					writer.write(y, windows, scratch);
+			}
+		});
+	}
+
+	/**
+	 * Fills the ax columns left of the row and the columns right of it according
+	 * to mode. The row itself starts at ax.
+	 */
+	private static void pad(int[] padded, int ax, int width, BorderMode mode) {
+		for (int i = 0; i < padded.length; i++) {
+			if (i >= ax && i < ax + width)
+				continue;
+			int x = mode.index(i - ax, width);
+			padded[i] = x < 0 ? 0 : padded[ax + x];
+		}
+	}
+
+	/**
+	 * Rounds sum / divisor to the nearest integer and clamps it to 0..255.
+	 */
+	static int normalize(int sum, int divisor) {
+		int v = divisor == 1 ? sum : Math.floorDiv(2 * sum + divisor, 2 * divisor);
+		return v < 0 ? 0 : v > 255 ? 255 : v;
+	}
+
+	/**
+	 * The rows of one channel that the kernel currently covers.
+	 */
+	private abstract static class Window {
+		/**
+		 * Slides the window down by one row.
+		 *
+		 * @param padded the entering source row, padded by the kernel width - 1
+		 */
+		abstract void push(int[] padded);
+
+		/**
+		 * Writes the normalized output of the window's center row, clamped to 0..255.
+		 */
+		abstract void values(int[] dst);
+	}
+
+	private static final class IntWindow extends Window {
+		private final PixelKernels kernels;
+		private final int width;
+		private final int divisor;
+		private final int[][] rows;
+		private final int[] rowTaps;
+		private final int[] columnTaps;
+		private final int[][] taps;
+		private final int[] tmp;
+
+		IntWindow(ConvolutionKernel kernel, int width, PixelKernels kernels) {
+			this.kernels = kernels;
+			this.width = width;
+			this.divisor = kernel.getDivisor();
+			rowTaps = kernel.rowInts();
+			columnTaps = kernel.columnInts();
+			int kh = kernel.getHeight();
+			// separable kernels keep the horizontally filtered rows, others the padded source
+			rows = new int[kh][rowTaps != null ? width : width + kernel.getWidth() - 1];
+			taps = new int[kh][];
+			for (int j = 0; j < kh; j++)
+				taps[j] = kernel.intRow(j);
+			tmp = new int[width];
+		}
+
+		@Override
+		void push(int[] padded) {
+			int[] entering = rows[0];
+			System.arraycopy(rows, 1, rows, 0, rows.length - 1);
+			rows[rows.length - 1] = entering;
+			if (rowTaps != null)
+				kernels.convolveRow(padded, 0, rowTaps, entering, 0, width);
+			else
+				System.arraycopy(padded, 0, entering, 0, entering.length);
+		}
+
+		void sums(int[] dst) {
+			if (rowTaps != null) {
+				kernels.convolveColumn(rows, columnTaps, dst, 0, width);
+				return;
+			}
+			Arrays.fill(dst, 0, width, 0);
+			for (int j = 0; j < rows.length; j++) {
+				kernels.convolveRow(rows[j], 0, taps[j], tmp, 0, width);
+				for (int x = 0; x < width; x++)
+					dst[x] += tmp[x];
+			}
+		}
+
+		@Override
+		void values(int[] dst) {
+			sums(dst);
+			for (int x = 0; x < width; x++)
+				dst[x] = normalize(dst[x], divisor);
+		}
+	}
+
+	private static final class FloatWindow extends Window {
+		private final int width;
+		private final int kw;
+		private final float[][] rows;
+		private final float[] rowTaps;
+		private final float[] columnTaps;
+		private final float[][] taps;
+		private final float[] sum;
+
+		FloatWindow(ConvolutionKernel kernel, int width) {
+			this.width = width;
+			this.kw = kernel.getWidth();
+			rowTaps = kernel.rowFloats();
+			columnTaps = kernel.columnFloats();
+			int kh = kernel.getHeight();
+			rows = new float[kh][rowTaps != null ? width : width + kw - 1];
+			taps = new float[kh][];
+			for (int j = 0; j < kh; j++)
+				taps[j] = kernel.floatRow(j);
+			sum = new float[width];
+		}
+
+		@Override
+		void push(int[] padded) {
+			float[] entering = rows[0];
+			System.arraycopy(rows, 1, rows, 0, rows.length - 1);
+			rows[rows.length - 1] = entering;
+			if (rowTaps != null) {
+				Arrays.fill(entering, 0);
+				for (int k = 0; k < kw; k++) {
+					float t = rowTaps[k];
+					for (int x = 0; x < width; x++)
+						entering[x] += t * padded[x + k];
+				}
+			} else {
+				for (int i = 0; i < entering.length; i++)
+					entering[i] = padded[i];
+			}
+		}
+
+		@Override
+		void values(int[] dst) {
+			Arrays.fill(sum, 0);
+			if (rowTaps != null) {
+				for (int j = 0; j < rows.length; j++) {
+					float t = columnTaps[j];
+					float[] row = rows[j];
+					for (int x = 0; x < width; x++)
+						sum[x] += t * row[x];
+				}
+			} else {
+				for (int j = 0; j < rows.length; j++) {
+					float[] row = rows[j];
+					for (int k = 0; k < kw; k++) {
+						float t = taps[j][k];
+						for (int x = 0; x < width; x++)
+							sum[x] += t * row[x + k];
+					}
+				}
+			}
+			for (int x = 0; x < width; x++) {
+				int v = Math.round(sum[x]);
+				dst[x] = v < 0 ? 0 : v > 255 ? 255 : v;
+			}
+		}
+	}
+
+	/**
+	 * Running sums over a square: each entering row is summed horizontally in one
+	 * sweep, and a column total gains the entering row and loses the leaving one.
+	 */
+	private static final class BoxWindow extends Window {
+		private final int width;
+		private final int size;
+		private final int[][] rows;
+		private final int[] total;
+
+		BoxWindow(int radius, int width) {
+			this.width = width;
+			this.size = 2 * radius + 1;
+			rows = new int[size][width];
+			total = new int[width];
+		}
+
+		@Override
+		void push(int[] padded) {
+			int[] leaving = rows[0];
+			System.arraycopy(rows, 1, rows, 0, size - 1);
+			rows[size - 1] = leaving;
+			int s = 0;
+			for (int k = 0; k < size; k++)
+				s += padded[k];
+			for (int x = 0; x < width; x++) {
+				total[x] += s - leaving[x];
+				leaving[x] = s;
+				if (x + 1 < width)
+					s += padded[x + size] - padded[x];
+			}
+		}
+
+		@Override
+		void values(int[] dst) {
+			int divisor = size * size;
+			for (int x = 0; x < width; x++)
+				dst[x] = normalize(total[x], divisor);
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package imageProcessing;
+
+import java.util.Arrays;
+
+/**
+ * Weights of a convolution, either integers with a divisor or floats. The
+ * weights are laid over the image as written, row by row, with the anchor at
+ * ((width - 1) / 2, (height - 1) / 2):
+ *     out(x, y) = sum of w[j][i] * in(x + i - ax, y + j - ay) / divisor
+ *
+ * Kernels whose weights are the outer product of a column and a row, such as
+ * Sobel, box and Gaussian, are detected when created and run as a horizontal
+ * pass followed by a vertical one, which costs width + height instead of
+ * width * height multiplications per pixel.
+ */
+public class ConvolutionKernel {
+	private final int width;
+	private final int height;
+	private final int[] ints;
+	private final float[] floats;
+	private final int divisor;
+	private final int[] rowInts;
+	private final int[] columnInts;
+	private final float[] rowFloats;
+	private final float[] columnFloats;
+
+	private ConvolutionKernel(int width, int height, int[] ints, float[] floats, int divisor) {
+		if (width < 1 || height < 1)
+			throw new IllegalArgumentException("kernel size must be positive: " + width + "x" + height);
+		int n = ints != null ? ints.length : floats.length;
+		if (n != width * height)
+			throw new IllegalArgumentException(n + " weights for a " + width + "x" + height + " kernel");
+		if (divisor < 1)
+			throw new IllegalArgumentException("divisor must be positive: " + divisor);
+		this.width = width;
+		this.height = height;
+		this.ints = ints;
+		this.floats = floats;
+		this.divisor = divisor;
+		if (ints != null) {
+			int[][] factors = separate(ints, width, height);
+			rowInts = factors == null ? null : factors[0];
+			columnInts = factors == null ? null : factors[1];
+			rowFloats = columnFloats = null;
+		} else {
+			float[][] factors = separate(floats, width, height);
+			rowFloats = factors == null ? null : factors[0];
+			columnFloats = factors == null ? null : factors[1];
+			rowInts = columnInts = null;
+		}
+	}
+
+	/**
+	 * An integer kernel. Results are rounded to the nearest integer.
+	 *
+	 * @param width   the number of columns
+	 * @param height  the number of rows
+	 * @param divisor every sum is divided by this, 1 for none
+	 * @param weights width * height weights, row by row
+	 */
+	public static ConvolutionKernel of(int width, int height, int divisor, int... weights) {
+		return new ConvolutionKernel(width, height, weights.clone(), null, divisor);
+	}
+
+	/**
+	 * A float kernel.
+	 *
+	 * @param width   the number of columns
+	 * @param height  the number of rows
+	 * @param weights width * height weights, row by row
+	 */
+	public static ConvolutionKernel of(int width, int height, float... weights) {
+		return new ConvolutionKernel(width, height, null, weights.clone(), 1);
+	}
+
+	/**
+	 * Horizontal Sobel operator, positive where the image gets brighter to the right.
+	 */
+	public static ConvolutionKernel sobelX() {
+		return of(3, 3, 1, -1, 0, 1, -2, 0, 2, -1, 0, 1);
+	}
+
+	/**
+	 * Vertical Sobel operator, positive where the image gets brighter downwards.
+	 */
+	public static ConvolutionKernel sobelY() {
+		return of(3, 3, 1, -1, -2, -1, 0, 0, 0, 1, 2, 1);
+	}
+
+	/**
+	 * Mean of the (2 * radius + 1)^2 pixels around each pixel. See
+	 * {@link Convolution#boxBlur} for a version whose cost does not grow with radius.
+	 */
+	public static ConvolutionKernel box(int radius) {
+		int size = 2 * radius + 1;
+		int[] weights = new int[size * size];
+		Arrays.fill(weights, 1);
+		return of(size, size, size * size, weights);
+	}
+
+	/**
+	 * Gaussian blur, cut off at three standard deviations and normalized to 1.
+	 */
+	public static ConvolutionKernel gaussian(double sigma) {
+		if (!(sigma > 0))
+			throw new IllegalArgumentException("sigma must be positive: " + sigma);
+		int radius = (int) Math.ceil(3 * sigma);
+		int size = 2 * radius + 1;
+		double[] g = new double[size];
+		double total = 0;
+		for (int i = 0; i < size; i++) {
+			g[i] = Math.exp(-(i - radius) * (i - radius) / (2 * sigma * sigma));
+			total += g[i];
+		}
+		float[] weights = new float[size * size];
+		for (int y = 0; y < size; y++)
+			for (int x = 0; x < size; x++)
+				weights[y * size + x] = (float) (g[y] * g[x] / (total * total));
+		return of(size, size, weights);
+	}
+
+	/**
+	 * The 3x3 sharpening kernel, the pixel plus its 4-neighbor Laplacian.
+	 */
+	public static ConvolutionKernel sharpen() {
+		return of(3, 3, 1, 0, -1, 0, -1, 5, -1, 0, -1, 0);
+	}
+
+	/**
+	 * The 3x3 8-neighbor Laplacian. On an image only its positive half survives
+	 * clamping; {@link Convolution#convolvePlane} gives the signed sums.
+	 */
+	public static ConvolutionKernel laplacian() {
+		return of(3, 3, 1, 1, 1, 1, 1, -8, 1, 1, 1, 1);
+	}
+
+	/**
+	 * Factors integer weights into a row and a column with integer entries, or
+	 * returns null if they are not an outer product.
+	 */
+	private static int[][] separate(int[] w, int width, int height) {
+		int pivot = 0;
+		while (pivot < w.length && w[pivot] == 0)
+			pivot++;
+		if (pivot == w.length || width == 1 || height == 1)
+			return null;
+		int r = pivot / width;
+		int c = pivot % width;
+		// the row through the pivot, reduced by its common factor, and the column that goes with it
+		int g = 0;
+		for (int x = 0; x < width; x++)
+			g = gcd(g, Math.abs(w[r * width + x]));
+		int[] row = new int[width];
+		for (int x = 0; x < width; x++)
+			row[x] = w[r * width + x] / g;
+		int[] column = new int[height];
+		for (int y = 0; y < height; y++) {
+			if (w[y * width + c] % row[c] != 0)
+				return null;
+			column[y] = w[y * width + c] / row[c];
+		}
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				if (column[y] * row[x] != w[y * width + x])
+					return null;
+		return new int[][] {row, column};
+	}
+
+	private static float[][] separate(float[] w, int width, int height) {
+		int pivot = 0;
+		for (int i = 1; i < w.length; i++)
+			if (Math.abs(w[i]) > Math.abs(w[pivot]))
+				pivot = i;
+		if (w[pivot] == 0 || width == 1 || height == 1)
+			return null;
+		int r = pivot / width;
+		int c = pivot % width;
+		float[] row = new float[width];
+		float[] column = new float[height];
+		for (int x = 0; x < width; x++)
+			row[x] = w[r * width + x];
+		for (int y = 0; y < height; y++)
+			column[y] = w[y * width + c] / w[pivot];
+		float tolerance = Math.abs(w[pivot]) * 1e-5f;
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				if (Math.abs(column[y] * row[x] - w[y * width + x]) > tolerance)
+					return null;
+		return new float[][] {row, column};
+	}
+
+	private static int gcd(int a, int b) {
+		while (b != 0) {
+			int t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public boolean isInteger() {
+		return ints != null;
+	}
+
+	public boolean isSeparable() {
+		return rowInts != null || rowFloats != null;
+	}
+
+	public int getDivisor() {
+		return divisor;
+	}
+
+	int anchorX() {
+		return (width - 1) / 2;
+	}
+
+	int anchorY() {
+		return (height - 1) / 2;
+	}
+
+	/**
+	 * Row j of the integer weights.
+	 */
+	int[] intRow(int j) {
+		return Arrays.copyOfRange(ints, j * width, (j + 1) * width);
+	}
+
+	/**
+	 * Row j of the float weights.
+	 */
+	float[] floatRow(int j) {
+		return Arrays.copyOfRange(floats, j * width, (j + 1) * width);
+	}
+
+	/** Horizontal factor of a separable integer kernel. */
+	int[] rowInts() {
+		return rowInts;
+	}
+
+	/** Vertical factor of a separable integer kernel. */
+	int[] columnInts() {
+		return columnInts;
+	}
+
+	/** Horizontal factor of a separable float kernel. */
+	float[] rowFloats() {
+		return rowFloats;
+	}
+
+	/** Vertical factor of a separable float kernel. */
+	float[] columnFloats() {
+		return columnFloats;
+	}
+}
@@ -0,0 +1,193 @@
+package imageProcessing;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The parts of an image changed since some earlier state, as a few rectangles
+ * that do not overlap. Of a rectangle added over others only the parts not yet
+ * covered are kept, and two rectangles are merged when together they form a
+ * rectangle, so a frame stays four strips rather than becoming its bounding
+ * box. Once there are more than MAX_RECTANGLES they are all merged into one, so
+ * the region may cover more than what changed but never less, and working
+ * through it stays cheap however many edits were made.
+ */
+public class DirtyRegion {
+	private static final int MAX_RECTANGLES = 16;
+
+	private final List<Rectangle> rectangles = new ArrayList<Rectangle>();
+
+	/**
+	 * The border strips of the given width around an image, as
+	 * {@link FilterEngine#border} paints them.
+	 *
+	 * @param width  the image width
+	 * @param height the image height
+	 * @param border the border width
+	 * @return the region
+	 */
+	public static DirtyRegion frame(int width, int height, int border) {
+		int bw = Math.min(border, width);
+		int bh = Math.min(border, height);
+		DirtyRegion r = new DirtyRegion();
+		r.add(0, 0, bw, height);
+		r.add(width - bw, 0, bw, height);
+		r.add(bw, 0, width - 2 * bw, bh);
+		r.add(bw, height - bh, width - 2 * bw, bh);
+		return r;
+	}
+
+	/**
+	 * Adds a rectangle. Empty rectangles are ignored.
+	 */
+	public synchronized void add(int x, int y, int width, int height) {
+		if (width <= 0 || height <= 0)
+			return;
+		List<Rectangle> pending = new ArrayList<Rectangle>();
+		pending.add(new Rectangle(x, y, width, height));
+		while (!pending.isEmpty()) {
+			Rectangle r = pending.remove(pending.size() - 1);
+			Rectangle covered = null;
+			for (Rectangle e : rectangles) {
+				if (e.intersects(r)) {
+					covered = e;
+					break;
+				}
+			}
+			if (covered == null) {
+				rectangles.add(join(r));
+			} else if (r.contains(covered)) {
+				rectangles.remove(covered);
+				pending.add(r);
+			} else {
+				subtract(r, covered, pending);
+			}
+		}
+		if (rectangles.size() > MAX_RECTANGLES) {
+			Rectangle bounds = getBounds();
+			rectangles.clear();
+			rectangles.add(bounds);
+		}
+	}
+
+	/**
+	 * Adds every rectangle of another region.
+	 */
+	public void add(DirtyRegion other) {
+		for (Rectangle r : other.getRectangles())
+			add(r.x, r.y, r.width, r.height);
+	}
+
+	/**
+	 * Forgets all rectangles.
+	 */
+	public synchronized void clear() {
+		rectangles.clear();
+	}
+
+	public synchronized boolean isEmpty() {
+		return rectangles.isEmpty();
+	}
+
+	/**
+	 * Copies of the rectangles, which do not overlap.
+	 */
+	public synchronized List<Rectangle> getRectangles() {
+		List<Rectangle> copy = new ArrayList<Rectangle>(rectangles.size());
+		for (Rectangle r : rectangles)
+			copy.add(new Rectangle(r));
+		return copy;
+	}
+
+	/**
+	 * The smallest rectangle around the region, empty if the region is.
+	 */
+	public synchronized Rectangle getBounds() {
+		Rectangle bounds = null;
+		for (Rectangle r : rectangles)
+			bounds = bounds == null ? new Rectangle(r) : bounds.union(r);
+		return bounds == null ? new Rectangle() : bounds;
+	}
+
+	/**
+	 * The number of pixels covered.
+	 */
+	public synchronized long getArea() {
+		long area = 0;
+		for (Rectangle r : rectangles)
+			area += area(r);
+		return area;
+	}
+
+	/**
+	 * This region with every rectangle grown by halo pixels on each side and cut
+	 * to an image of the given size, the pixels a filter reaching halo pixels
+	 * around each output pixel may read or change.
+	 *
+	 * @param halo   the pixels added on each side
+	 * @param width  the image width
+	 * @param height the image height
+	 * @return a new region
+	 */
+	public DirtyRegion grow(int halo, int width, int height) {
+		Rectangle image = new Rectangle(width, height);
+		DirtyRegion grown = new DirtyRegion();
+		for (Rectangle r : getRectangles()) {
+			r.grow(halo, halo);
+			r = r.intersection(image);
+			grown.add(r.x, r.y, r.width, r.height);
+		}
+		return grown;
+	}
+
+	/**
+	 * Merges r, which overlaps none of the rectangles, with those it forms a
+	 * rectangle with, removing them.
+	 *
+	 * @return r or the merged rectangle
+	 */
+	private Rectangle join(Rectangle r) {
+		// merging can make r line up with rectangles it did not line up with before
+		boolean merged = true;
+		while (merged) {
+			merged = false;
+			for (int i = 0; i < rectangles.size(); i++) {
+				Rectangle e = rectangles.get(i);
+				Rectangle union = r.union(e);
+				if (area(union) == area(r) + area(e)) {
+					rectangles.remove(i);
+					r = union;
+					merged = true;
+					break;
+				}
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Adds the up to four parts of r outside of e to pieces: the bands above and
+	 * below e, and left and right of it.
+	 */
+	private static void subtract(Rectangle r, Rectangle e, List<Rectangle> pieces) {
+		Rectangle i = r.intersection(e);
+		Rectangle[] parts = {
+				new Rectangle(r.x, r.y, r.width, i.y - r.y),
+				new Rectangle(r.x, i.y + i.height, r.width, r.y + r.height - i.y - i.height),
+				new Rectangle(r.x, i.y, i.x - r.x, i.height),
+				new Rectangle(i.x + i.width, i.y, r.x + r.width - i.x - i.width, i.height) };
+		for (Rectangle p : parts)
+			if (!p.isEmpty())
+				pieces.add(p);
+	}
+
+	private static long area(Rectangle r) {
+		return (long) r.width * r.height;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return rectangles.toString();
+	}
+}
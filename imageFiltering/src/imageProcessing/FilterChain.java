@@ -0,0 +1,120 @@
+package imageProcessing;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.UnaryOperator;
+
+/**
+ * A sequence of named filters applied one after the other, as given on the
+ * command line, e.g. "luminance,equalize,sobel". The names follow the Options
+ * menu of {@link Picture}:
+ *     grayscale, luminance, equalize, clahe, threshold, sobel, frame
+ * plus the convolutions
+ *     blur (Gaussian, sigma 1.5), box (box blur, radius 2), sharpen, laplacian
+ * and mean (the local mean luma, radius 7). Equalize and sobel use the histogram
+ * of the image they are applied to; clahe equalizes 8x8 tiles with clip limit 2,
+ * see {@link AdaptiveEqualization}; threshold is Sauvola's with radius 15 and
+ * k 0.2, see {@link IntegralImage}.
+ * The chain is run as a {@link FilterGraph}, so adjacent filters are fused.
+ */
+public class FilterChain {
+	private final List<String> names;
+	private final List<UnaryOperator<FilterGraph>> steps;
+
+	private final FilterEngine engine;
+
+	private FilterChain(List<String> names, List<UnaryOperator<FilterGraph>> steps, FilterEngine engine) {
+		this.names = Collections.unmodifiableList(names);
+		this.engine = engine;
+		this.steps = steps;
+	}
+
+	/**
+	 * Parses a comma separated list of filter names.
+	 *
+	 * @param spec   the filter names, may be empty
+	 * @param engine runs the filters
+	 * @return the chain
+	 * @throws IllegalArgumentException if a name is unknown
+	 */
+	public static FilterChain parse(String spec, FilterEngine engine) {
+		List<String> names = new ArrayList<String>();
+		List<UnaryOperator<FilterGraph>> steps = new ArrayList<UnaryOperator<FilterGraph>>();
+		for (String name : spec.split(",")) {
+			name = name.trim().toLowerCase(Locale.ROOT);
+			if (name.isEmpty())
+				continue;
+			names.add(name);
+			steps.add(step(name));
+		}
+		return new FilterChain(names, steps, engine);
+	}
+
+	private static UnaryOperator<FilterGraph> step(String name) {
+		switch (name) {
+		case "grayscale":
+			return FilterGraph::grayscale;
+		case "luminance":
+			return FilterGraph::luminance;
+		case "equalize":
+			return FilterGraph::equalize;
+		case "clahe":
+			return graph -> graph.adaptiveEqualize(8, 2.0);
+		case "threshold":
+			return graph -> graph.adaptiveThreshold(15, 0.2);
+		case "sobel":
+			return FilterGraph::sobel;
+		case "blur":
+			return graph -> graph.convolve(ConvolutionKernel.gaussian(1.5), BorderMode.CLAMP);
+		case "box":
+			return graph -> graph.boxBlur(2, BorderMode.CLAMP);
+		case "mean":
+			return graph -> graph.boxMean(7);
+		case "sharpen":
+			return graph -> graph.convolve(ConvolutionKernel.sharpen(), BorderMode.CLAMP);
+		case "laplacian":
+			return graph -> graph.convolve(ConvolutionKernel.laplacian(), BorderMode.CLAMP);
+		case "frame":
+			return graph -> graph.scale(graph.getWidth() - 40, graph.getHeight() - 40).move(20, 20)
+					.border(10, new Color(55, 55, 55));
+		default:
+			throw new IllegalArgumentException("unknown filter: " + name);
+		}
+	}
+
+	/**
+	 * Runs every filter of the chain.
+	 *
+	 * @param src the input image
+	 * @return the output of the last filter, or src if the chain is empty
+	 */
+	public BufferedImage apply(BufferedImage src) {
+		return graph(src).render();
+	}
+
+	/**
+	 * Records the chain without running it.
+	 *
+	 * @param src the input image
+	 * @return the unevaluated graph
+	 */
+	public FilterGraph graph(BufferedImage src) {
+		FilterGraph graph = FilterGraph.of(src, engine);
+		for (UnaryOperator<FilterGraph> step : steps)
+			graph = step.apply(graph);
+		return graph;
+	}
+
+	public List<String> getNames() {
+		return names;
+	}
+
+	@Override
+	public String toString() {
+		return String.join(",", names);
+	}
+}
@@ -0,0 +1,632 @@
+package imageProcessing;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.ColorModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Headless implementation of the image filters used by {@link Picture}.
+ * Every operation takes a source image and returns a new image; the source
+ * is never modified and no Swing types are involved, so the engine can be
+ * used in server processes without a display.
+ *
+ * Point and neighborhood filters run in parallel over row bands, see
+ * {@link BandScheduler}. Results are created by an {@link ImageAllocator}, on the
+ * heap by default or in memory-mapped files with {@link MappedRaster#allocator}.
+ * Every filter is timed by {@link FilterMetrics}.
+ */
+// FilterMetrics timers are closed by try-with-resources and never referenced inside
+@SuppressWarnings("try")
+public class FilterEngine {
+	private static final ConvolutionKernel SOBEL_X = ConvolutionKernel.sobelX();
+	private static final ConvolutionKernel SOBEL_Y = ConvolutionKernel.sobelY();
+
+	private final BandScheduler scheduler;
+	private final PixelKernels kernels = PixelKernels.get();
+	private final ImageAllocator allocator;
+	private final Convolution convolution;
+	private final AdaptiveEqualization adaptive;
+	private final Resampler resampler;
+	private final FilterMetrics metrics = FilterMetrics.get();
+	private final LumaWeights weights;
+
+	/**
+	 * Creates an engine that runs on the common fork-join pool.
+	 */
+	public FilterEngine() {
+		this(new BandScheduler());
+	}
+
+	/**
+	 * Creates an engine with its own pool.
+	 *
+	 * @param parallelism the number of worker threads, 1 runs single-threaded
+	 */
+	public FilterEngine(int parallelism) {
+		this(new BandScheduler(parallelism));
+	}
+
+	public FilterEngine(BandScheduler scheduler) {
+		this(scheduler, ImageAllocator.HEAP);
+	}
+
+	/**
+	 * @param scheduler runs the row bands
+	 * @param allocator creates the result images
+	 */
+	public FilterEngine(BandScheduler scheduler, ImageAllocator allocator) {
+		this(scheduler, allocator, LumaWeights.BT601);
+	}
+
+	/**
+	 * @param scheduler runs the row bands
+	 * @param allocator creates the result images
+	 * @param weights   reduce colors to luma in every filter and histogram
+	 */
+	public FilterEngine(BandScheduler scheduler, ImageAllocator allocator, LumaWeights weights) {
+		this.scheduler = scheduler;
+		this.allocator = allocator;
+		this.convolution = new Convolution(scheduler);
+		this.adaptive = new AdaptiveEqualization(scheduler);
+		this.resampler = new Resampler(scheduler);
+		this.weights = weights;
+	}
+
+	/**
+	 * An engine with the same pool and allocator whose banded passes report to
+	 * monitor and stop once it is cancelled, see {@link BandScheduler#monitored}.
+	 * Passes done by Java2D, such as scale and grayscale, run to completion.
+	 */
+	public FilterEngine monitored(BandScheduler.Monitor monitor) {
+		return new FilterEngine(scheduler.monitored(monitor), allocator, weights);
+	}
+
+	/**
+	 * An engine with the same pool and allocator that uses other luma weights.
+	 */
+	public FilterEngine withLumaWeights(LumaWeights weights) {
+		return new FilterEngine(scheduler, allocator, weights);
+	}
+
+	public LumaWeights getLumaWeights() {
+		return weights;
+	}
+
+	public BandScheduler getScheduler() {
+		return scheduler;
+	}
+
+	public ImageAllocator getAllocator() {
+		return allocator;
+	}
+
+	/**
+	 * Converts an image to TYPE_BYTE_GRAY using Java2D's built-in conversion.
+	 *
+	 * @param src the source image
+	 * @return a new grayscale image
+	 */
+	public BufferedImage grayscale(BufferedImage src) {
+		try (FilterMetrics.Timer t = metrics.start("grayscale", src)) {
+			BufferedImage greyFiltered = allocator.allocate(src.getWidth(), src.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+			// Java2D only converts exactly between its own raster types, so mapped images go through the heap
+			BufferedImage target = MappedRaster.isMapped(greyFiltered)
+					? new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_BYTE_GRAY)
+					: greyFiltered;
+			Graphics g = target.getGraphics();
+			g.drawImage(onHeap(src), 0, 0, null); // better performance than the pixel by pixel conversion
+			g.dispose();
+			if (target != greyFiltered)
+				copyRows(target, greyFiltered);
+			return greyFiltered;
+		}
+	}
+
+	/**
+	 * Computes the luminance histogram of an image using the luma weights of this
+	 * engine, BT.601 unless chosen otherwise.
+	 *
+	 * @param src the source image
+	 * @return a 256 cell histogram of luma values
+	 */
+	public int[] histogram(BufferedImage src) {
+		return histograms(src).getLuma();
+	}
+
+	/**
+	 * Computes the red, green, blue and luma histograms of an image in one parallel pass.
+	 *
+	 * @param src the source image
+	 * @return the histograms
+	 */
+	public Histogram histograms(BufferedImage src) {
+		try (FilterMetrics.Timer t = metrics.start("histogram", src)) {
+			return Histogram.of(src, scheduler, weights);
+		}
+	}
+
+	/**
+	 * ITU-R BT.601 luma of a packed rgb value, see {@link LumaWeights#BT601}.
+	 *
+	 * @param rgb the packed color
+	 * @return r * .299 + g * .587 + b * .114, rounded
+	 */
+	public static int luma(int rgb) {
+		return PixelKernels.luma(rgb);
+	}
+
+	/**
+	 * Converts an image to TYPE_BYTE_GRAY pixel by pixel using the luma value.
+	 *
+	 * @param src the source image
+	 * @return a new grayscale image
+	 */
+	public BufferedImage grayscaleLuminance(BufferedImage src) {
+		return grayscaleLuminance(src, null);
+	}
+
+	/**
+	 * Converts an image to TYPE_BYTE_GRAY with the gray level lut[luma] for each
+	 * pixel, so a luminance conversion and any point filters after it take one pass.
+	 *
+	 * @param src the source image
+	 * @param lut 256 gray levels indexed by luma, or null for the luma itself
+	 * @return a new grayscale image
+	 */
+	public BufferedImage grayscaleLuminance(BufferedImage src, int[] lut) {
+		try (FilterMetrics.Timer t = metrics.start("luminance", src)) {
+			int w = src.getWidth();
+			int h = src.getHeight();
+			BufferedImage grayscaleLum = allocator.allocate(w, h, BufferedImage.TYPE_BYTE_GRAY);
+			PixelAccess in = PixelAccess.of(src);
+			PixelAccess out = PixelAccess.of(grayscaleLum);
+			scheduler.forEach(w, h, (y0, y1) -> {
+				int[] row = new int[w];
+				for (int y = y0; y < y1; y++) {
+					in.getPixels(0, y, w, row, 0);
+					kernels.luma(weights, row, 0, row, 0, w);
+					if (lut != null)
+						kernels.lookup(row, 0, lut, row, 0, w);
+					out.setGrayPixels(0, y, w, row, 0);
+				}
+			});
+			return grayscaleLum;
+		}
+	}
+
+	/**
+	 * Builds the equalization lookup table for a histogram.
+	 *     lut[k] = floor((L-1) * sum(histogram[0..k]) / n)
+	 *
+	 * @param histogram the 256 cell luma histogram
+	 * @param n         the number of pixels the histogram was taken over
+	 * @return the 256 cell lookup table
+	 */
+	public int[] equalizationLut(int[] histogram, int n) {
+		long[] counts = new long[256];
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = histogram[i];
+		return equalizationLut(counts, n);
+	}
+
+	/**
+	 * Builds the equalization lookup table for a histogram of more pixels than
+	 * an int can count, such as one summed over the strips of a huge image.
+	 *
+	 * @param histogram the 256 cell luma histogram
+	 * @param n         the number of pixels the histogram was taken over
+	 * @return the 256 cell lookup table
+	 */
+	public int[] equalizationLut(long[] histogram, long n) {
+		int L = 256;
+		long sum = 0;
+		int[] lut = new int[256];
+		// exact in integers: the float coef of earlier versions came out one level low
+		// for some cumulative sums, most visibly 254 instead of 255 at the top
+		for (int i = 0; i < L; i++) {
+			sum += histogram[i];
+			lut[i] = n == 0 ? 0 : (int) ((L - 1) * sum / n);
+		}
+		return lut;
+	}
+
+	/**
+	 * Equalizes an image against the given luma histogram. Each pixel is replaced by
+	 * the gray level lut[luma].
+	 *
+	 * @param src       the source image
+	 * @param histogram the luma histogram to equalize against
+	 * @return a new image of the same type as src
+	 */
+	public BufferedImage histogramEqualize(BufferedImage src, int[] histogram) {
+		return equalize(src, equalizationLut(histogram, src.getWidth() * src.getHeight()));
+	}
+
+	/**
+	 * Replaces each pixel by the gray level lut[luma]. Use this instead of
+	 * histogramEqualize when src is only part of the image the lut was built for.
+	 *
+	 * @param src the source image
+	 * @param lut 256 gray levels indexed by luma
+	 * @return a new image of the same type as src
+	 */
+	public BufferedImage equalize(BufferedImage src, int[] lut) {
+		try (FilterMetrics.Timer t = metrics.start("equalize", src)) {
+			int w = src.getWidth();
+			int h = src.getHeight();
+			BufferedImage equalized = compatible(src);
+			PixelAccess in = PixelAccess.of(src);
+			PixelAccess out = PixelAccess.of(equalized);
+			scheduler.forEach(w, h, (y0, y1) -> {
+				int[] row = new int[w];
+				for (int y = y0; y < y1; y++) {
+					in.getPixels(0, y, w, row, 0);
+					kernels.luma(weights, row, 0, row, 0, w);
+					kernels.lookup(row, 0, lut, row, 0, w);
+					out.setGrayPixels(0, y, w, row, 0);
+				}
+			});
+			return equalized;
+		}
+	}
+
+	/**
+	 * Equalizes each region of the image against its own neighborhood with CLAHE,
+	 * see {@link AdaptiveEqualization}. Brings out detail in dark and bright areas
+	 * that a global equalization leaves flat.
+	 *
+	 * @param src       the source image
+	 * @param tiles     the number of tiles along each side, 8 is typical
+	 * @param clipLimit how far a tile may stretch its contrast, as the highest count a
+	 *                  level may keep in multiples of the average; 2 to 4 is typical,
+	 *                  0 or less for no limit
+	 * @return a new image of the same type as src
+	 */
+	public BufferedImage adaptiveEqualize(BufferedImage src, int tiles, double clipLimit) {
+		try (FilterMetrics.Timer t = metrics.start("adaptiveEqualize", src)) {
+			BufferedImage equalized = compatible(src);
+			adaptive.equalize(src, equalized, tiles, clipLimit, weights);
+			return equalized;
+		}
+	}
+
+	/**
+	 * Builds the summed-area tables of the luma of an image, which answer sums,
+	 * means and variances of any rectangle in constant time.
+	 *
+	 * @param src the image
+	 * @return the tables
+	 */
+	public IntegralImage integral(BufferedImage src) {
+		try (FilterMetrics.Timer t = metrics.start("integral", src)) {
+			return IntegralImage.of(src, scheduler, weights);
+		}
+	}
+
+	/**
+	 * Replaces each pixel with the mean luma of the (2 * radius + 1)^2 window
+	 * around it, cut off at the edges, from the summed-area table of the image.
+	 * The cost per pixel does not depend on radius.
+	 *
+	 * @param src    the source image
+	 * @param radius the number of pixels on each side of the center
+	 * @return a new gray image of the same type as src
+	 */
+	public BufferedImage boxMean(BufferedImage src, int radius) {
+		try (FilterMetrics.Timer t = metrics.start("boxMean", src)) {
+			BufferedImage mean = compatible(src);
+			IntegralImage.of(src, scheduler, weights).boxMean(mean, radius, scheduler);
+			return mean;
+		}
+	}
+
+	/**
+	 * Turns the image black and white against the mean and contrast of the
+	 * neighborhood of each pixel (Sauvola), so text and edges survive uneven
+	 * lighting. See {@link IntegralImage#threshold}.
+	 *
+	 * @param src    the source image
+	 * @param radius the number of pixels on each side of the center, about the
+	 *               size of the features to keep
+	 * @param k      how far low contrast lowers the threshold, 0.2 to 0.5 is typical
+	 * @return a new image of the same type as src
+	 */
+	public BufferedImage adaptiveThreshold(BufferedImage src, int radius, double k) {
+		try (FilterMetrics.Timer t = metrics.start("adaptiveThreshold", src)) {
+			BufferedImage binary = compatible(src);
+			IntegralImage.of(src, scheduler, weights).threshold(binary, radius, k, scheduler);
+			return binary;
+		}
+	}
+
+	/**
+	 * Equalizes the image, then applies the Sobel operators to every pixel not on
+	 * the border. The gradient length is normalized from 0..1443 to 0..255.
+	 *
+	 * The two steps are fused: the equalized luma is computed row by row as the
+	 * convolution window slides over it, so neither the equalized image nor
+	 * per-pixel colors are ever materialized. The result is the same as running
+	 * histogramEqualize first and detecting edges on its blue band.
+	 *
+	 * @param src       the source image
+	 * @param histogram the luma histogram used for equalization
+	 * @return a new TYPE_INT_RGB edge image
+	 */
+	public BufferedImage sobelEdgeDetect(BufferedImage src, int[] histogram) {
+		return sobel(src, equalizationLut(histogram, src.getWidth() * src.getHeight()));
+	}
+
+	/**
+	 * Applies the Sobel operators to the gray levels lut[luma] of every pixel not on
+	 * the border. Use this instead of sobelEdgeDetect when src is only part of the
+	 * image the lut was built for.
+	 *
+	 * @param src the source image
+	 * @param lut 256 gray levels indexed by luma
+	 * @return a new TYPE_INT_RGB edge image
+	 */
+	public BufferedImage sobel(BufferedImage src, int[] lut) {
+		try (FilterMetrics.Timer t = metrics.start("sobel", src)) {
+			int width = src.getWidth();
+			int height = src.getHeight();
+			BufferedImage edgeDetect = allocator.allocate(width, height, BufferedImage.TYPE_INT_RGB);
+			PixelAccess in = PixelAccess.of(src);
+			PixelAccess out = PixelAccess.of(edgeDetect);
+			convolution.convolvePlane(width, height, (y, dst, off) -> {
+				in.getPixels(0, y, width, dst, off);
+				kernels.luma(weights, dst, off, dst, off, width);
+				kernels.lookup(dst, off, lut, dst, off, width);
+			}, BorderMode.SKIP, (y, sums) -> {
+				kernels.magnitude(sums[0], sums[1], sums[0], 1, width - 2);
+				// the edge length is stored as the raw int, i.e. in the blue band
+				out.setPixels(1, y, width - 2, sums[0], 1);
+			}, SOBEL_X, SOBEL_Y);
+			return edgeDetect;
+		}
+	}
+
+	/**
+	 * Convolves each color channel of an image with a kernel.
+	 *
+	 * @param src    the source image
+	 * @param kernel the weights
+	 * @param mode   what to do where the kernel reaches past the edge
+	 * @return a new image of the same type as src
+	 */
+	public BufferedImage convolve(BufferedImage src, ConvolutionKernel kernel, BorderMode mode) {
+		try (FilterMetrics.Timer t = metrics.start("convolve", src)) {
+			BufferedImage convolved = compatible(src);
+			convolution.convolve(src, convolved, kernel, mode);
+			return convolved;
+		}
+	}
+
+	/**
+	 * Averages the (2 * radius + 1)^2 pixels around each pixel, at a cost per pixel
+	 * that does not depend on radius.
+	 *
+	 * @param src    the source image
+	 * @param radius the number of pixels on each side of the center
+	 * @param mode   what to do where the box reaches past the edge
+	 * @return a new image of the same type as src
+	 */
+	public BufferedImage boxBlur(BufferedImage src, int radius, BorderMode mode) {
+		try (FilterMetrics.Timer t = metrics.start("boxBlur", src)) {
+			BufferedImage blurred = compatible(src);
+			convolution.boxBlur(src, blurred, radius, mode);
+			return blurred;
+		}
+	}
+
+	/**
+	 * Moves an image by the given amount in x- and y-direction. The pixels are
+	 * copied, not filtered.
+	 *
+	 * @param src the source image
+	 * @param dx  the offset in the x-direction
+	 * @param dy  the offset in the y-direction
+	 * @return a new TYPE_INT_ARGB image the size of src, transparent where no
+	 *         pixels moved in
+	 */
+	public BufferedImage moveImage(BufferedImage src, int dx, int dy) {
+		return scaleAndMove(src, src.getWidth(), src.getHeight(), dx, dy);
+	}
+
+	/**
+	 * Scales an image to a new size. If the new size is smaller than the old
+	 * size, the remainder is filled with transparent pixels. If it is larger, it is
+	 * clipped.
+	 *
+	 * @param src       the source image
+	 * @param newWidth  the new width of the picture
+	 * @param newHeight the new height of the picture
+	 * @return a new TYPE_INT_ARGB image the size of src
+	 */
+	public BufferedImage scale(BufferedImage src, int newWidth, int newHeight) {
+		return scaleAndMove(src, newWidth, newHeight, 0, 0);
+	}
+
+	/**
+	 * Scales an image to a new size and moves it, in a single Lanczos resample.
+	 *
+	 * @param src       the source image
+	 * @param newWidth  the new width of the picture
+	 * @param newHeight the new height of the picture
+	 * @param dx        where the left edge of the scaled picture lands
+	 * @param dy        where the top edge of the scaled picture lands
+	 * @return a new TYPE_INT_ARGB image the size of src, transparent outside the
+	 *         scaled picture
+	 */
+	public BufferedImage scaleAndMove(BufferedImage src, int newWidth, int newHeight, int dx, int dy) {
+		return resample(src, newWidth * 1.0 / src.getWidth(), newHeight * 1.0 / src.getHeight(), dx, dy,
+				ResampleFilter.LANCZOS3);
+	}
+
+	/**
+	 * Scales and moves an image onto a canvas the size of src, see {@link Resampler}.
+	 *
+	 * @param src    the source image
+	 * @param sx     the horizontal scale, positive
+	 * @param sy     the vertical scale, positive
+	 * @param tx     where the left edge of src lands
+	 * @param ty     where the top edge of src lands
+	 * @param filter the reconstruction filter
+	 * @return a new TYPE_INT_ARGB image the size of src, transparent outside the
+	 *         moved source
+	 */
+	public BufferedImage resample(BufferedImage src, double sx, double sy, double tx, double ty,
+			ResampleFilter filter) {
+		try (FilterMetrics.Timer t = metrics.start("resample", src)) {
+			BufferedImage canvas = allocator.allocate(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_ARGB);
+			resampler.resample(src, canvas, sx, sy, tx, ty, filter);
+			return canvas;
+		}
+	}
+
+	/**
+	 * Maps an image onto a canvas the size of src. Scales and moves are resampled
+	 * with Lanczos, see {@link #resample}; rotations and shears with Java2D's
+	 * bilinear interpolation.
+	 *
+	 * @param src the source image
+	 * @param tx  maps source coordinates to canvas coordinates
+	 * @return a new TYPE_INT_ARGB image the size of src, transparent where tx puts
+	 *         no source pixels
+	 */
+	public BufferedImage transform(BufferedImage src, AffineTransform tx) {
+		int scaleAndMove = AffineTransform.TYPE_TRANSLATION | AffineTransform.TYPE_UNIFORM_SCALE
+				| AffineTransform.TYPE_GENERAL_SCALE;
+		if ((tx.getType() & ~scaleAndMove) == 0 && tx.getScaleX() > 0 && tx.getScaleY() > 0)
+			return resample(src, tx.getScaleX(), tx.getScaleY(), tx.getTranslateX(), tx.getTranslateY(),
+					ResampleFilter.LANCZOS3);
+		try (FilterMetrics.Timer t = metrics.start("transform", src)) {
+			BufferedImageOp op = new AffineTransformOp(tx, AffineTransformOp.TYPE_BILINEAR);
+			BufferedImage filteredImage = allocator.allocate(src.getWidth(), src.getHeight(),
+					BufferedImage.TYPE_INT_ARGB);
+			if (!MappedRaster.isMapped(filteredImage)) {
+				op.filter(onHeap(src), filteredImage);
+				return filteredImage;
+			}
+			// AffineTransformOp cannot read or write mapped rasters, so go through the heap
+			BufferedImage heap = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_ARGB);
+			op.filter(onHeap(src), heap);
+			copyRows(heap, filteredImage);
+			return filteredImage;
+		}
+	}
+
+	/**
+	 * Adds a border of the given color to a copy of the image.
+	 *
+	 * @param src   the source image
+	 * @param width the border width
+	 * @param c     the border color
+	 * @return a new image of the same type as src
+	 */
+	public BufferedImage border(BufferedImage src, int width, Color c) {
+		try (FilterMetrics.Timer t = metrics.start("border", src)) {
+			BufferedImage bordered = copy(src);
+			PixelAccess pixels = PixelAccess.of(bordered);
+			int w = bordered.getWidth();
+			int h = bordered.getHeight();
+			int bw = Math.min(width, w);
+			int bh = Math.min(width, h);
+			int argb = c.getRGB();
+			pixels.fill(0, 0, bw, h, argb);
+			pixels.fill(w - bw, 0, bw, h, argb);
+			pixels.fill(bw, 0, w - 2 * bw, bh, argb);
+			pixels.fill(bw, h - bh, w - 2 * bw, bh, argb);
+			return bordered;
+		}
+	}
+
+	/**
+	 * Creates an empty image with the same type, color model and size as src. With an
+	 * allocator other than the heap, images of the common types are created by the
+	 * allocator and may be stored in its layout for that type.
+	 *
+	 * @param src the source image
+	 * @return the new image
+	 */
+	public BufferedImage compatible(BufferedImage src) {
+		if (allocated(src))
+			return allocator.allocate(src.getWidth(), src.getHeight(),
+					MappedRaster.isMapped(src) ? MappedRaster.layoutOf(src) : src.getType());
+		ColorModel model = src.getColorModel();
+		WritableRaster raster = src.getRaster().createCompatibleWritableRaster();
+		return new BufferedImage(model, raster, model.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * Creates a deep copy of an image, preserving its type and color model.
+	 *
+	 * @param src the source image
+	 * @return the copy
+	 */
+	public BufferedImage copy(BufferedImage src) {
+		try (FilterMetrics.Timer t = metrics.start("copy", src)) {
+			if (allocated(src)) {
+				BufferedImage copy = compatible(src);
+				copyRows(src, copy);
+				return copy;
+			}
+			ColorModel model = src.getColorModel();
+			WritableRaster raster = src.copyData(src.getRaster().createCompatibleWritableRaster());
+			return new BufferedImage(model, raster, model.isAlphaPremultiplied(), null);
+		}
+	}
+
+	/**
+	 * src itself, or a heap copy of it if it is mapped or an {@link ImageHistory} view.
+	 */
+	private BufferedImage onHeap(BufferedImage src) {
+		boolean tiled = src.getRaster().getDataBuffer() instanceof TiledDataBuffer;
+		if (!MappedRaster.isMapped(src) && !tiled)
+			return src;
+		BufferedImage heap = new BufferedImage(src.getWidth(), src.getHeight(),
+				tiled ? BufferedImage.TYPE_INT_ARGB : MappedRaster.layoutOf(src));
+		copyRows(src, heap);
+		return heap;
+	}
+
+	/**
+	 * Copies the pixels of src into dst, which has the same size, through PixelAccess.
+	 */
+	private void copyRows(BufferedImage src, BufferedImage dst) {
+		int w = src.getWidth();
+		PixelAccess in = PixelAccess.of(src);
+		PixelAccess out = PixelAccess.of(dst);
+		scheduler.forEach(w, src.getHeight(), (y0, y1) -> {
+			int[] row = new int[w];
+			for (int y = y0; y < y1; y++) {
+				in.getPixels(0, y, w, row, 0);
+				out.setPixels(0, y, w, row, 0);
+			}
+		});
+	}
+
+	/**
+	 * Whether compatible and copy go through the allocator for src: only for a
+	 * non-heap allocator and types that PixelAccess reads without loss.
+	 */
+	private boolean allocated(BufferedImage src) {
+		if (allocator == ImageAllocator.HEAP)
+			return false;
+		switch (src.getType()) {
+		case BufferedImage.TYPE_INT_RGB:
+		case BufferedImage.TYPE_INT_ARGB:
+		case BufferedImage.TYPE_INT_BGR:
+		case BufferedImage.TYPE_BYTE_GRAY:
+		case BufferedImage.TYPE_3BYTE_BGR:
+		case BufferedImage.TYPE_4BYTE_ABGR:
+			return true;
+		default:
+			return MappedRaster.isMapped(src);
+		}
+	}
+}
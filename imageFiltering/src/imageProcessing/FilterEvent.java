@@ -0,0 +1,32 @@
+package imageProcessing;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * One call measured by {@link FilterMetrics}, for JDK Flight Recorder. Events
+ * cost next to nothing unless a recording is running, e.g. with
+ *     java -XX:StartFlightRecording:filename=filters.jfr ...
+ */
+@Name("imageProcessing.Filter")
+@Label("Image Filter")
+@Category("Image Processing")
+@Description("A filter, decode or encode call")
+final class FilterEvent extends Event {
+	@Label("Operation")
+	String operation;
+
+	@Label("Width")
+	int width;
+
+	@Label("Height")
+	int height;
+
+	@Label("Allocated")
+	@DataAmount
+	long allocatedBytes;
+}
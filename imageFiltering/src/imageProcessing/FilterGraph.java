@@ -0,0 +1,527 @@
+package imageProcessing;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A lazily evaluated sequence of filters on a source image. Adding a filter only
+ * records it and returns a new graph; nothing is computed until the pixels are
+ * asked for with {@link #render()} or {@link #histogram()}.
+ *
+ * Before running, the graph is fused:
+ * <ul>
+ * <li>Adjacent point filters (luminance, lut, equalize) become a single table
+ * indexed by the luma of the source pixel, applied in one pass. The histograms
+ * that equalize needs are derived from the histogram of the source, so no
+ * intermediate image is built. A following sobel reads the table as well.</li>
+ * <li>Consecutive scale and move steps become a single resample, clipped to the
+ * canvas each step would have clipped to. Because the pixels are interpolated
+ * once instead of several times, edges come out slightly sharper than with the
+ * eager filters.</li>
+ * </ul>
+ * Every other filter is run as is, one after the other.
+ *
+ * When the source changes in a few places, {@link #update} recomputes only the
+ * pixels of an earlier result that the change can reach.
+ */
+public class FilterGraph {
+	private enum Kind {
+		LUMINANCE, LUT, EQUALIZE, SOBEL, GRAYSCALE, AFFINE, BORDER, CONVOLVE, BOX_BLUR, ADAPTIVE_EQUALIZE,
+		BOX_MEAN, ADAPTIVE_THRESHOLD
+	}
+
+	/**
+	 * One recorded filter.
+	 */
+	private static final class Op {
+		final Kind kind;
+		final int[] lut;
+		final AffineTransform tx;
+		/** Border width, blur or window radius, or tiles per side. */
+		final int size;
+		final Color color;
+		final ConvolutionKernel kernel;
+		final BorderMode mode;
+		/** The CLAHE clip limit or the Sauvola k. */
+		final double factor;
+
+		Op(Kind kind, int[] lut, AffineTransform tx, int size, Color color, ConvolutionKernel kernel,
+				BorderMode mode) {
+			this(kind, lut, tx, size, color, kernel, mode, 0);
+		}
+
+		Op(Kind kind, int[] lut, AffineTransform tx, int size, Color color, ConvolutionKernel kernel,
+				BorderMode mode, double factor) {
+			this.kind = kind;
+			this.lut = lut;
+			this.tx = tx;
+			this.size = size;
+			this.color = color;
+			this.kernel = kernel;
+			this.mode = mode;
+			this.factor = factor;
+		}
+
+		Op(Kind kind) {
+			this(kind, null, null, 0, null, null, null);
+		}
+
+		boolean isPoint() {
+			return kind == Kind.LUMINANCE || kind == Kind.LUT || kind == Kind.EQUALIZE;
+		}
+	}
+
+	private final BufferedImage source;
+	private final FilterEngine engine;
+	private final List<Op> ops;
+	private BufferedImage result;
+
+	private FilterGraph(BufferedImage source, FilterEngine engine, List<Op> ops) {
+		this.source = source;
+		this.engine = engine;
+		this.ops = ops;
+	}
+
+	/**
+	 * Starts an empty graph.
+	 *
+	 * @param source the input image, must not be modified while the graph is in use
+	 * @param engine runs the filters
+	 * @return a graph whose result is source
+	 */
+	public static FilterGraph of(BufferedImage source, FilterEngine engine) {
+		return new FilterGraph(source, engine, Collections.<Op>emptyList());
+	}
+
+	private FilterGraph then(Op op) {
+		List<Op> next = new ArrayList<Op>(ops.size() + 1);
+		next.addAll(ops);
+		next.add(op);
+		return new FilterGraph(source, engine, Collections.unmodifiableList(next));
+	}
+
+	/**
+	 * @see FilterEngine#grayscaleLuminance(BufferedImage)
+	 */
+	public FilterGraph luminance() {
+		return then(new Op(Kind.LUMINANCE));
+	}
+
+	/**
+	 * Replaces each pixel by the gray level lut[luma].
+	 *
+	 * @param lut 256 gray levels indexed by luma
+	 */
+	public FilterGraph lut(int[] lut) {
+		if (lut.length != 256)
+			throw new IllegalArgumentException("lut must have 256 entries: " + lut.length);
+		return then(new Op(Kind.LUT, lut.clone(), null, 0, null, null, null));
+	}
+
+	/**
+	 * Equalizes against the histogram of the image at this point of the graph.
+	 *
+	 * @see FilterEngine#histogramEqualize(BufferedImage, int[])
+	 */
+	public FilterGraph equalize() {
+		return then(new Op(Kind.EQUALIZE));
+	}
+
+	/**
+	 * Sobel edges of the image at this point of the graph, equalized against its
+	 * histogram.
+	 *
+	 * @see FilterEngine#sobelEdgeDetect(BufferedImage, int[])
+	 */
+	public FilterGraph sobel() {
+		return then(new Op(Kind.SOBEL));
+	}
+
+	/**
+	 * Equalizes tile by tile, so unlike equalize it is not fused with the point
+	 * filters around it.
+	 *
+	 * @see FilterEngine#adaptiveEqualize(BufferedImage, int, double)
+	 */
+	public FilterGraph adaptiveEqualize(int tiles, double clipLimit) {
+		if (tiles < 1)
+			throw new IllegalArgumentException("tiles must be positive: " + tiles);
+		return then(new Op(Kind.ADAPTIVE_EQUALIZE, null, null, tiles, null, null, null, clipLimit));
+	}
+
+	/**
+	 * @see FilterEngine#boxMean(BufferedImage, int)
+	 */
+	public FilterGraph boxMean(int radius) {
+		if (radius < 0)
+			throw new IllegalArgumentException("radius must not be negative: " + radius);
+		return then(new Op(Kind.BOX_MEAN, null, null, radius, null, null, null));
+	}
+
+	/**
+	 * @see FilterEngine#adaptiveThreshold(BufferedImage, int, double)
+	 */
+	public FilterGraph adaptiveThreshold(int radius, double k) {
+		if (radius < 0)
+			throw new IllegalArgumentException("radius must not be negative: " + radius);
+		return then(new Op(Kind.ADAPTIVE_THRESHOLD, null, null, radius, null, null, null, k));
+	}
+
+	/**
+	 * @see FilterEngine#grayscale(BufferedImage)
+	 */
+	public FilterGraph grayscale() {
+		return then(new Op(Kind.GRAYSCALE));
+	}
+
+	/**
+	 * @see FilterEngine#convolve(BufferedImage, ConvolutionKernel, BorderMode)
+	 */
+	public FilterGraph convolve(ConvolutionKernel kernel, BorderMode mode) {
+		return then(new Op(Kind.CONVOLVE, null, null, 0, null, kernel, mode));
+	}
+
+	/**
+	 * @see FilterEngine#boxBlur(BufferedImage, int, BorderMode)
+	 */
+	public FilterGraph boxBlur(int radius, BorderMode mode) {
+		return then(new Op(Kind.BOX_BLUR, null, null, radius, null, null, mode));
+	}
+
+	/**
+	 * @see FilterEngine#scale(BufferedImage, int, int)
+	 */
+	public FilterGraph scale(int newWidth, int newHeight) {
+		return then(new Op(Kind.AFFINE, null,
+				AffineTransform.getScaleInstance(newWidth * 1.0 / getWidth(), newHeight * 1.0 / getHeight()),
+				0, null, null, null));
+	}
+
+	/**
+	 * @see FilterEngine#moveImage(BufferedImage, int, int)
+	 */
+	public FilterGraph move(int dx, int dy) {
+		return then(new Op(Kind.AFFINE, null, AffineTransform.getTranslateInstance(dx, dy), 0, null, null, null));
+	}
+
+	/**
+	 * @see FilterEngine#border(BufferedImage, int, Color)
+	 */
+	public FilterGraph border(int width, Color c) {
+		return then(new Op(Kind.BORDER, null, null, width, c, null, null));
+	}
+
+	/**
+	 * The width of the result. None of the filters change the size, so this is the
+	 * width of the source.
+	 */
+	public int getWidth() {
+		return source.getWidth();
+	}
+
+	/**
+	 * The height of the result, the height of the source.
+	 */
+	public int getHeight() {
+		return source.getHeight();
+	}
+
+	/**
+	 * Runs the graph, once; later calls return the same image.
+	 *
+	 * @return the result image, or the source itself if the graph is empty
+	 */
+	public synchronized BufferedImage render() {
+		if (result == null)
+			result = run(ops.size());
+		return result;
+	}
+
+	/**
+	 * Luma histogram of the result. If the graph ends with point filters, it is
+	 * derived from the histogram of the image before them without running them.
+	 *
+	 * @return a 256 cell histogram of luma values
+	 */
+	public int[] histogram() {
+		if (result != null)
+			return engine.histogram(result);
+		int start = ops.size();
+		while (start > 0 && ops.get(start - 1).isPoint())
+			start--;
+		if (start == ops.size())
+			return engine.histogram(render());
+		return new PointRun(run(start), ops.subList(start, ops.size())).histogram();
+	}
+
+	/**
+	 * Brings an earlier result of this graph up to date after the source changed
+	 * inside a region, in place. Only the changed rectangles grown by the reach of
+	 * the filters are recomputed, each from the part of the source around it, so
+	 * the cost follows the size of the change rather than of the image.
+	 *
+	 * @param target  the result of this graph for the source as it was before the
+	 *                change, the size of the source; updated in place
+	 * @param changed where the source changed
+	 * @return the pixels of target recomputed, or null if target is not updated
+	 *         because a filter depends on the whole image: equalize and sobel
+	 *         (through the histogram), clahe, scale, move, border and wrapping
+	 *         convolutions
+	 */
+	public DirtyRegion update(BufferedImage target, DirtyRegion changed) {
+		int halo = halo();
+		int w = getWidth();
+		int h = getHeight();
+		if (halo < 0 || target.getWidth() != w || target.getHeight() != h)
+			return null;
+		DirtyRegion affected = changed.grow(halo, w, h);
+		PixelAccess out = PixelAccess.of(target);
+		for (Rectangle r : affected.getRectangles()) {
+			// the filters read up to halo pixels around r, so that much more of
+			// the source makes the pixels of r come out as in a full render
+			Rectangle in = new Rectangle(r);
+			in.grow(halo, halo);
+			in = in.intersection(new Rectangle(w, h));
+			BufferedImage part = new FilterGraph(crop(source, in), engine, ops).run(ops.size());
+			PixelAccess pixels = PixelAccess.of(part);
+			int[] row = new int[r.width];
+			for (int y = r.y; y < r.y + r.height; y++) {
+				pixels.getPixels(r.x - in.x, y - in.y, r.width, row, 0);
+				out.setPixels(r.x, y, r.width, row, 0);
+			}
+		}
+		return affected;
+	}
+
+	/**
+	 * How far from a changed source pixel the result can change, the sum of the
+	 * radii of the filters, or -1 if the result can change anywhere.
+	 */
+	private int halo() {
+		int halo = 0;
+		for (Op op : ops) {
+			switch (op.kind) {
+			case LUMINANCE:
+			case LUT:
+			case GRAYSCALE:
+				break;
+			case CONVOLVE:
+				if (op.mode == BorderMode.WRAP)
+					return -1;
+				halo += Math.max(op.kernel.getWidth(), op.kernel.getHeight()) / 2;
+				break;
+			case BOX_BLUR:
+				if (op.mode == BorderMode.WRAP)
+					return -1;
+				halo += op.size;
+				break;
+			case BOX_MEAN:
+			case ADAPTIVE_THRESHOLD:
+				halo += op.size;
+				break;
+			default:
+				return -1;
+			}
+		}
+		return halo;
+	}
+
+	/**
+	 * A copy of part of an image, with the same color model.
+	 */
+	private static BufferedImage crop(BufferedImage src, Rectangle r) {
+		ColorModel model = src.getColorModel();
+		WritableRaster raster = model.createCompatibleWritableRaster(r.width, r.height);
+		BufferedImage part = new BufferedImage(model, raster, model.isAlphaPremultiplied(), null);
+		PixelAccess in = PixelAccess.of(src);
+		PixelAccess out = PixelAccess.of(part);
+		int[] row = new int[r.width];
+		for (int y = 0; y < r.height; y++) {
+			in.getPixels(r.x, r.y + y, r.width, row, 0);
+			out.setPixels(0, y, r.width, row, 0);
+		}
+		return part;
+	}
+
+	/**
+	 * Runs the first count ops.
+	 */
+	private BufferedImage run(int count) {
+		BufferedImage img = source;
+		int i = 0;
+		while (i < count) {
+			Op op = ops.get(i);
+			int j = i + 1;
+			if (op.isPoint() || op.kind == Kind.SOBEL) {
+				while (j < count && ops.get(j - 1).kind != Kind.SOBEL
+						&& (ops.get(j).isPoint() || ops.get(j).kind == Kind.SOBEL))
+					j++;
+				img = new PointRun(img, ops.subList(i, j)).apply();
+			} else if (op.kind == Kind.AFFINE) {
+				while (j < count && ops.get(j).kind == Kind.AFFINE)
+					j++;
+				img = affine(img, ops.subList(i, j));
+			} else {
+				img = single(img, op);
+			}
+			i = j;
+		}
+		return img;
+	}
+
+	private BufferedImage single(BufferedImage img, Op op) {
+		switch (op.kind) {
+		case GRAYSCALE:
+			return engine.grayscale(img);
+		case CONVOLVE:
+			return engine.convolve(img, op.kernel, op.mode);
+		case BOX_BLUR:
+			return engine.boxBlur(img, op.size, op.mode);
+		case ADAPTIVE_EQUALIZE:
+			return engine.adaptiveEqualize(img, op.size, op.factor);
+		case BOX_MEAN:
+			return engine.boxMean(img, op.size);
+		case ADAPTIVE_THRESHOLD:
+			return engine.adaptiveThreshold(img, op.size, op.factor);
+		default:
+			return engine.border(img, op.size, op.color);
+		}
+	}
+
+	/**
+	 * Runs consecutive scale and move steps as one resample. Each step draws onto a
+	 * canvas the size of the image, so what survives is the part of the last canvas
+	 * that every earlier canvas also covered; the rest is cleared afterwards.
+	 */
+	private BufferedImage affine(BufferedImage img, List<Op> run) {
+		if (run.size() == 1)
+			return engine.transform(img, run.get(0).tx);
+		Rectangle canvas = new Rectangle(img.getWidth(), img.getHeight());
+		AffineTransform tx = new AffineTransform();
+		Rectangle2D visible = canvas;
+		for (Op op : run) {
+			tx.preConcatenate(op.tx);
+			visible = op.tx.createTransformedShape(visible).getBounds2D().createIntersection(canvas);
+		}
+		BufferedImage out = engine.transform(img, tx);
+		// keep the pixels whose centers lie inside visible
+		int x0 = (int) Math.max(0, Math.round(visible.getMinX()));
+		int y0 = (int) Math.max(0, Math.round(visible.getMinY()));
+		int x1 = (int) Math.min(canvas.width, Math.round(visible.getMaxX()));
+		int y1 = (int) Math.min(canvas.height, Math.round(visible.getMaxY()));
+		if (x1 <= x0 || y1 <= y0) {
+			x0 = x1 = y0 = y1 = 0;
+		}
+		PixelAccess pixels = PixelAccess.of(out);
+		pixels.fill(0, 0, canvas.width, y0, 0);
+		pixels.fill(0, y1, canvas.width, canvas.height - y1, 0);
+		pixels.fill(0, y0, x0, y1 - y0, 0);
+		pixels.fill(x1, y0, canvas.width - x1, y1 - y0, 0);
+		return out;
+	}
+
+	/**
+	 * Adjacent point filters, optionally ending with sobel, composed into one table.
+	 *
+	 * Every point filter maps a pixel p to the gray level t[luma(p)] for its own
+	 * table t (the identity for luminance). Applied to the gray output of the
+	 * previous filter, whose pixels (v, v, v) have luma v (see {@link LumaWeights}),
+	 * two filters compose to t2[t1[i]]. The same substitution moves histograms
+	 * forward: level i of the source luma histogram lands on t1[i].
+	 */
+	private final class PointRun {
+		private final BufferedImage in;
+		private final List<Op> run;
+		private int[] sourceHistogram;
+
+		PointRun(BufferedImage in, List<Op> run) {
+			this.in = in;
+			this.run = run;
+		}
+
+		private int[] sourceHistogram() {
+			if (sourceHistogram == null)
+				sourceHistogram = engine.histogram(in);
+			return sourceHistogram;
+		}
+
+		/**
+		 * Luma histogram of the output of table f applied to in.
+		 */
+		private int[] histogram(int[] f) {
+			if (f == null)
+				return sourceHistogram();
+			int[] src = sourceHistogram();
+			int[] h = new int[256];
+			for (int i = 0; i < 256; i++)
+				h[f[i]] += src[i];
+			return h;
+		}
+
+		/**
+		 * The composed table of the first count filters of the run, or null for none.
+		 */
+		private int[] table(int count) {
+			int n = in.getWidth() * in.getHeight();
+			int[] f = null;
+			for (int k = 0; k < count; k++) {
+				Op op = run.get(k);
+				int[] t;
+				switch (op.kind) {
+				case LUT:
+					t = op.lut;
+					break;
+				case LUMINANCE:
+					t = null;
+					break;
+				default: // EQUALIZE and SOBEL
+					t = engine.equalizationLut(histogram(f), n);
+				}
+				if (f == null) {
+					f = t == null ? identity() : t.clone();
+				} else {
+					int[] next = new int[256];
+					for (int i = 0; i < 256; i++)
+						next[i] = t == null ? f[i] : t[f[i]];
+					f = next;
+				}
+			}
+			return f;
+		}
+
+		int[] histogram() {
+			return histogram(table(run.size()));
+		}
+
+		BufferedImage apply() {
+			int[] f = table(run.size());
+			if (run.get(run.size() - 1).kind == Kind.SOBEL)
+				return engine.sobel(in, f);
+			boolean gray = false;
+			boolean identity = true;
+			for (Op op : run) {
+				gray |= op.kind == Kind.LUMINANCE;
+				identity &= op.kind == Kind.LUMINANCE;
+			}
+			if (!gray)
+				return engine.equalize(in, f);
+			// a single luminance needs no table; after the first luminance the levels shift
+			return engine.grayscaleLuminance(in, identity && run.size() == 1 ? null : f);
+		}
+
+		private int[] identity() {
+			int[] t = new int[256];
+			for (int i = 0; i < 256; i++)
+				t[i] = i;
+			return t;
+		}
+	}
+}
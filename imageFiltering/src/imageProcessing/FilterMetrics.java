@@ -0,0 +1,278 @@
+package imageProcessing;
+
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts the time, pixels and memory that each kind of operation takes, for
+ * every filter of {@link FilterEngine} and for image decoding and encoding. Each
+ * operation is published as a platform MBean named
+ *     imageProcessing:type=FilterMetrics,name=&lt;operation&gt;
+ * so jconsole or any JMX client can watch it, and each call is also recorded as
+ * a {@link FilterEvent} while a flight recording is running.
+ *
+ * Allocated bytes include the row buffers of every band, on whichever pool
+ * thread it ran, as far as the JVM can measure per-thread allocation.
+ */
+public final class FilterMetrics {
+	private static final FilterMetrics INSTANCE = new FilterMetrics();
+	private static final ThreadLocal<Timer> CURRENT = new ThreadLocal<Timer>();
+	private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+	private final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+
+	/**
+	 * The statistics of one operation, as published over JMX.
+	 */
+	public interface OperationMXBean {
+		/** The calls measured. */
+		long getInvocations();
+
+		/** The wall time of all calls. */
+		double getTotalMillis();
+
+		/** The wall time of the last call. */
+		double getLastMillis();
+
+		/** The mean wall time of a call. */
+		double getMeanMillis();
+
+		/** The pixels of the images processed by all calls. */
+		long getPixels();
+
+		/** Pixels processed per second of wall time, in millions. */
+		double getMegapixelsPerSecond();
+
+		/** The heap bytes allocated by all calls, 0 where the JVM cannot tell. */
+		long getAllocatedBytes();
+
+		/** Sets the counts back to 0. */
+		void reset();
+	}
+
+	private static final class Operation implements OperationMXBean {
+		private final LongAdder invocations = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+		private final LongAdder pixels = new LongAdder();
+		private final LongAdder allocated = new LongAdder();
+		private volatile long lastNanos;
+
+		void record(long time, long px, long bytes) {
+			invocations.increment();
+			nanos.add(time);
+			pixels.add(px);
+			allocated.add(bytes);
+			lastNanos = time;
+		}
+
+		@Override
+		public long getInvocations() {
+			return invocations.sum();
+		}
+
+		@Override
+		public double getTotalMillis() {
+			return nanos.sum() / 1e6;
+		}
+
+		@Override
+		public double getLastMillis() {
+			return lastNanos / 1e6;
+		}
+
+		@Override
+		public double getMeanMillis() {
+			long n = invocations.sum();
+			return n == 0 ? 0 : nanos.sum() / 1e6 / n;
+		}
+
+		@Override
+		public long getPixels() {
+			return pixels.sum();
+		}
+
+		@Override
+		public double getMegapixelsPerSecond() {
+			long time = nanos.sum();
+			return time == 0 ? 0 : pixels.sum() * 1e3 / time;
+		}
+
+		@Override
+		public long getAllocatedBytes() {
+			return allocated.sum();
+		}
+
+		@Override
+		public void reset() {
+			invocations.reset();
+			nanos.reset();
+			pixels.reset();
+			allocated.reset();
+			lastNanos = 0;
+		}
+	}
+
+	/**
+	 * Measures one call, from {@link FilterMetrics#start} until closed. Timers
+	 * nest: bands run while a timer is open charge their allocations to it.
+	 */
+	public static final class Timer implements AutoCloseable {
+		private final Operation operation;
+		private final String name;
+		private final Timer parent;
+		private final Thread thread = Thread.currentThread();
+		private final LongAdder bandBytes = new LongAdder();
+		private final FilterEvent event = new FilterEvent();
+		private final long startBytes;
+		private final long start;
+		private int width;
+		private int height;
+
+		private Timer(Operation operation, String name, int width, int height) {
+			this.operation = operation;
+			this.name = name;
+			this.width = width;
+			this.height = height;
+			parent = CURRENT.get();
+			CURRENT.set(this);
+			event.begin();
+			startBytes = allocatedBytes();
+			start = System.nanoTime();
+		}
+
+		/**
+		 * Sets the size of the image the call works on, for calls such as decoding
+		 * that only know it at the end.
+		 */
+		public void setImage(BufferedImage image) {
+			if (image != null) {
+				width = image.getWidth();
+				height = image.getHeight();
+			}
+		}
+
+		/**
+		 * Adds bytes allocated by a band on another thread.
+		 */
+		void charge(long bytes) {
+			bandBytes.add(bytes);
+		}
+
+		/**
+		 * Whether bands run on the thread that opened the timer, whose own
+		 * allocations it measures directly.
+		 */
+		boolean isOwnThread() {
+			return Thread.currentThread() == thread;
+		}
+
+		@Override
+		public void close() {
+			long time = System.nanoTime() - start;
+			long bands = bandBytes.sum();
+			long bytes = THREADS == null ? 0 : allocatedBytes() - startBytes + bands;
+			if (parent != null)
+				parent.charge(bands);
+			CURRENT.set(parent);
+			long pixels = (long) width * height;
+			operation.record(time, pixels, bytes);
+			event.end();
+			if (event.shouldCommit()) {
+				event.operation = name;
+				event.width = width;
+				event.height = height;
+				event.allocatedBytes = bytes;
+				event.commit();
+			}
+		}
+	}
+
+	private FilterMetrics() {
+	}
+
+	/**
+	 * The metrics of this JVM.
+	 */
+	public static FilterMetrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Starts measuring a call on an image.
+	 *
+	 * @param operation the name the call is counted under
+	 * @param src       the image whose pixels are counted
+	 * @return the timer to close when the call is done
+	 */
+	public Timer start(String operation, BufferedImage src) {
+		return start(operation, src.getWidth(), src.getHeight());
+	}
+
+	/**
+	 * Starts measuring a call on an image of the given size.
+	 *
+	 * @param operation the name the call is counted under
+	 * @param width     the width of the image, 0 if not known yet
+	 * @param height    the height of the image, 0 if not known yet
+	 * @return the timer to close when the call is done
+	 */
+	public Timer start(String operation, int width, int height) {
+		return new Timer(operations.computeIfAbsent(operation, FilterMetrics::register), operation, width, height);
+	}
+
+	/**
+	 * The statistics of every operation measured so far, by name.
+	 */
+	public Map<String, OperationMXBean> getOperations() {
+		return Collections.unmodifiableMap(new TreeMap<String, OperationMXBean>(operations));
+	}
+
+	/**
+	 * Sets the counts of every operation back to 0.
+	 */
+	public void reset() {
+		for (Operation op : operations.values())
+			op.reset();
+	}
+
+	/**
+	 * The timer open on the calling thread, or null.
+	 */
+	static Timer current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * The bytes allocated by the calling thread so far, or 0 if the JVM does not tell.
+	 */
+	static long allocatedBytes() {
+		return THREADS == null ? 0 : THREADS.getCurrentThreadAllocatedBytes();
+	}
+
+	private static Operation register(String name) {
+		Operation op = new Operation();
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(op,
+					new ObjectName("imageProcessing:type=FilterMetrics,name=" + name));
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+		return op;
+	}
+
+	private static com.sun.management.ThreadMXBean threads() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return null;
+		com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) threads;
+		return sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled() ? sun : null;
+	}
+}
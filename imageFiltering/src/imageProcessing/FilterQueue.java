@@ -0,0 +1,158 @@
+package imageProcessing;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.swing.SwingUtilities;
+
+/**
+ * Runs filters for a Swing window on a background thread, one after another,
+ * so the event dispatch thread stays free while they work. Each step takes the
+ * result of the step queued before it, or the image shown when the queue was
+ * idle, and its result is handed back on the event dispatch thread once, when
+ * the step is done. Progress is reported per band of rows and
+ * {@link #cancel()} stops the running step at its next band and drops the
+ * queued ones.
+ *
+ * All methods except the steps themselves are meant to be called on the event
+ * dispatch thread.
+ */
+public class FilterQueue {
+	private final FilterEngine engine;
+	private final Listener listener;
+	private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "filters");
+		t.setDaemon(true);
+		return t;
+	});
+	private final AtomicInteger generation = new AtomicInteger();
+	private BufferedImage tip; // the input of the next step, guarded by this
+	private int pending; // steps submitted and not yet published, event dispatch thread only
+
+	/**
+	 * Work done on the background thread.
+	 */
+	public interface Step {
+		/**
+		 * @param engine an engine that reports progress and stops when cancelled
+		 * @param src    the image to work on, not to be modified
+		 * @return the new image, or null if the step changes nothing
+		 * @throws Exception if the step fails; it is reported and the queue goes on
+		 */
+		BufferedImage apply(FilterEngine engine, BufferedImage src) throws Exception;
+	}
+
+	/**
+	 * Told about progress on the event dispatch thread.
+	 */
+	public interface Listener {
+		/**
+		 * @param step    the name of the running step, or null when the queue is idle
+		 * @param percent the rows of the current pass done, 0 to 100
+		 * @param queued  the steps waiting behind it
+		 */
+		void progress(String step, int percent, int queued);
+	}
+
+	/**
+	 * @param engine   runs the filters
+	 * @param listener told about progress
+	 */
+	public FilterQueue(FilterEngine engine, Listener listener) {
+		this.engine = engine;
+		this.listener = listener;
+	}
+
+	/**
+	 * Queues a step.
+	 *
+	 * @param name    shown while the step runs
+	 * @param current the image shown now, the input if nothing is queued
+	 * @param step    the work
+	 * @param publish receives the result on the event dispatch thread, unless the
+	 *                step was cancelled or returned null
+	 */
+	public void submit(String name, BufferedImage current, Step step, Consumer<BufferedImage> publish) {
+		int gen;
+		synchronized (this) {
+			if (pending++ == 0)
+				tip = current;
+			gen = generation.get();
+		}
+		worker.execute(() -> run(name, gen, step, publish));
+	}
+
+	/**
+	 * Stops the running step at its next band and drops the queued ones.
+	 */
+	public void cancel() {
+		synchronized (this) {
+			generation.incrementAndGet();
+		}
+		pending = 0;
+		listener.progress(null, 0, 0);
+	}
+
+	/**
+	 * Whether steps are running or queued.
+	 */
+	public boolean isBusy() {
+		return pending > 0;
+	}
+
+	private void run(String name, int gen, Step step, Consumer<BufferedImage> publish) {
+		if (generation.get() != gen)
+			return;
+		SwingUtilities.invokeLater(() -> {
+			if (generation.get() == gen)
+				listener.progress(name, 0, pending - 1);
+		});
+		AtomicInteger shown = new AtomicInteger(-1);
+		BandScheduler.Monitor monitor = new BandScheduler.Monitor() {
+			@Override
+			public void progress(int rowsDone, int rows) {
+				int percent = (int) (100L * rowsDone / rows);
+				// one update per percent is plenty for a progress bar
+				if (shown.getAndSet(percent) != percent)
+					SwingUtilities.invokeLater(() -> {
+						if (generation.get() == gen)
+							listener.progress(name, percent, pending - 1);
+					});
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return generation.get() != gen;
+			}
+		};
+		BufferedImage result = null;
+		try {
+			BufferedImage src;
+			synchronized (this) {
+				src = tip;
+			}
+			result = step.apply(engine.monitored(monitor), src);
+			synchronized (this) {
+				if (result != null && generation.get() == gen)
+					tip = result;
+			}
+		} catch (CancellationException e) {
+			return;
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		BufferedImage published = result;
+		SwingUtilities.invokeLater(() -> {
+			if (generation.get() != gen)
+				return;
+			pending--;
+			if (published != null)
+				publish.accept(published);
+			if (pending == 0)
+				listener.progress(null, 0, 0);
+		});
+	}
+}
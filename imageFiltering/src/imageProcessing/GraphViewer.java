@@ -5,8 +5,8 @@ import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.geom.Ellipse2D;
-import java.io.File;
-import java.util.Scanner;
+import java.io.IOException;
+import java.nio.file.Path;
 
 import javax.swing.JComponent;
 
@@ -22,64 +22,41 @@ public class GraphViewer extends JComponent {
 	int top;
 	int bottom;
 
-	public GraphViewer(Dimension preferredSize) {
+	/**
+	 * Graphs a histogram handed over in memory.
+	 *
+	 * @param preferredSize the size of the component
+	 * @param histogram     256 counts, not modified
+	 */
+	public GraphViewer(Dimension preferredSize, int[] histogram) {
 		super();
 		setPreferredSize(preferredSize);
 //		grid = new Grid(0, 0, preferredSize.width, preferredSize.height);
 		gradeRange = 60;
-		count = retrieveCount();
-		count = normalizeCount();
+		count = normalizeCount(histogram);
 //		hist = new GradesHistogram(50, 50, count);
 		
 	}
-	
-	private int[] retrieveCount() {
-//		Scanner sc;
-//		
-//		int[] count = new int[256];
-//		try {
-//			sc = new Scanner(new File("histogram.csv"));
-//			String line = sc.nextLine();;
-//			for(int i = 0; i < 2; i++) {
-//				line = sc.nextLine();
-//			}
-//			String[] lumArray = line.split(",?\\s");
-//			int j = 0;
-//			for (String lum : lumArray) {
-//				count[j] = Integer.parseInt(lum);
-//				j++;
-//			}
-//			sc.close();
-//		} catch (Exception e) {
-//			e.printStackTrace();
-//		}
-//		
-//		return count;
-		Scanner sc;
-		int[] count = new int[256];
-		try {
-			sc = new Scanner(new File("histogram.csv"));
-			
-			String line = sc.nextLine();
-			for (int i = 0; i < 2; i++) {
-				line = sc.nextLine();
-			}
-			for (int j = 0; j < line.split(",").length; j++) {
-				count[j] = Integer.parseInt(line.split(",")[j]);
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		
-		return count;
+
+	/**
+	 * Graphs the first histogram of a file written by {@link HistogramFile}.
+	 *
+	 * @param preferredSize the size of the component
+	 * @param file          the histogram file
+	 * @throws IOException if the file cannot be read
+	 */
+	public GraphViewer(Dimension preferredSize, Path file) throws IOException {
+		this(preferredSize, HistogramFile.read(file).get(0).getCounts());
 	}
 	
-	public int[] normalizeCount() {
-		int[] oldCount = retrieveCount();
+	/**
+	 * Scales counts so the largest is 200 pixels high.
+	 */
+	public int[] normalizeCount(int[] oldCount) {
+		double scale = getScale(oldCount, 200);
 		int[] normCount = new int[256];
 		for (int i = 0; i < oldCount.length; i++) {
-			normCount[i] = (int) (oldCount[i] * getScale(200));
-			System.out.println(normCount[i]);
+			normCount[i] = (int) (oldCount[i] * scale);
 		}
 		return normCount;
 	}
@@ -131,7 +108,7 @@ public class GraphViewer extends JComponent {
 //		setRegradeMin();		
 //	}
 
-	private double getScale(double graphHeight) {
+	private double getScale(int[] count, double graphHeight) {
 		  maxCount = count[0];
 		  for (int n : count) {
 		      if (n > maxCount)
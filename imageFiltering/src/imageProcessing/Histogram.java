@@ -0,0 +1,171 @@
+package imageProcessing;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+/**
+ * Red, green, blue and luma histograms of an image, 256 cells each,
+ * gathered in a single pass. Each band of rows counts into its own partial
+ * histogram and the partials are summed afterwards, so workers never write
+ * to shared counters.
+ *
+ * The arrays returned by the getters are the histogram itself and must be
+ * treated as read-only, since histograms are shared through
+ * {@link HistogramCache}. After a partial edit, {@link #replace} derives the
+ * new histograms from the histograms of the changed pixels before and after.
+ */
+public class Histogram {
+	private final int[] red;
+	private final int[] green;
+	private final int[] blue;
+	private final int[] luma;
+	private long pixelCount;
+
+	/**
+	 * An empty histogram, to be filled with {@link #count}.
+	 */
+	Histogram() {
+		red = new int[256];
+		green = new int[256];
+		blue = new int[256];
+		luma = new int[256];
+	}
+
+	Histogram(int[] red, int[] green, int[] blue, int[] luma, long pixelCount) {
+		this.red = red;
+		this.green = green;
+		this.blue = blue;
+		this.luma = luma;
+		this.pixelCount = pixelCount;
+	}
+
+	/**
+	 * Computes the histograms of an image.
+	 *
+	 * @param src       the image
+	 * @param scheduler runs the bands
+	 * @return the histograms
+	 */
+	public static Histogram of(BufferedImage src, BandScheduler scheduler) {
+		return of(src, scheduler, LumaWeights.BT601);
+	}
+
+	/**
+	 * Computes the histograms of an image with the given luma weights.
+	 *
+	 * @param src       the image
+	 * @param scheduler runs the bands
+	 * @param weights   reduce colors to luma
+	 * @return the histograms
+	 */
+	public static Histogram of(BufferedImage src, BandScheduler scheduler, LumaWeights weights) {
+		return of(src, scheduler, weights, new Rectangle(src.getWidth(), src.getHeight()));
+	}
+
+	/**
+	 * Computes the histograms of the pixels of an image inside a region.
+	 *
+	 * @param src       the image
+	 * @param scheduler runs the bands
+	 * @param weights   reduce colors to luma
+	 * @param region    the pixels counted, inside the image
+	 * @return the histograms
+	 */
+	public static Histogram of(BufferedImage src, BandScheduler scheduler, LumaWeights weights,
+			DirtyRegion region) {
+		Histogram sum = new Histogram();
+		for (Rectangle r : region.getRectangles())
+			sum = merge(sum, of(src, scheduler, weights, r));
+		return sum;
+	}
+
+	private static Histogram of(BufferedImage src, BandScheduler scheduler, LumaWeights weights, Rectangle area) {
+		PixelAccess pixels = PixelAccess.of(src);
+		PixelKernels kernels = PixelKernels.get();
+		int x0 = area.x;
+		int y0 = area.y;
+		int w = area.width;
+		int h = area.height;
+		if (w <= 0 || h <= 0)
+			return new Histogram();
+		return scheduler.reduce(w, h, (b0, b1) -> {
+			int[] r = new int[256];
+			int[] g = new int[256];
+			int[] b = new int[256];
+			int[] l = new int[256];
+			int[] row = new int[w];
+			int[] lumaRow = new int[w];
+			for (int y = y0 + b0; y < y0 + b1; y++) {
+				pixels.getPixels(x0, y, w, row, 0);
+				kernels.luma(weights, row, 0, lumaRow, 0, w);
+				for (int x = 0; x < w; x++) {
+					int rgb = row[x];
+					r[rgb >> 16 & 0xFF]++;
+					g[rgb >> 8 & 0xFF]++;
+					b[rgb & 0xFF]++;
+					l[lumaRow[x]]++;
+				}
+			}
+			return new Histogram(r, g, b, l, (long) w * (b1 - b0));
+		}, Histogram::merge);
+	}
+
+	/**
+	 * The histograms after some pixels changed: removed counts the old values of
+	 * the changed pixels and added their new values. This histogram is not modified.
+	 */
+	public Histogram replace(Histogram removed, Histogram added) {
+		int[] r = red.clone();
+		int[] g = green.clone();
+		int[] b = blue.clone();
+		int[] l = luma.clone();
+		for (int i = 0; i < 256; i++) {
+			r[i] += added.red[i] - removed.red[i];
+			g[i] += added.green[i] - removed.green[i];
+			b[i] += added.blue[i] - removed.blue[i];
+			l[i] += added.luma[i] - removed.luma[i];
+		}
+		return new Histogram(r, g, b, l, pixelCount - removed.pixelCount + added.pixelCount);
+	}
+
+	/**
+	 * Counts one more pixel into a histogram that is not shared yet.
+	 */
+	void count(int argb, LumaWeights weights) {
+		red[argb >> 16 & 0xFF]++;
+		green[argb >> 8 & 0xFF]++;
+		blue[argb & 0xFF]++;
+		luma[weights.luma(argb)]++;
+		pixelCount++;
+	}
+
+	private static Histogram merge(Histogram a, Histogram b) {
+		for (int i = 0; i < 256; i++) {
+			a.red[i] += b.red[i];
+			a.green[i] += b.green[i];
+			a.blue[i] += b.blue[i];
+			a.luma[i] += b.luma[i];
+		}
+		return new Histogram(a.red, a.green, a.blue, a.luma, a.pixelCount + b.pixelCount);
+	}
+
+	public int[] getRed() {
+		return red;
+	}
+
+	public int[] getGreen() {
+		return green;
+	}
+
+	public int[] getBlue() {
+		return blue;
+	}
+
+	public int[] getLuma() {
+		return luma;
+	}
+
+	public long getPixelCount() {
+		return pixelCount;
+	}
+}
@@ -0,0 +1,148 @@
+package imageProcessing;
+
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Remembers the histograms of images by identity and version. Whoever mutates an
+ * image in place bumps its version; asking again for an unchanged version returns
+ * the stored histograms without touching the pixels. Entries go away with their
+ * images.
+ *
+ * Partial changes are applied to the stored histograms instead of counting the
+ * whole image again: pixels set one at a time are reported to {@link #edit} and
+ * collected until the histograms are asked for, and an image that differs from
+ * another only inside a {@link DirtyRegion} gets its histograms from
+ * {@link #derive}, which counts only that region.
+ */
+public class HistogramCache {
+	private final FilterEngine engine;
+	private final Map<BufferedImage, Entry> entries = new WeakHashMap<BufferedImage, Entry>();
+
+	private static final class Entry {
+		final long version;
+		final Histogram histogram;
+		/** Pixels edited since version: their old and new values, or null for none. */
+		Histogram removed;
+		Histogram added;
+		/** The version after the edits. */
+		long edited;
+
+		Entry(long version, Histogram histogram) {
+			this.version = version;
+			this.histogram = histogram;
+		}
+
+		/**
+		 * The histograms at version v if they are known without counting, else null.
+		 */
+		Histogram at(long v) {
+			if (v == version)
+				return histogram;
+			if (removed != null && v == edited)
+				return histogram.replace(removed, added);
+			return null;
+		}
+	}
+
+	/**
+	 * @param engine computes histograms on a miss
+	 */
+	public HistogramCache(FilterEngine engine) {
+		this.engine = engine;
+	}
+
+	/**
+	 * Returns the histograms of image at the given version, computing them if needed.
+	 *
+	 * @param image   the image
+	 * @param version the caller's modification count for image
+	 * @return the histograms
+	 */
+	public Histogram get(BufferedImage image, long version) {
+		synchronized (entries) {
+			Entry e = entries.get(image);
+			Histogram h = e == null ? null : e.at(version);
+			if (h != null) {
+				if (h != e.histogram)
+					entries.put(image, new Entry(version, h));
+				return h;
+			}
+		}
+		Histogram h = engine.histograms(image);
+		synchronized (entries) {
+			entries.put(image, new Entry(version, h));
+		}
+		return h;
+	}
+
+	/**
+	 * Records that one pixel of image changed in place, taking it from version
+	 * before to version after. Stored histograms at version before are brought
+	 * up to date by the next {@link #get}; any others are forgotten.
+	 *
+	 * @param image    the image
+	 * @param before   the version before the change
+	 * @param after    the version after the change
+	 * @param oldColor the ARGB value the pixel had
+	 * @param newColor the ARGB value it has now
+	 */
+	public void edit(BufferedImage image, long before, long after, int oldColor, int newColor) {
+		LumaWeights weights = engine.getLumaWeights();
+		synchronized (entries) {
+			Entry e = entries.get(image);
+			if (e == null)
+				return;
+			if (e.version != before && !(e.removed != null && e.edited == before)) {
+				entries.remove(image);
+				return;
+			}
+			if (e.removed == null) {
+				e.removed = new Histogram();
+				e.added = new Histogram();
+			}
+			e.removed.count(oldColor, weights);
+			e.added.count(newColor, weights);
+			e.edited = after;
+		}
+	}
+
+	/**
+	 * Stores the histograms of to at version, derived from the stored histograms of
+	 * from at the same version by counting only the pixels inside changed. Does
+	 * nothing if those are not stored, or if changed covers most of the image, in
+	 * which case counting to itself is as fast.
+	 *
+	 * @param from    the image before the change
+	 * @param to      the image after the change, the size of from and equal to it
+	 *                outside changed
+	 * @param version the version of both images
+	 * @param changed where to may differ from from
+	 */
+	public void derive(BufferedImage from, BufferedImage to, long version, DirtyRegion changed) {
+		Histogram base;
+		synchronized (entries) {
+			Entry e = entries.get(from);
+			base = e == null ? null : e.at(version);
+		}
+		if (base == null || 2 * changed.getArea() > (long) to.getWidth() * to.getHeight())
+			return;
+		BandScheduler scheduler = engine.getScheduler();
+		LumaWeights weights = engine.getLumaWeights();
+		Histogram h = base.replace(Histogram.of(from, scheduler, weights, changed),
+				Histogram.of(to, scheduler, weights, changed));
+		synchronized (entries) {
+			entries.put(to, new Entry(version, h));
+		}
+	}
+
+	/**
+	 * Forgets the histograms of an image.
+	 */
+	public void invalidate(BufferedImage image) {
+		synchronized (entries) {
+			entries.remove(image);
+		}
+	}
+}
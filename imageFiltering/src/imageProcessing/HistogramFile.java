@@ -0,0 +1,165 @@
+package imageProcessing;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes 256 cell histograms in a compact binary format. A file is a
+ * sequence of records, so histograms of several images can be appended to one
+ * file. Each record is
+ *     the magic "HIST" as a big-endian int,
+ *     the image name as a big-endian unsigned short length and UTF-8 bytes,
+ *     the 256 counts as unsigned LEB128 varints.
+ * A histogram of a typical photo takes 300 to 600 bytes. CSV is kept as an
+ * export format for spreadsheets.
+ */
+public class HistogramFile {
+	private static final int MAGIC = 0x48495354; // "HIST"
+	private static final int CELLS = 256;
+
+	/**
+	 * One histogram read from a file.
+	 */
+	public static final class Record {
+		private final String name;
+		private final int[] counts;
+
+		Record(String name, int[] counts) {
+			this.name = name;
+			this.counts = counts;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int[] getCounts() {
+			return counts;
+		}
+	}
+
+	private HistogramFile() {
+	}
+
+	/**
+	 * Replaces the file with a single histogram.
+	 *
+	 * @param file      the file to write
+	 * @param name      the image name stored with the histogram
+	 * @param histogram 256 counts, none negative
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(Path file, String name, int[] histogram) throws IOException {
+		write(file, name, histogram, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * Adds a histogram to the end of the file, creating it if needed.
+	 *
+	 * @param file      the file to append to
+	 * @param name      the image name stored with the histogram
+	 * @param histogram 256 counts, none negative
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void append(Path file, String name, int[] histogram) throws IOException {
+		write(file, name, histogram, StandardOpenOption.APPEND);
+	}
+
+	private static void write(Path file, String name, int[] histogram, StandardOpenOption mode) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode)) {
+			ByteBuffer record = encode(name, histogram);
+			while (record.hasRemaining())
+				channel.write(record);
+		}
+	}
+
+	/**
+	 * Encodes one record, ready to be written.
+	 */
+	static ByteBuffer encode(String name, int[] histogram) {
+		if (histogram.length != CELLS)
+			throw new IllegalArgumentException("histogram must have 256 cells: " + histogram.length);
+		byte[] utf = name.getBytes(StandardCharsets.UTF_8);
+		if (utf.length > 0xFFFF)
+			throw new IllegalArgumentException("name too long: " + utf.length + " bytes");
+		ByteBuffer buf = ByteBuffer.allocate(6 + utf.length + CELLS * 5);
+		buf.putInt(MAGIC).putShort((short) utf.length).put(utf);
+		for (int count : histogram) {
+			if (count < 0)
+				throw new IllegalArgumentException("negative count: " + count);
+			while (count >= 0x80) {
+				buf.put((byte) (count | 0x80));
+				count >>>= 7;
+			}
+			buf.put((byte) count);
+		}
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Reads every histogram in a file, in the order they were written.
+	 *
+	 * @param file the file to read
+	 * @return the records
+	 * @throws IOException if the file cannot be read or is not a histogram file
+	 */
+	public static List<Record> read(Path file) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file));
+		List<Record> records = new ArrayList<Record>();
+		try {
+			while (buf.hasRemaining()) {
+				if (buf.getInt() != MAGIC)
+					throw new IOException(file + ": not a histogram record at byte " + (buf.position() - 4));
+				byte[] utf = new byte[buf.getShort() & 0xFFFF];
+				buf.get(utf);
+				int[] counts = new int[CELLS];
+				for (int i = 0; i < CELLS; i++) {
+					int value = 0;
+					int shift = 0;
+					int b;
+					do {
+						b = buf.get();
+						value |= (b & 0x7F) << shift;
+						shift += 7;
+					} while ((b & 0x80) != 0);
+					counts[i] = value;
+				}
+				records.add(new Record(new String(utf, StandardCharsets.UTF_8), counts));
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException(file + ": truncated histogram record", e);
+		}
+		return records;
+	}
+
+	/**
+	 * Writes a histogram as three CSV lines: the image name, the cell indices 0
+	 * to 255 and the counts.
+	 *
+	 * @param file      the file to write
+	 * @param name      the image name
+	 * @param histogram 256 counts
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void exportCsv(Path file, String name, int[] histogram) throws IOException {
+		try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			StringBuilder line = new StringBuilder(name).append('\n');
+			for (int i = 0; i < histogram.length; i++)
+				line.append(i).append(',');
+			line.append('\n');
+			for (int count : histogram)
+				line.append(count).append(',');
+			out.append(line);
+		}
+	}
+}
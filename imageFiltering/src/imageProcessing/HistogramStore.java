@@ -0,0 +1,601 @@
+package imageProcessing;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A file of the red, green, blue and luma histograms of many images, with a
+ * summary of each channel: mean, entropy and percentiles. Histograms are added
+ * in blocks of up to BLOCK_ROWS images stored column by column: the pixel
+ * counts of all images of the block, then for each channel the means, the
+ * entropies, the percentiles and the 256 counts of every histogram, then the
+ * names. An index at the end of the file lists the blocks, so the histogram of
+ * any image is one read at a computed offset, and a statistic or channel of the
+ * whole set is read without touching the other columns.
+ *
+ * <pre>
+ * block:   "HBLK" rows:int length:long
+ *          pixels:long[rows]
+ *          per channel: mean:double[rows] entropy:double[rows]
+ *                       percentiles:byte[rows * 5]
+ *          per channel: counts:int[rows * 256]
+ *          name ends:int[rows] names:UTF-8
+ * index:   "HIDX" blocks:int (offset:long rows:int)[blocks]
+ * trailer: index offset:long "HEND"
+ * </pre>
+ *
+ * All numbers are big-endian. A block is written over the old index and
+ * followed by a new one, so when an append is cut short the blocks are found
+ * again by walking their headers from the start of the file.
+ */
+public class HistogramStore implements Closeable {
+	/** The most images written as one block. */
+	public static final int BLOCK_ROWS = 1024;
+	/** The percentiles kept for each channel, in percent. */
+	public static final int[] PERCENTILES = { 5, 25, 50, 75, 95 };
+
+	private static final int BLOCK = 0x48424C4B; // "HBLK"
+	private static final int INDEX = 0x48494458; // "HIDX"
+	private static final int END = 0x48454E44; // "HEND"
+	private static final int HEADER = 16;
+	private static final int TRAILER = 12;
+	private static final int CELLS = 256;
+	private static final int CHANNELS = 4;
+
+	/**
+	 * The histograms kept per image.
+	 */
+	public enum Channel {
+		LUMA, RED, GREEN, BLUE;
+
+		int[] of(Histogram h) {
+			switch (this) {
+			case RED:
+				return h.getRed();
+			case GREEN:
+				return h.getGreen();
+			case BLUE:
+				return h.getBlue();
+			default:
+				return h.getLuma();
+			}
+		}
+	}
+
+	/**
+	 * The mean, entropy in bits and percentiles of one 256 cell histogram.
+	 */
+	public static final class Summary {
+		private final double mean;
+		private final double entropy;
+		private final int[] percentiles;
+
+		Summary(double mean, double entropy, int[] percentiles) {
+			this.mean = mean;
+			this.entropy = entropy;
+			this.percentiles = percentiles;
+		}
+
+		/**
+		 * Summarizes a histogram.
+		 *
+		 * @param counts 256 counts
+		 */
+		public static Summary of(int[] counts) {
+			long[] wide = new long[CELLS];
+			for (int v = 0; v < CELLS; v++)
+				wide[v] = counts[v];
+			return of(wide);
+		}
+
+		/**
+		 * Summarizes a histogram with counts too large for ints, such as a
+		 * total from {@link HistogramStore#getTotal}.
+		 *
+		 * @param counts 256 counts
+		 */
+		public static Summary of(long[] counts) {
+			long total = 0;
+			long weighted = 0;
+			for (int v = 0; v < CELLS; v++) {
+				total += counts[v];
+				weighted += (long) v * counts[v];
+			}
+			if (total == 0)
+				return new Summary(0, 0, new int[PERCENTILES.length]);
+			double entropy = 0;
+			for (long c : counts) {
+				if (c > 0) {
+					double p = (double) c / total;
+					entropy -= p * Math.log(p);
+				}
+			}
+			// the smallest value with at least p percent of the pixels at or below it
+			int[] percentiles = new int[PERCENTILES.length];
+			long below = 0;
+			int v = 0;
+			for (int i = 0; i < PERCENTILES.length; i++) {
+				long needed = (total * PERCENTILES[i] + 99) / 100;
+				while (v < CELLS - 1 && below + counts[v] < needed)
+					below += counts[v++];
+				percentiles[i] = v;
+			}
+			return new Summary((double) weighted / total, entropy / Math.log(2), percentiles);
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public double getEntropy() {
+			return entropy;
+		}
+
+		/**
+		 * The values at {@link HistogramStore#PERCENTILES}.
+		 */
+		public int[] getPercentiles() {
+			return percentiles.clone();
+		}
+
+		public int getMedian() {
+			return percentiles[2];
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder s = new StringBuilder(String.format(Locale.ROOT, "mean %.2f entropy %.3f", mean, entropy));
+			for (int i = 0; i < PERCENTILES.length; i++)
+				s.append(" p").append(PERCENTILES[i]).append(' ').append(percentiles[i]);
+			return s.toString();
+		}
+	}
+
+	private final Path file;
+	private final FileChannel channel;
+	/** Where each block starts and how many images it holds. */
+	private final List<long[]> blocks = new ArrayList<long[]>();
+	/** The block of each stored image, and its row in the block. */
+	private int[] blockOf = new int[0];
+	private int[] rowOf = new int[0];
+	private int size;
+	/** Where the next block goes, the end of the last block. */
+	private long end;
+	private final List<String> pendingNames = new ArrayList<String>();
+	private final List<Histogram> pending = new ArrayList<Histogram>();
+	private Map<String, Integer> names;
+	private boolean recovered;
+
+	private HistogramStore(Path file, FileChannel channel) {
+		this.file = file;
+		this.channel = channel;
+	}
+
+	/**
+	 * Opens a store, creating an empty one if the file does not exist.
+	 *
+	 * @param file the store file
+	 * @return the store, to be closed
+	 * @throws IOException if the file cannot be opened or is not a store
+	 */
+	public static HistogramStore open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		HistogramStore store = new HistogramStore(file, channel);
+		try {
+			if (!store.readIndex())
+				store.scanBlocks();
+		} catch (IOException | RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+		return store;
+	}
+
+	/**
+	 * Adds the histograms of an image. They are written with the next block,
+	 * once BLOCK_ROWS are waiting or on {@link #flush} or {@link #close}, and only
+	 * then visible to the getters.
+	 *
+	 * @param name      the image name
+	 * @param histogram the histograms of the image
+	 * @throws IOException if a full block cannot be written
+	 */
+	public synchronized void add(String name, Histogram histogram) throws IOException {
+		pendingNames.add(name);
+		pending.add(histogram);
+		if (pending.size() >= BLOCK_ROWS)
+			flush();
+	}
+
+	/**
+	 * Writes the histograms added so far as one block and rewrites the index.
+	 *
+	 * @throws IOException if the file cannot be written
+	 */
+	public synchronized void flush() throws IOException {
+		if (pending.isEmpty()) {
+			// a recovered store gets its index back even with nothing to add
+			if (recovered && channel.size() != end + 8 + 12L * blocks.size() + TRAILER)
+				writeIndex();
+			return;
+		}
+		ByteBuffer block = encode(pendingNames, pending);
+		write(block, end);
+		int rows = pending.size();
+		blocks.add(new long[] { end, rows });
+		end += block.capacity();
+		indexBlock(blocks.size() - 1);
+		if (names != null)
+			for (int i = 0; i < rows; i++)
+				names.putIfAbsent(pendingNames.get(i), size - rows + i);
+		pendingNames.clear();
+		pending.clear();
+		writeIndex();
+	}
+
+	/**
+	 * Whether the index was missing when the store was opened, so the blocks
+	 * were found by walking their headers. The index is written again by the
+	 * next flush or close.
+	 */
+	public synchronized boolean wasRecovered() {
+		return recovered;
+	}
+
+	/**
+	 * The number of images stored.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * The name of a stored image.
+	 *
+	 * @param image its position, 0 for the first one stored
+	 */
+	public synchronized String getName(int image) throws IOException {
+		long[] block = block(image);
+		int rows = (int) block[1];
+		int row = rowOf[image];
+		long ends = block[0] + namesAt(rows);
+		// each name ends where the next starts, and the first starts at 0
+		ByteBuffer bounds = row == 0 ? read(ends, 4) : read(ends + 4L * (row - 1), 8);
+		int from = row == 0 ? 0 : bounds.getInt();
+		int to = bounds.getInt();
+		ByteBuffer utf = read(ends + 4L * rows + from, to - from);
+		return new String(utf.array(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The position of the first stored image with a name, or -1 if there is none.
+	 * The first call reads every name once.
+	 */
+	public synchronized int indexOf(String name) throws IOException {
+		if (names == null) {
+			Map<String, Integer> map = new HashMap<String, Integer>();
+			for (int i = 0; i < size; i++)
+				map.putIfAbsent(getName(i), i);
+			names = map;
+		}
+		Integer image = names.get(name);
+		return image == null ? -1 : image;
+	}
+
+	/**
+	 * The histograms of a stored image.
+	 *
+	 * @param image its position, 0 for the first one stored
+	 */
+	public synchronized Histogram getHistogram(int image) throws IOException {
+		long[] block = block(image);
+		int rows = (int) block[1];
+		int[][] counts = new int[CHANNELS][];
+		for (Channel c : Channel.values()) {
+			ByteBuffer buf = read(block[0] + countsAt(rows, c) + (long) rowOf[image] * CELLS * 4, CELLS * 4);
+			counts[c.ordinal()] = new int[CELLS];
+			buf.asIntBuffer().get(counts[c.ordinal()]);
+		}
+		long pixels = read(block[0] + HEADER + 8L * rowOf[image], 8).getLong();
+		return new Histogram(counts[Channel.RED.ordinal()], counts[Channel.GREEN.ordinal()],
+				counts[Channel.BLUE.ordinal()], counts[Channel.LUMA.ordinal()], pixels);
+	}
+
+	/**
+	 * The summary of one channel of a stored image.
+	 *
+	 * @param image   its position, 0 for the first one stored
+	 * @param channel the channel
+	 */
+	public synchronized Summary getSummary(int image, Channel channel) throws IOException {
+		long[] block = block(image);
+		int rows = (int) block[1];
+		int row = rowOf[image];
+		long at = block[0] + summaryAt(rows, channel);
+		double mean = read(at + 8L * row, 8).getDouble();
+		double entropy = read(at + 8L * rows + 8L * row, 8).getDouble();
+		ByteBuffer p = read(at + 16L * rows + (long) row * PERCENTILES.length, PERCENTILES.length);
+		return new Summary(mean, entropy, percentiles(p));
+	}
+
+	/**
+	 * The summaries of one channel of every stored image, read from the summary
+	 * columns only.
+	 */
+	public synchronized Summary[] getSummaries(Channel channel) throws IOException {
+		Summary[] all = new Summary[size];
+		int image = 0;
+		for (long[] block : blocks) {
+			int rows = (int) block[1];
+			ByteBuffer column = read(block[0] + summaryAt(rows, channel), rows * (16 + PERCENTILES.length));
+			column.position(16 * rows);
+			for (int row = 0; row < rows; row++)
+				all[image++] = new Summary(column.getDouble(8 * row), column.getDouble(8 * (rows + row)),
+						percentiles(column));
+		}
+		return all;
+	}
+
+	/**
+	 * The histogram of one channel over every stored image, read from that
+	 * channel's count columns only.
+	 *
+	 * @return 256 totals
+	 */
+	public synchronized long[] getTotal(Channel channel) throws IOException {
+		long[] total = new long[CELLS];
+		for (long[] block : blocks) {
+			int rows = (int) block[1];
+			ByteBuffer column = read(block[0] + countsAt(rows, channel), rows * CELLS * 4);
+			for (int i = 0; i < rows * CELLS; i++)
+				total[i & (CELLS - 1)] += column.getInt() & 0xFFFFFFFFL;
+		}
+		return total;
+	}
+
+	/**
+	 * The pixels of all stored images together.
+	 */
+	public synchronized long getPixelCount() throws IOException {
+		long pixels = 0;
+		for (long[] block : blocks) {
+			ByteBuffer column = read(block[0] + HEADER, (int) block[1] * 8);
+			while (column.hasRemaining())
+				pixels += column.getLong();
+		}
+		return pixels;
+	}
+
+	/**
+	 * Writes what is pending and closes the file.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static ByteBuffer encode(List<String> names, List<Histogram> histograms) {
+		int rows = histograms.size();
+		byte[][] utf = new byte[rows][];
+		int nameBytes = 0;
+		for (int i = 0; i < rows; i++) {
+			utf[i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+			nameBytes += utf[i].length;
+		}
+		long length = namesAt(rows) + 4L * rows + nameBytes;
+		if (length > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("block too large: " + length + " bytes");
+		ByteBuffer buf = ByteBuffer.allocate((int) length);
+		buf.putInt(BLOCK).putInt(rows).putLong(length);
+		for (Histogram h : histograms)
+			buf.putLong(h.getPixelCount());
+		for (Channel c : Channel.values()) {
+			Summary[] summaries = new Summary[rows];
+			for (int i = 0; i < rows; i++)
+				summaries[i] = Summary.of(c.of(histograms.get(i)));
+			for (Summary s : summaries)
+				buf.putDouble(s.mean);
+			for (Summary s : summaries)
+				buf.putDouble(s.entropy);
+			for (Summary s : summaries)
+				for (int p : s.percentiles)
+					buf.put((byte) p);
+		}
+		for (Channel c : Channel.values())
+			for (Histogram h : histograms) {
+				// the int view does not move buf, so it is moved past the counts
+				buf.asIntBuffer().put(c.of(h));
+				buf.position(buf.position() + CELLS * 4);
+			}
+		int nameEnd = 0;
+		for (byte[] b : utf)
+			buf.putInt(nameEnd += b.length);
+		for (byte[] b : utf)
+			buf.put(b);
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Where a channel's summary columns start in a block of the given rows.
+	 */
+	private static long summaryAt(int rows, Channel channel) {
+		return HEADER + 8L * rows + (long) channel.ordinal() * rows * (16 + PERCENTILES.length);
+	}
+
+	/**
+	 * Where a channel's count column starts in a block of the given rows.
+	 */
+	private static long countsAt(int rows, Channel channel) {
+		return summaryAt(rows, Channel.LUMA) + (long) CHANNELS * rows * (16 + PERCENTILES.length)
+				+ (long) channel.ordinal() * rows * CELLS * 4;
+	}
+
+	/**
+	 * Where the name ends start in a block of the given rows.
+	 */
+	private static long namesAt(int rows) {
+		return countsAt(rows, Channel.LUMA) + (long) CHANNELS * rows * CELLS * 4;
+	}
+
+	private static int[] percentiles(ByteBuffer buf) {
+		int[] p = new int[PERCENTILES.length];
+		for (int i = 0; i < p.length; i++)
+			p[i] = buf.get() & 0xFF;
+		return p;
+	}
+
+	private long[] block(int image) {
+		if (image < 0 || image >= size)
+			throw new IndexOutOfBoundsException("image " + image + " of " + size);
+		return blocks.get(blockOf[image]);
+	}
+
+	/**
+	 * Adds the images of a block to the per-image lookup.
+	 */
+	private void indexBlock(int b) {
+		int rows = (int) blocks.get(b)[1];
+		if (size + rows > blockOf.length) {
+			int capacity = Math.max(size + rows, 2 * blockOf.length);
+			blockOf = Arrays.copyOf(blockOf, capacity);
+			rowOf = Arrays.copyOf(rowOf, capacity);
+		}
+		for (int row = 0; row < rows; row++) {
+			blockOf[size] = b;
+			rowOf[size++] = row;
+		}
+	}
+
+	/**
+	 * Loads the block list from the index at the end of the file.
+	 *
+	 * @return false if the file does not end with a complete index
+	 */
+	private boolean readIndex() throws IOException {
+		long length = channel.size();
+		if (length == 0)
+			return true;
+		if (length < TRAILER)
+			return false;
+		ByteBuffer trailer = read(length - TRAILER, TRAILER);
+		long at = trailer.getLong();
+		if (trailer.getInt() != END || at < 0 || at > length - TRAILER - 8)
+			return false;
+		ByteBuffer head = read(at, 8);
+		if (head.getInt() != INDEX)
+			return false;
+		int count = head.getInt();
+		if (count < 0 || at + 8 + 12L * count != length - TRAILER)
+			return false;
+		ByteBuffer entries = read(at + 8, 12 * count);
+		for (int b = 0; b < count; b++) {
+			blocks.add(new long[] { entries.getLong(), entries.getInt() });
+			indexBlock(b);
+		}
+		end = at;
+		return true;
+	}
+
+	/**
+	 * Finds the blocks by their headers when the index is missing, keeping the
+	 * complete ones; the next flush writes a new index after them.
+	 */
+	private void scanBlocks() throws IOException {
+		long length = channel.size();
+		long at = 0;
+		while (at + HEADER <= length) {
+			ByteBuffer header = read(at, HEADER);
+			int rows = header.getInt() == BLOCK ? header.getInt() : -1;
+			long bytes = header.getLong();
+			if (rows <= 0 || bytes < namesAt(rows) + 4L * rows || at + bytes > length)
+				break;
+			blocks.add(new long[] { at, rows });
+			indexBlock(blocks.size() - 1);
+			at += bytes;
+		}
+		if (at == 0 && length > 0)
+			throw new IOException(file + ": not a histogram store");
+		recovered = true;
+		end = at;
+	}
+
+	private void writeIndex() throws IOException {
+		ByteBuffer index = ByteBuffer.allocate(8 + 12 * blocks.size() + TRAILER);
+		index.putInt(INDEX).putInt(blocks.size());
+		for (long[] block : blocks)
+			index.putLong(block[0]).putInt((int) block[1]);
+		index.putLong(end).putInt(END);
+		index.flip();
+		write(index, end);
+		channel.truncate(end + index.capacity());
+	}
+
+	private void write(ByteBuffer buf, long at) throws IOException {
+		while (buf.hasRemaining())
+			at += channel.write(buf, at);
+	}
+
+	private ByteBuffer read(long at, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		while (buf.hasRemaining())
+			if (channel.read(buf, at + buf.position()) < 0)
+				throw new EOFException(file + ": truncated at byte " + (at + buf.position()));
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Prints the totals of a store and the summaries of the named images.
+	 *
+	 * <pre>
+	 * java -cp image-filtering.jar imageProcessing.HistogramStore file [image...]
+	 * </pre>
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("usage: HistogramStore file [image...]");
+			System.exit(2);
+		}
+		try (HistogramStore store = open(Paths.get(args[0]))) {
+			if (store.wasRecovered())
+				System.err.println(args[0] + ": index missing, recovered " + store.size() + " images");
+			System.out.printf(Locale.ROOT, "%d images, %d pixels%n", store.size(), store.getPixelCount());
+			for (Channel c : Channel.values()) {
+				double meanOfMeans = 0;
+				for (Summary s : store.getSummaries(c))
+					meanOfMeans += s.getMean();
+				System.out.printf(Locale.ROOT, "%-5s all: %s, mean of image means %.2f%n",
+						c.name().toLowerCase(Locale.ROOT), Summary.of(store.getTotal(c)),
+						store.size() == 0 ? 0 : meanOfMeans / store.size());
+			}
+			for (int i = 1; i < args.length; i++) {
+				int image = store.indexOf(args[i]);
+				if (image < 0) {
+					System.out.println(args[i] + ": not stored");
+					continue;
+				}
+				for (Channel c : Channel.values())
+					System.out.println(args[i] + " " + c.name().toLowerCase(Locale.ROOT) + ": " + store.getSummary(image, c));
+			}
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package imageProcessing;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Creates the images that filters write their results into. The default puts them
+ * on the heap; {@link MappedRaster#allocator} puts them in memory-mapped files.
+ */
+public interface ImageAllocator {
+	/** Allocates ordinary heap images. */
+	ImageAllocator HEAP = (width, height, imageType) -> new BufferedImage(width, height, imageType);
+
+	/**
+	 * @param width     the image width
+	 * @param height    the image height
+	 * @param imageType one of the predefined BufferedImage types
+	 * @return a new image whose pixels are all zero
+	 */
+	BufferedImage allocate(int width, int height, int imageType);
+}
@@ -0,0 +1,199 @@
+package imageProcessing;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decoded images by source, so opening the same file or URL again does not decode
+ * it again. A cached image is used only while its source is unchanged: files are
+ * checked by modification time and length, URLs by a conditional request with the
+ * ETag or Last-Modified date of the cached response.
+ *
+ * The most recently used images are held strongly up to a budget of pixel bytes.
+ * Images pushed out of the budget are still held softly and come back if the
+ * garbage collector has not taken them yet.
+ *
+ * Cached images are shared between callers and must not be modified; copy them first.
+ */
+public class ImageCache {
+	/** How long to wait for an HTTP connection and for each read, in milliseconds. */
+	private static final int CONNECT_TIMEOUT = 10000;
+	private static final int READ_TIMEOUT = 30000;
+
+	private final long maxBytes;
+	private final ImageLoader loader;
+	private final LinkedHashMap<String, Entry> recent = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final Map<String, SoftReference<Entry>> evicted = new HashMap<String, SoftReference<Entry>>();
+	private long bytes;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private static final class Entry {
+		final String validator;
+		final BufferedImage image;
+		final long bytes;
+
+		Entry(String validator, BufferedImage image) {
+			this.validator = validator;
+			this.image = image;
+			this.bytes = bytes(image);
+		}
+	}
+
+	/**
+	 * @param maxBytes the pixel bytes held strongly
+	 */
+	public ImageCache(long maxBytes) {
+		this(maxBytes, new ImageLoader());
+	}
+
+	/**
+	 * @param maxBytes the pixel bytes held strongly
+	 * @param loader   decodes the images that are not cached
+	 */
+	public ImageCache(long maxBytes, ImageLoader loader) {
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+		this.maxBytes = maxBytes;
+		this.loader = loader;
+	}
+
+	/**
+	 * Returns the decoded image of a source, from the cache if it is unchanged.
+	 *
+	 * @param source a file name, or a URL if it starts with http:// or https://
+	 * @return the image, shared and not to be modified
+	 * @throws IOException if the source cannot be read or decoded
+	 */
+	public BufferedImage read(String source) throws IOException {
+		if (source.startsWith("http://") || source.startsWith("https://"))
+			return read(new URL(source));
+		File file = new File(source).getAbsoluteFile();
+		String key = file.getPath();
+		String validator = file.lastModified() + ":" + file.length();
+		Entry e = lookup(key);
+		if (e != null && e.validator.equals(validator)) {
+			hits.incrementAndGet();
+			return e.image;
+		}
+		misses.incrementAndGet();
+		BufferedImage image = loader.read(file.toPath());
+		store(key, new Entry(validator, image));
+		return image;
+	}
+
+	/**
+	 * Returns the decoded image at a URL. Over HTTP a cached image is revalidated
+	 * with a conditional request, other URLs by their last modification date.
+	 */
+	public BufferedImage read(URL url) throws IOException {
+		String key = url.toExternalForm();
+		Entry e = lookup(key);
+		URLConnection conn = url.openConnection();
+		conn.setConnectTimeout(CONNECT_TIMEOUT);
+		conn.setReadTimeout(READ_TIMEOUT);
+		if (e != null && conn instanceof HttpURLConnection) {
+			if (e.validator.startsWith("\""))
+				conn.setRequestProperty("If-None-Match", e.validator);
+			else if (!e.validator.isEmpty())
+				conn.setIfModifiedSince(Long.parseLong(e.validator));
+		}
+		try (InputStream in = conn.getInputStream()) {
+			String validator = conn.getHeaderField("ETag");
+			if (validator == null)
+				validator = conn.getLastModified() == 0 ? "" : Long.toString(conn.getLastModified());
+			boolean notModified = conn instanceof HttpURLConnection
+					&& ((HttpURLConnection) conn).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED;
+			if (e != null && !e.validator.isEmpty() && (notModified || e.validator.equals(validator))) {
+				hits.incrementAndGet();
+				return e.image;
+			}
+			misses.incrementAndGet();
+			BufferedImage image = loader.read(in, url.getPath());
+			if (!validator.isEmpty())
+				store(key, new Entry(validator, image));
+			return image;
+		}
+	}
+
+	/**
+	 * The number of reads answered from the cache.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * The number of reads that decoded their source.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * The pixel bytes currently held strongly.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Forgets every image.
+	 */
+	public synchronized void clear() {
+		recent.clear();
+		evicted.clear();
+		bytes = 0;
+	}
+
+	private synchronized Entry lookup(String key) {
+		Entry e = recent.get(key);
+		if (e != null)
+			return e;
+		SoftReference<Entry> ref = evicted.remove(key);
+		e = ref == null ? null : ref.get();
+		if (e != null)
+			put(key, e);
+		return e;
+	}
+
+	private synchronized void store(String key, Entry e) {
+		evicted.remove(key);
+		put(key, e);
+	}
+
+	/**
+	 * Makes e the most recent entry and moves the least recent ones out of the budget.
+	 */
+	private void put(String key, Entry e) {
+		Entry old = recent.put(key, e);
+		if (old != null)
+			bytes -= old.bytes;
+		bytes += e.bytes;
+		Iterator<Map.Entry<String, Entry>> it = recent.entrySet().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			Map.Entry<String, Entry> eldest = it.next();
+			it.remove();
+			bytes -= eldest.getValue().bytes;
+			evicted.put(eldest.getKey(), new SoftReference<Entry>(eldest.getValue()));
+		}
+		evicted.values().removeIf(ref -> ref.get() == null);
+	}
+
+	private static long bytes(BufferedImage image) {
+		DataBuffer db = image.getRaster().getDataBuffer();
+		return (long) db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+	}
+}
@@ -0,0 +1,357 @@
+package imageProcessing;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * Encodes images to files. Encoders are kept in a pool per format instead of
+ * being looked up in the ImageIO registry for every image, PNG and JPEG are
+ * written with an explicit deflate level and quality, and the output goes
+ * through a buffer straight to a FileChannel.
+ *
+ * Writes can run in the background on a fixed number of encoder threads, and
+ * {@link #export} writes one image in several formats at once.
+ */
+// FilterMetrics timers are closed by try-with-resources and never referenced inside
+@SuppressWarnings("try")
+public class ImageEncoder {
+	/** The bytes buffered before each write to the file. */
+	private static final int BUFFER = 1 << 16;
+	/** The format names of the registered writers, sorted and in lower case. */
+	private static final String[] FORMATS = formats();
+
+	private final int encoders;
+	private final int pngLevel;
+	private final float jpegQuality;
+	private final ExecutorService background;
+	private final ConcurrentMap<String, ImageWriterSpi> writers;
+	private final ConcurrentMap<ImageWriterSpi, Queue<ImageWriter>> idle;
+
+	/**
+	 * Creates an encoder with one thread per processor and the default settings
+	 * of ImageIO: deflate level 4 for PNG and quality 0.75 for JPEG.
+	 */
+	public ImageEncoder() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param encoders the images encoded at once in the background
+	 */
+	public ImageEncoder(int encoders) {
+		if (encoders < 1)
+			throw new IllegalArgumentException("encoders must be positive: " + encoders);
+		this.encoders = encoders;
+		this.pngLevel = 4;
+		this.jpegQuality = 0.75f;
+		this.background = Executors.newFixedThreadPool(encoders, r -> {
+			Thread t = new Thread(r, "image-encode");
+			t.setDaemon(true);
+			return t;
+		});
+		this.writers = new ConcurrentHashMap<String, ImageWriterSpi>();
+		this.idle = new ConcurrentHashMap<ImageWriterSpi, Queue<ImageWriter>>();
+	}
+
+	private ImageEncoder(ImageEncoder e, int pngLevel, float jpegQuality) {
+		this.encoders = e.encoders;
+		this.pngLevel = pngLevel;
+		this.jpegQuality = jpegQuality;
+		this.background = e.background;
+		this.writers = e.writers;
+		this.idle = e.idle;
+	}
+
+	/**
+	 * An encoder sharing the threads and writers of this one that compresses PNG
+	 * with the given deflate level.
+	 *
+	 * @param level 0 for no compression up to 9 for the smallest, slowest files
+	 */
+	public ImageEncoder withPngLevel(int level) {
+		if (level < 0 || level > 9)
+			throw new IllegalArgumentException("PNG level must be 0 to 9: " + level);
+		return new ImageEncoder(this, level, jpegQuality);
+	}
+
+	/**
+	 * An encoder sharing the threads and writers of this one that writes JPEG at
+	 * the given quality.
+	 *
+	 * @param quality 0 for the smallest files up to 1 for the best quality
+	 */
+	public ImageEncoder withJpegQuality(float quality) {
+		if (!(quality >= 0 && quality <= 1))
+			throw new IllegalArgumentException("JPEG quality must be 0 to 1: " + quality);
+		return new ImageEncoder(this, pngLevel, quality);
+	}
+
+	/**
+	 * The informal format names understood by the registered writers.
+	 *
+	 * @return the formats sorted alphabetically and in lower case
+	 */
+	public static String[] getFormats() {
+		return FORMATS.clone();
+	}
+
+	/**
+	 * Whether some registered writer handles the format.
+	 */
+	public static boolean canWrite(String format) {
+		return ImageIO.getImageWritersByFormatName(format).hasNext();
+	}
+
+	/**
+	 * Encodes img to file on the calling thread, replacing the file. Formats that
+	 * cannot store alpha, such as jpeg, get the image without it.
+	 *
+	 * @param img    the image
+	 * @param format the ImageIO format name
+	 * @param file   the file written
+	 * @throws IOException if there is no writer for the format or the file cannot be written
+	 */
+	public void write(BufferedImage img, String format, Path file) throws IOException {
+		String key = format.toLowerCase(Locale.ROOT);
+		ImageWriter writer = borrow(key);
+		try (FilterMetrics.Timer t = FilterMetrics.get().start("encode", img);
+				FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.READ);
+				ChannelStream out = new ChannelStream(channel)) {
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(writable(img, writer), null, null), param(writer, key));
+			out.flush();
+		} finally {
+			giveBack(writer);
+		}
+	}
+
+	/**
+	 * Encodes img to file on an encoder thread.
+	 *
+	 * @return completes when the file is written, or with an UncheckedIOException
+	 */
+	public CompletableFuture<Void> writeAsync(BufferedImage img, String format, Path file) {
+		return CompletableFuture.runAsync(() -> {
+			try {
+				write(img, format, file);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}, background);
+	}
+
+	/**
+	 * Encodes img in several formats at once, each to base followed by a dot and
+	 * the format name.
+	 *
+	 * @param img     the image
+	 * @param base    the path of the files without their suffix
+	 * @param formats the ImageIO format names
+	 * @return completes when every file is written, or with the first failure
+	 */
+	public CompletableFuture<Void> export(BufferedImage img, Path base, String... formats) {
+		CompletableFuture<?>[] writes = new CompletableFuture<?>[formats.length];
+		for (int i = 0; i < formats.length; i++)
+			writes[i] = writeAsync(img, formats[i], base.resolveSibling(base.getFileName() + "." + formats[i]));
+		return CompletableFuture.allOf(writes);
+	}
+
+	/**
+	 * The compression settings of this encoder for the format, or the writer's
+	 * defaults for formats without one.
+	 */
+	private ImageWriteParam param(ImageWriter writer, String format) {
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		if (!param.canWriteCompressed())
+			return param;
+		if (format.equals("png")) {
+			// the JDK writer uses deflate level 9 * (1 - quality), rounded down
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(Math.max(0, 1 - (pngLevel + 0.5f) / 9));
+		} else if (format.equals("jpg") || format.equals("jpeg")) {
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(jpegQuality);
+		}
+		return param;
+	}
+
+	/**
+	 * img, or a copy without alpha when the writer cannot store it.
+	 */
+	private static BufferedImage writable(BufferedImage img, ImageWriter writer) {
+		ImageWriterSpi spi = writer.getOriginatingProvider();
+		if (spi == null || spi.canEncodeImage(ImageTypeSpecifier.createFromRenderedImage(img)))
+			return img;
+		BufferedImage rgb = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics g = rgb.getGraphics();
+		g.drawImage(img, 0, 0, null);
+		g.dispose();
+		return rgb;
+	}
+
+	/**
+	 * A pooled writer for the format, or a new one from the first writer ImageIO finds.
+	 */
+	private ImageWriter borrow(String format) throws IOException {
+		ImageWriterSpi spi = writers.get(format);
+		if (spi != null) {
+			ImageWriter writer = idle.computeIfAbsent(spi, k -> new ConcurrentLinkedQueue<ImageWriter>()).poll();
+			return writer != null ? writer : spi.createWriterInstance();
+		}
+		Iterator<ImageWriter> found = ImageIO.getImageWritersByFormatName(format);
+		if (!found.hasNext())
+			throw new IOException("no writer for format " + format);
+		ImageWriter writer = found.next();
+		if (writer.getOriginatingProvider() != null)
+			writers.put(format, writer.getOriginatingProvider());
+		return writer;
+	}
+
+	private void giveBack(ImageWriter writer) {
+		writer.reset();
+		ImageWriterSpi spi = writer.getOriginatingProvider();
+		Queue<ImageWriter> pool = spi == null ? null
+				: idle.computeIfAbsent(spi, k -> new ConcurrentLinkedQueue<ImageWriter>());
+		if (pool != null && pool.size() < encoders)
+			pool.offer(writer);
+		else
+			writer.dispose();
+	}
+
+	private static String[] formats() {
+		TreeSet<String> set = new TreeSet<String>();
+		for (String s : ImageIO.getWriterFormatNames())
+			set.add(s.toLowerCase(Locale.ROOT));
+		return set.toArray(new String[set.size()]);
+	}
+
+	/**
+	 * An ImageOutputStream that buffers writes and hands them to a FileChannel at
+	 * their position, so writers may seek back to fill in lengths and offsets, and
+	 * read back what they wrote, as the TIFF writer does.
+	 */
+	static final class ChannelStream extends ImageOutputStreamImpl {
+		private final FileChannel channel;
+		private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER);
+		private long bufPos; // where the first buffered byte goes
+
+		ChannelStream(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			checkClosed();
+			flushBits();
+			append();
+			buf.put((byte) b);
+			streamPos++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			checkClosed();
+			flushBits();
+			if (len >= BUFFER) {
+				drain();
+				ByteBuffer src = ByteBuffer.wrap(b, off, len);
+				while (src.hasRemaining())
+					streamPos += channel.write(src, streamPos);
+				bufPos = streamPos;
+				return;
+			}
+			while (len > 0) {
+				append();
+				int n = Math.min(len, buf.remaining());
+				buf.put(b, off, n);
+				off += n;
+				len -= n;
+				streamPos += n;
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			checkClosed();
+			bitOffset = 0;
+			if (len == 0)
+				return 0;
+			drain();
+			int n = channel.read(ByteBuffer.wrap(b, off, len), streamPos);
+			if (n > 0)
+				streamPos += n;
+			return n;
+		}
+
+		@Override
+		public long length() {
+			try {
+				return Math.max(channel.size(), bufPos + buf.position());
+			} catch (IOException ex) {
+				return -1;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			drain();
+			super.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			drain();
+			super.close();
+		}
+
+		/**
+		 * Makes room in the buffer for bytes at streamPos.
+		 */
+		private void append() throws IOException {
+			if (streamPos != bufPos + buf.position() || !buf.hasRemaining()) {
+				drain();
+				bufPos = streamPos;
+			}
+		}
+
+		/**
+		 * Writes the buffered bytes to the file.
+		 */
+		private void drain() throws IOException {
+			buf.flip();
+			while (buf.hasRemaining())
+				bufPos += channel.write(buf, bufPos);
+			buf.clear();
+		}
+	}
+}
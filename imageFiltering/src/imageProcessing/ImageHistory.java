@@ -0,0 +1,298 @@
+package imageProcessing;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Undo and redo for an image that is edited one version at a time. Versions are
+ * stored as ARGB tiles of {@link TiledDataBuffer#TILE} square pixels, and a tile
+ * that did not change from the previous version is shared with it rather than
+ * stored again, so a border or a local edit costs only the tiles it touches.
+ * Stepping to another version hands out a view of its tiles without copying or
+ * decoding anything; writing to a view copies the tiles it writes first.
+ *
+ * Versions beyond the limit, or whose tiles push the bytes held past the budget,
+ * are dropped oldest first. The oldest version, normally the decoded file, and
+ * the current one are never dropped.
+ */
+public class ImageHistory {
+	private final int limit;
+	private final long budget;
+	private final BandScheduler scheduler;
+	private final List<Version> versions = new ArrayList<Version>();
+	private int current = -1;
+	/** The number of versions holding each tile, so shared tiles are counted once. */
+	private final Map<int[], Integer> holders = new IdentityHashMap<int[], Integer>();
+	private long bytes;
+
+	private static final class Version {
+		final int width;
+		final int height;
+		final int[][] tiles;
+
+		Version(int width, int height, int[][] tiles) {
+			this.width = width;
+			this.height = height;
+			this.tiles = tiles;
+		}
+	}
+
+	/**
+	 * An image split into tiles ahead of {@link #commit(Snapshot)}, so reading and
+	 * comparing its pixels can be done off the thread that commits it.
+	 */
+	public static final class Snapshot {
+		private final Version version;
+
+		private Snapshot(Version version) {
+			this.version = version;
+		}
+	}
+
+	/**
+	 * @param limit the most versions kept, at least 2
+	 */
+	public ImageHistory(int limit) {
+		this(limit, new BandScheduler());
+	}
+
+	/**
+	 * @param limit     the most versions kept, at least 2
+	 * @param scheduler compares and copies the tiles of committed images
+	 */
+	public ImageHistory(int limit, BandScheduler scheduler) {
+		this(limit, Long.MAX_VALUE, scheduler);
+	}
+
+	/**
+	 * @param limit     the most versions kept, at least 2
+	 * @param budget    the tile bytes kept; the original and current versions are
+	 *                  kept even if they alone take more
+	 * @param scheduler compares and copies the tiles of committed images
+	 */
+	public ImageHistory(int limit, long budget, BandScheduler scheduler) {
+		if (limit < 2)
+			throw new IllegalArgumentException("limit must be at least 2: " + limit);
+		if (budget < 0)
+			throw new IllegalArgumentException("budget must not be negative: " + budget);
+		this.limit = limit;
+		this.budget = budget;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Forgets all versions and starts over with image.
+	 */
+	public synchronized void reset(BufferedImage image) {
+		reset(snapshot(image));
+	}
+
+	/**
+	 * Forgets all versions and starts over with a snapshot.
+	 */
+	public synchronized void reset(Snapshot snapshot) {
+		versions.clear();
+		holders.clear();
+		bytes = 0;
+		current = -1;
+		commit(snapshot);
+	}
+
+	/**
+	 * Splits image into tiles for a later commit, sharing the tiles equal to
+	 * those of the current version. The history is locked only to look up the
+	 * current version, so this can run on a worker thread while other threads
+	 * step through the history; a snapshot taken before another commit is still
+	 * correct, it may just share fewer tiles.
+	 *
+	 * @param image the version to be, not modified; later changes to it are not recorded
+	 * @return its tiles
+	 */
+	public Snapshot snapshot(BufferedImage image) {
+		Version previous;
+		synchronized (this) {
+			previous = current < 0 ? null : versions.get(current);
+		}
+		return new Snapshot(tiles(image, previous, null));
+	}
+
+	/**
+	 * Records image as the version after the current one, dropping any versions
+	 * that were undone. Tiles equal to those of the current version are shared.
+	 *
+	 * @param image the new version, not modified; later changes to it are not recorded
+	 */
+	public synchronized void commit(BufferedImage image) {
+		commit(image, null);
+	}
+
+	/**
+	 * Records image as the version after the current one, which it equals outside
+	 * changed. Only the tiles that changed touches are read; the others are shared
+	 * with the current version without looking at their pixels.
+	 *
+	 * @param image   the new version, not modified; later changes to it are not recorded
+	 * @param changed where image may differ from the current version, or null if
+	 *                it may differ anywhere
+	 */
+	public synchronized void commit(BufferedImage image, DirtyRegion changed) {
+		Version previous = current < 0 ? null : versions.get(current);
+		add(tiles(image, previous, changed));
+	}
+
+	/**
+	 * Records a snapshot as the version after the current one, dropping any
+	 * versions that were undone. Nothing is read or copied.
+	 */
+	public synchronized void commit(Snapshot snapshot) {
+		add(snapshot.version);
+	}
+
+	private void add(Version next) {
+		List<Version> undone = versions.subList(current + 1, versions.size());
+		for (Version v : undone)
+			release(v);
+		undone.clear();
+		hold(next);
+		versions.add(next);
+		while (versions.size() > 2 && (versions.size() > limit || bytes > budget))
+			release(versions.remove(1));
+		current = versions.size() - 1;
+	}
+
+	private void hold(Version v) {
+		for (int[] tile : v.tiles)
+			if (holders.merge(tile, 1, Integer::sum) == 1)
+				bytes += 4L * tile.length;
+	}
+
+	private void release(Version v) {
+		for (int[] tile : v.tiles)
+			if (holders.merge(tile, -1, Integer::sum) == 0) {
+				holders.remove(tile);
+				bytes -= 4L * tile.length;
+			}
+	}
+
+	public synchronized boolean canUndo() {
+		return current > 0;
+	}
+
+	public synchronized boolean canRedo() {
+		return current >= 0 && current < versions.size() - 1;
+	}
+
+	/**
+	 * Steps back one version.
+	 *
+	 * @return a view of the previous version, or null if there is none
+	 */
+	public synchronized BufferedImage undo() {
+		if (!canUndo())
+			return null;
+		return view(versions.get(--current));
+	}
+
+	/**
+	 * Steps forward to the version last undone.
+	 *
+	 * @return a view of that version, or null if there is none
+	 */
+	public synchronized BufferedImage redo() {
+		if (!canRedo())
+			return null;
+		return view(versions.get(++current));
+	}
+
+	/**
+	 * A view of the oldest version.
+	 */
+	public synchronized BufferedImage original() {
+		return versions.isEmpty() ? null : view(versions.get(0));
+	}
+
+	/**
+	 * The number of versions kept.
+	 */
+	public synchronized int size() {
+		return versions.size();
+	}
+
+	/**
+	 * Bytes held by the tiles of all versions, each shared tile counted once.
+	 */
+	public synchronized long tileBytes() {
+		return bytes;
+	}
+
+	/**
+	 * A TYPE_CUSTOM ARGB image reading the tiles of a version.
+	 */
+	private static BufferedImage view(Version v) {
+		DataBuffer db = new TiledDataBuffer(v.width, v.height, v.tiles);
+		ColorModel model = ColorModel.getRGBdefault();
+		SinglePixelPackedSampleModel sm = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, v.width, v.height,
+				new int[] {0xFF0000, 0xFF00, 0xFF, 0xFF000000});
+		WritableRaster raster = Raster.createWritableRaster(sm, db, null);
+		return new BufferedImage(model, raster, false, null);
+	}
+
+	/**
+	 * Splits image into tiles, reusing the tiles of previous that have the same pixels
+	 * and, if changed is given, those it does not touch.
+	 */
+	private Version tiles(BufferedImage image, Version previous, DirtyRegion changed) {
+		int w = image.getWidth();
+		int h = image.getHeight();
+		DataBuffer db = image.getRaster().getDataBuffer();
+		if (db instanceof TiledDataBuffer)
+			// a view, possibly edited: tiles it never wrote are still shared
+			return new Version(w, h, ((TiledDataBuffer) db).share());
+		int columns = TiledDataBuffer.columns(w);
+		int rows = (h + TiledDataBuffer.TILE - 1) / TiledDataBuffer.TILE;
+		int[][] tiles = new int[columns * rows][];
+		boolean comparable = previous != null && previous.width == w && previous.height == h;
+		boolean[] touched = null;
+		if (comparable && changed != null) {
+			touched = new boolean[columns * rows];
+			for (Rectangle r : changed.getRectangles()) {
+				int c1 = Math.min(columns, (r.x + r.width + TiledDataBuffer.TILE - 1) / TiledDataBuffer.TILE);
+				int r1 = Math.min(rows, (r.y + r.height + TiledDataBuffer.TILE - 1) / TiledDataBuffer.TILE);
+				for (int tr = Math.max(0, r.y / TiledDataBuffer.TILE); tr < r1; tr++)
+					for (int tc = Math.max(0, r.x / TiledDataBuffer.TILE); tc < c1; tc++)
+						touched[tr * columns + tc] = true;
+			}
+		}
+		boolean[] read = touched;
+		PixelAccess pixels = PixelAccess.of(image);
+		scheduler.forEach(w, rows, (r0, r1) -> {
+			for (int r = r0; r < r1; r++) {
+				int y0 = r * TiledDataBuffer.TILE;
+				int th = Math.min(TiledDataBuffer.TILE, h - y0);
+				for (int c = 0; c < columns; c++) {
+					if (read != null && !read[r * columns + c]) {
+						tiles[r * columns + c] = previous.tiles[r * columns + c];
+						continue;
+					}
+					int tw = TiledDataBuffer.tileWidth(c, w);
+					int[] tile = new int[tw * th];
+					for (int y = 0; y < th; y++)
+						pixels.getPixels(c * TiledDataBuffer.TILE, y0 + y, tw, tile, y * tw);
+					int t = r * columns + c;
+					tiles[t] = comparable && Arrays.equals(tile, previous.tiles[t]) ? previous.tiles[t] : tile;
+				}
+			}
+		});
+		return new Version(w, h, tiles);
+	}
+}
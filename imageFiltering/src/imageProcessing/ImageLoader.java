@@ -0,0 +1,411 @@
+package imageProcessing;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * Decodes image files and downloaded bytes. Files are read through a
+ * FileChannel, memory-mapped when large, and handed to the decoder as an
+ * ImageInputStream over the buffer, so nothing is copied through stream buffers.
+ * Decoders are kept in a pool per format instead of being looked up in the
+ * ImageIO registry for every image.
+ *
+ * At most a fixed number of decodes run at once, on whichever threads call, and
+ * they share a budget of decoded bytes: each decode reserves 4 bytes per pixel,
+ * as read from the image header, and waits while the budget is spent. Images
+ * prefetched with {@link #prefetchAfter} keep their bytes until they are read or
+ * dropped, and finished prefetches are dropped first when a read needs room.
+ */
+// FilterMetrics timers are closed by try-with-resources and never referenced inside
+@SuppressWarnings("try")
+public class ImageLoader {
+	/** Files this large are mapped; smaller ones are read into the heap. */
+	private static final long MAP_BYTES = 1 << 20;
+	private static final Set<String> SUFFIXES = Arrays.stream(ImageIO.getReaderFileSuffixes())
+			.map(s -> s.toLowerCase(Locale.ROOT)).collect(Collectors.toSet());
+
+	private final int decoders;
+	private final long budget;
+	private final Semaphore decoding;
+	private final ExecutorService background;
+	private final ConcurrentMap<String, ImageReaderSpi> formats = new ConcurrentHashMap<String, ImageReaderSpi>();
+	private final ConcurrentMap<ImageReaderSpi, Queue<ImageReader>> idle = new ConcurrentHashMap<ImageReaderSpi, Queue<ImageReader>>();
+	private final Map<Path, Prefetch> prefetched = new LinkedHashMap<Path, Prefetch>(); // guarded by this
+	private long available; // guarded by this
+
+	/**
+	 * A decode started ahead of its read.
+	 */
+	private static final class Prefetch {
+		final String validator;
+		Future<BufferedImage> image;
+		long bytes; // reserved from the budget, guarded by the loader
+		boolean dropped; // guarded by the loader
+
+		Prefetch(String validator) {
+			this.validator = validator;
+		}
+	}
+
+	/**
+	 * Creates a loader with one decoder per processor and a quarter of the maximum
+	 * heap as its budget.
+	 */
+	public ImageLoader() {
+		this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / 4);
+	}
+
+	/**
+	 * @param decoders the decodes that may run at once, and the prefetch threads
+	 * @param budget   the decoded bytes that may be in flight or prefetched
+	 */
+	public ImageLoader(int decoders, long budget) {
+		if (decoders < 1 || budget < 1)
+			throw new IllegalArgumentException("decoders and budget must be positive");
+		this.decoders = decoders;
+		this.budget = budget;
+		this.available = budget;
+		this.decoding = new Semaphore(decoders);
+		this.background = Executors.newFixedThreadPool(decoders, r -> {
+			Thread t = new Thread(r, "image-decode");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Decodes an image file, or takes it from the prefetched images if it has not
+	 * changed since.
+	 *
+	 * @param file the file
+	 * @return the image
+	 * @throws IOException if the file cannot be read or decoded
+	 */
+	public BufferedImage read(Path file) throws IOException {
+		file = file.toAbsolutePath().normalize();
+		Prefetch p;
+		synchronized (this) {
+			p = prefetched.remove(file);
+		}
+		if (p != null) {
+			try {
+				BufferedImage image = p.validator.equals(validator(file)) ? p.image.get() : null;
+				if (image != null)
+					return image;
+			} catch (ExecutionException | CancellationException e) {
+				// decoded again below, which reports the failure
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted reading " + file);
+			} finally {
+				drop(p);
+			}
+		}
+		try (ImageInputStream in = open(file)) {
+			return decode(in, suffix(file.toString()), null);
+		}
+	}
+
+	/**
+	 * Decodes an image from a stream, such as an HTTP response, read to its end first.
+	 *
+	 * @param in   the encoded image
+	 * @param name the name of the source, whose suffix hints at the format
+	 * @return the image
+	 * @throws IOException if the stream cannot be read or decoded
+	 */
+	public BufferedImage read(InputStream in, String name) throws IOException {
+		try (ImageInputStream buffered = new BufferStream(ByteBuffer.wrap(in.readAllBytes()))) {
+			return decode(buffered, suffix(name), null);
+		}
+	}
+
+	/**
+	 * Starts decoding the image files that follow file in its directory, sorted by
+	 * name, in the background, and drops earlier prefetches that are not among
+	 * them. Prefetches that do not fit in the budget are skipped.
+	 *
+	 * @param file  the file just opened
+	 * @param count how many of the following files to decode
+	 */
+	public void prefetchAfter(Path file, int count) {
+		Path current = file.toAbsolutePath().normalize();
+		List<Path> images;
+		try (Stream<Path> list = Files.list(current.getParent())) {
+			images = list.filter(Files::isRegularFile).filter(p -> SUFFIXES.contains(suffix(p.toString())))
+					.map(p -> p.toAbsolutePath().normalize()).sorted().collect(Collectors.toList());
+		} catch (IOException e) {
+			return;
+		}
+		int from = images.indexOf(current) + 1;
+		List<Path> next = images.subList(from, Math.min(images.size(), from + count));
+		synchronized (this) {
+			Iterator<Map.Entry<Path, Prefetch>> it = prefetched.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Path, Prefetch> e = it.next();
+				if (!next.contains(e.getKey())) {
+					it.remove();
+					drop(e.getValue());
+				}
+			}
+			for (Path p : next) {
+				if (prefetched.containsKey(p))
+					continue;
+				Prefetch f = new Prefetch(validator(p));
+				f.image = background.submit(() -> prefetch(p, f));
+				prefetched.put(p, f);
+			}
+		}
+	}
+
+	/**
+	 * The decoded bytes not reserved by running or prefetched decodes.
+	 */
+	public synchronized long getAvailableBytes() {
+		return available;
+	}
+
+	private BufferedImage prefetch(Path file, Prefetch p) throws IOException {
+		try (ImageInputStream in = open(file)) {
+			return decode(in, suffix(file.toString()), p);
+		} catch (IOException | RuntimeException e) {
+			drop(p);
+			throw e;
+		} finally {
+			synchronized (this) {
+				notifyAll(); // a read may be waiting to drop it
+			}
+		}
+	}
+
+	/**
+	 * Decodes the first image of in. A read reserves its bytes for the decode only
+	 * and waits for them; a prefetch keeps them, and is skipped if they are not free.
+	 *
+	 * @param owner the prefetch decoding, or null for a read
+	 * @return the image, or null for a skipped prefetch
+	 */
+	private BufferedImage decode(ImageInputStream in, String suffix, Prefetch owner) throws IOException {
+		ImageReader reader = borrow(in, suffix);
+		long bytes = 0;
+		try {
+			reader.setInput(in, true, true);
+			int width = reader.getWidth(0);
+			int height = reader.getHeight(0);
+			long needed = 4L * width * height;
+			if (owner == null) {
+				// an image larger than the whole budget waits for all of it
+				bytes = Math.min(budget, needed);
+				reserve(bytes);
+			} else if (!reserve(owner, needed)) {
+				return null;
+			}
+			try {
+				decoding.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted waiting for a decoder");
+			}
+			try (FilterMetrics.Timer t = FilterMetrics.get().start("decode", width, height)) {
+				return reader.read(0);
+			} finally {
+				decoding.release();
+			}
+		} finally {
+			giveBack(reader);
+			free(bytes);
+		}
+	}
+
+	/**
+	 * A reader for in: a pooled one of the format last seen with this suffix if it
+	 * can decode in, otherwise the first one ImageIO finds.
+	 */
+	private ImageReader borrow(ImageInputStream in, String suffix) throws IOException {
+		ImageReaderSpi spi = formats.get(suffix);
+		if (spi != null && spi.canDecodeInput(in)) {
+			ImageReader reader = idle.computeIfAbsent(spi, k -> new ConcurrentLinkedQueue<ImageReader>()).poll();
+			return reader != null ? reader : spi.createReaderInstance();
+		}
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+		if (!readers.hasNext())
+			throw new IOException("no reader for " + (suffix.isEmpty() ? "this image" : suffix));
+		ImageReader reader = readers.next();
+		if (reader.getOriginatingProvider() != null)
+			formats.put(suffix, reader.getOriginatingProvider());
+		return reader;
+	}
+
+	private void giveBack(ImageReader reader) {
+		reader.reset();
+		ImageReaderSpi spi = reader.getOriginatingProvider();
+		Queue<ImageReader> pool = spi == null ? null
+				: idle.computeIfAbsent(spi, k -> new ConcurrentLinkedQueue<ImageReader>());
+		if (pool != null && pool.size() < decoders)
+			pool.offer(reader);
+		else
+			reader.dispose();
+	}
+
+	/**
+	 * Waits until bytes are free, dropping finished prefetches to make room.
+	 */
+	private synchronized void reserve(long bytes) throws InterruptedIOException {
+		while (available < bytes) {
+			Iterator<Prefetch> it = prefetched.values().iterator();
+			Prefetch done = null;
+			while (done == null && it.hasNext()) {
+				Prefetch p = it.next();
+				if (p.image.isDone() && p.bytes > 0)
+					done = p;
+			}
+			if (done != null) {
+				prefetched.values().remove(done);
+				drop(done);
+				continue;
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted waiting for decode budget");
+			}
+		}
+		available -= bytes;
+	}
+
+	/**
+	 * Reserves bytes for a prefetch if they are free and it was not dropped.
+	 */
+	private synchronized boolean reserve(Prefetch p, long bytes) {
+		if (p.dropped || available < bytes)
+			return false;
+		available -= bytes;
+		p.bytes = bytes;
+		return true;
+	}
+
+	/**
+	 * Cancels a prefetch and gives its bytes back.
+	 */
+	private synchronized void drop(Prefetch p) {
+		p.dropped = true;
+		if (p.image != null)
+			p.image.cancel(false);
+		free(p.bytes);
+		p.bytes = 0;
+	}
+
+	private synchronized void free(long bytes) {
+		if (bytes == 0)
+			return;
+		available += bytes;
+		notifyAll();
+	}
+
+	/**
+	 * Opens a file as an image stream over its bytes.
+	 */
+	private static ImageInputStream open(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				return new FileImageInputStream(file.toFile());
+			if (size >= MAP_BYTES)
+				return new BufferStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+			ByteBuffer buf = ByteBuffer.allocate((int) size);
+			while (buf.hasRemaining())
+				if (channel.read(buf) < 0)
+					break;
+			buf.flip();
+			return new BufferStream(buf);
+		}
+	}
+
+	/**
+	 * The same modification time and length check as {@link ImageCache}.
+	 */
+	private static String validator(Path file) {
+		try {
+			return Files.getLastModifiedTime(file).toMillis() + ":" + Files.size(file);
+		} catch (IOException e) {
+			return "";
+		}
+	}
+
+	private static String suffix(String name) {
+		int dot = name.lastIndexOf('.');
+		return dot < 0 || name.indexOf('/', dot) >= 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * An ImageInputStream over the bytes of a buffer, seekable without caching.
+	 */
+	static final class BufferStream extends ImageInputStreamImpl {
+		private final ByteBuffer buf;
+
+		BufferStream(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public int read() throws IOException {
+			checkClosed();
+			bitOffset = 0;
+			if (streamPos >= buf.limit())
+				return -1;
+			return buf.get((int) streamPos++) & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			checkClosed();
+			bitOffset = 0;
+			if (len == 0)
+				return 0;
+			int n = (int) Math.min(len, buf.limit() - streamPos);
+			if (n <= 0)
+				return -1;
+			buf.get((int) streamPos, b, off, n);
+			streamPos += n;
+			return n;
+		}
+
+		@Override
+		public long length() {
+			return buf.limit();
+		}
+	}
+}
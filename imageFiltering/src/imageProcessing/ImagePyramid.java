@@ -0,0 +1,115 @@
+package imageProcessing;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An image and successively halved copies of it, down to about 64 pixels on the
+ * longer side. Each level averages 2x2 blocks of the level above, channel by
+ * channel, so a level is a faithful small stand-in for the image: filters run
+ * on it give a quick preview of the full result, and its histogram has the
+ * shape of the full histogram.
+ */
+public class ImagePyramid {
+	private static final int SMALLEST = 64;
+
+	private final List<BufferedImage> levels;
+
+	private ImagePyramid(List<BufferedImage> levels) {
+		this.levels = Collections.unmodifiableList(levels);
+	}
+
+	/**
+	 * Builds the pyramid of an image.
+	 *
+	 * @param src       level 0, not copied
+	 * @param scheduler runs the rows of each level in parallel
+	 * @return the pyramid
+	 */
+	public static ImagePyramid of(BufferedImage src, BandScheduler scheduler) {
+		List<BufferedImage> levels = new ArrayList<BufferedImage>();
+		levels.add(src);
+		BufferedImage level = src;
+		while (Math.max(level.getWidth(), level.getHeight()) > SMALLEST) {
+			level = half(level, scheduler);
+			levels.add(level);
+		}
+		return new ImagePyramid(levels);
+	}
+
+	/**
+	 * The largest level with at most maxPixels pixels, or the smallest level if
+	 * none is that small.
+	 *
+	 * @param maxPixels the pixel budget
+	 * @return the level, level 0 if the image itself fits
+	 */
+	public BufferedImage proxy(long maxPixels) {
+		for (BufferedImage level : levels)
+			if ((long) level.getWidth() * level.getHeight() <= maxPixels)
+				return level;
+		return levels.get(levels.size() - 1);
+	}
+
+	/**
+	 * Halves an image until it has at most maxPixels pixels, without keeping the
+	 * levels in between.
+	 *
+	 * @return src itself if it is small enough already
+	 */
+	public static BufferedImage downsample(BufferedImage src, long maxPixels, BandScheduler scheduler) {
+		BufferedImage level = src;
+		while ((long) level.getWidth() * level.getHeight() > maxPixels
+				&& Math.max(level.getWidth(), level.getHeight()) > 1)
+			level = half(level, scheduler);
+		return level;
+	}
+
+	/**
+	 * Level k, 0 being the image itself.
+	 */
+	public BufferedImage level(int k) {
+		return levels.get(k);
+	}
+
+	public int getLevels() {
+		return levels.size();
+	}
+
+	/**
+	 * Averages 2x2 blocks into a TYPE_INT_ARGB image of half the size, rounded up.
+	 * An odd last row or column is averaged with itself.
+	 */
+	static BufferedImage half(BufferedImage src, BandScheduler scheduler) {
+		int w = src.getWidth();
+		int h = src.getHeight();
+		int hw = (w + 1) / 2;
+		int hh = (h + 1) / 2;
+		BufferedImage dst = new BufferedImage(hw, hh, BufferedImage.TYPE_INT_ARGB);
+		PixelAccess in = PixelAccess.of(src);
+		PixelAccess out = PixelAccess.of(dst);
+		scheduler.forEach(hw, hh, (y0, y1) -> {
+			int[] top = new int[w + 1];
+			int[] bottom = new int[w + 1];
+			int[] row = new int[hw];
+			for (int y = y0; y < y1; y++) {
+				in.getPixels(0, 2 * y, w, top, 0);
+				in.getPixels(0, Math.min(2 * y + 1, h - 1), w, bottom, 0);
+				top[w] = top[w - 1];
+				bottom[w] = bottom[w - 1];
+				for (int x = 0; x < hw; x++) {
+					int a = top[2 * x], b = top[2 * x + 1], c = bottom[2 * x], d = bottom[2 * x + 1];
+					// two channels at a time, each sum fits in its 16 bit lane
+					int rb = (a & 0xFF00FF) + (b & 0xFF00FF) + (c & 0xFF00FF) + (d & 0xFF00FF) + 0x20002;
+					int ag = (a >>> 8 & 0xFF00FF) + (b >>> 8 & 0xFF00FF) + (c >>> 8 & 0xFF00FF) + (d >>> 8 & 0xFF00FF)
+							+ 0x20002;
+					row[x] = (ag << 6 & 0xFF00FF00) | (rb >>> 2 & 0xFF00FF);
+				}
+				out.setPixels(0, y, hw, row, 0);
+			}
+		});
+		return dst;
+	}
+}
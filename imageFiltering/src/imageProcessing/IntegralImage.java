@@ -0,0 +1,242 @@
+package imageProcessing;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Summed-area tables of the luma of an image and of its square. Entry (x, y)
+ * holds the sum over all pixels above and to the left of it, so the sum, mean
+ * and variance of any rectangle take four lookups in each table, whatever its
+ * size, and filters over windows of any radius cost the same per pixel.
+ *
+ * The tables are built in row bands: each band sums its own rows, the last rows
+ * of the bands are then carried down in order, and finally each band adds the
+ * total of the bands above it. On a single thread the whole image is one band.
+ */
+public class IntegralImage {
+	private final int width;
+	private final int height;
+	/** Row stride of the tables, which have a leading row and column of zeros. */
+	private final int stride;
+	private final long[] sum;
+	private final long[] squares;
+
+	private IntegralImage(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.stride = width + 1;
+		sum = new long[stride * (height + 1)];
+		squares = new long[stride * (height + 1)];
+	}
+
+	/**
+	 * Builds the tables of an image.
+	 *
+	 * @param src       the image
+	 * @param scheduler runs the bands
+	 * @return the tables
+	 */
+	public static IntegralImage of(BufferedImage src, BandScheduler scheduler) {
+		return of(src, scheduler, LumaWeights.BT601);
+	}
+
+	/**
+	 * Builds the tables of an image with the given luma weights.
+	 *
+	 * @param src       the image
+	 * @param scheduler runs the bands
+	 * @param weights   reduce colors to luma
+	 * @return the tables
+	 */
+	public static IntegralImage of(BufferedImage src, BandScheduler scheduler, LumaWeights weights) {
+		PixelAccess pixels = PixelAccess.of(src);
+		PixelKernels kernels = PixelKernels.get();
+		int w = pixels.getWidth();
+		int h = pixels.getHeight();
+		if ((long) (w + 1) * (h + 1) > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("image too large for a summed-area table: " + w + "x" + h);
+		IntegralImage t = new IntegralImage(w, h);
+		if (w == 0 || h == 0)
+			return t;
+		int rows = scheduler.getParallelism() == 1 ? h : scheduler.bandRows(w, h);
+		int bands = (h + rows - 1) / rows;
+		long[] sum = t.sum;
+		long[] squares = t.squares;
+		int stride = t.stride;
+
+		// each band on its own, as if the image started at its first row
+		scheduler.forEach(w * rows, bands, (b0, b1) -> {
+			int[] row = new int[w];
+			for (int y = b0 * rows; y < Math.min(h, b1 * rows); y++) {
+				pixels.getPixels(0, y, w, row, 0);
+				kernels.luma(weights, row, 0, row, 0, w);
+				int above = y % rows == 0 ? -1 : y * stride + 1;
+				int at = (y + 1) * stride + 1;
+				long s = 0, q = 0;
+				for (int x = 0; x < w; x++) {
+					int v = row[x];
+					s += v;
+					q += v * v;
+					sum[at + x] = above < 0 ? s : s + sum[above + x];
+					squares[at + x] = above < 0 ? q : q + squares[above + x];
+				}
+			}
+		});
+		if (bands == 1)
+			return t;
+		// the last row of each band becomes a total of everything above it
+		for (int b = 1; b < bands; b++) {
+			int carry = b * rows * stride + 1;
+			int last = Math.min(h, (b + 1) * rows) * stride + 1;
+			for (int x = 0; x < w; x++) {
+				sum[last + x] += sum[carry + x];
+				squares[last + x] += squares[carry + x];
+			}
+		}
+		// and the other rows add the total of the bands above theirs
+		scheduler.forEach(w * rows, bands - 1, (b0, b1) -> {
+			for (int b = b0 + 1; b < b1 + 1; b++) {
+				int carry = b * rows * stride + 1;
+				int end = Math.min(h, (b + 1) * rows);
+				for (int y = b * rows + 1; y < end; y++) {
+					int at = y * stride + 1;
+					for (int x = 0; x < w; x++) {
+						sum[at + x] += sum[carry + x];
+						squares[at + x] += squares[carry + x];
+					}
+				}
+			}
+		});
+		return t;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * The number of pixels of a rectangle that lie inside the image.
+	 */
+	public long area(int x, int y, int w, int h) {
+		int x0 = clamp(x, width), x1 = clamp((long) x + w, width);
+		int y0 = clamp(y, height), y1 = clamp((long) y + h, height);
+		return x1 <= x0 || y1 <= y0 ? 0 : (long) (x1 - x0) * (y1 - y0);
+	}
+
+	/**
+	 * The luma sum of the pixels of a rectangle that lie inside the image.
+	 *
+	 * @param x the left edge
+	 * @param y the top edge
+	 * @param w the width
+	 * @param h the height
+	 */
+	public long sum(int x, int y, int w, int h) {
+		return rect(sum, x, y, w, h);
+	}
+
+	/**
+	 * The mean luma of the pixels of a rectangle that lie inside the image, 0 if none do.
+	 */
+	public double mean(int x, int y, int w, int h) {
+		long n = area(x, y, w, h);
+		return n == 0 ? 0 : (double) sum(x, y, w, h) / n;
+	}
+
+	/**
+	 * The variance of the luma of the pixels of a rectangle that lie inside the
+	 * image, 0 if none do.
+	 */
+	public double variance(int x, int y, int w, int h) {
+		long n = area(x, y, w, h);
+		if (n == 0)
+			return 0;
+		double mean = (double) sum(x, y, w, h) / n;
+		return Math.max(0, (double) rect(squares, x, y, w, h) / n - mean * mean);
+	}
+
+	/**
+	 * Writes the mean luma of the (2 * radius + 1)^2 window around each pixel to
+	 * dst as gray levels. Windows are cut off at the edges of the image.
+	 *
+	 * @param dst       receives the gray levels, the size of the image
+	 * @param radius    the number of pixels on each side of the center
+	 * @param scheduler runs the row bands
+	 */
+	public void boxMean(BufferedImage dst, int radius, BandScheduler scheduler) {
+		if (radius < 0)
+			throw new IllegalArgumentException("radius must not be negative: " + radius);
+		PixelAccess out = PixelAccess.of(dst);
+		scheduler.forEach(width, height, (r0, r1) -> {
+			int[] line = new int[width];
+			for (int y = r0; y < r1; y++) {
+				int top = Math.max(0, y - radius) * stride;
+				int bottom = Math.min(height, y + radius + 1) * stride;
+				int rows = (bottom - top) / stride;
+				for (int x = 0; x < width; x++) {
+					int x0 = Math.max(0, x - radius);
+					int x1 = Math.min(width, x + radius + 1);
+					long n = (long) (x1 - x0) * rows;
+					long s = sum[bottom + x1] - sum[bottom + x0] - sum[top + x1] + sum[top + x0];
+					line[x] = (int) ((s + n / 2) / n);
+				}
+				out.setGrayPixels(0, y, width, line, 0);
+			}
+		});
+	}
+
+	/**
+	 * Sauvola thresholding: a pixel becomes white if its luma exceeds
+	 * m * (1 + k * (s / 128 - 1)), where m and s are the mean and standard
+	 * deviation of the (2 * radius + 1)^2 window around it, and black otherwise.
+	 * Flat windows get a threshold below their mean, so uneven lighting does not
+	 * turn into black areas; k = 0 thresholds at the local mean.
+	 *
+	 * @param dst       receives black and white, the size of the image
+	 * @param radius    the number of pixels on each side of the center
+	 * @param k         how far low contrast lowers the threshold, 0.2 to 0.5 is typical
+	 * @param scheduler runs the row bands
+	 */
+	public void threshold(BufferedImage dst, int radius, double k, BandScheduler scheduler) {
+		if (radius < 0)
+			throw new IllegalArgumentException("radius must not be negative: " + radius);
+		PixelAccess out = PixelAccess.of(dst);
+		scheduler.forEach(width, height, (r0, r1) -> {
+			int[] line = new int[width];
+			for (int y = r0; y < r1; y++) {
+				int top = Math.max(0, y - radius) * stride;
+				int bottom = Math.min(height, y + radius + 1) * stride;
+				int rows = (bottom - top) / stride;
+				int at = y * stride;
+				for (int x = 0; x < width; x++) {
+					int x0 = Math.max(0, x - radius);
+					int x1 = Math.min(width, x + radius + 1);
+					double n = (double) (x1 - x0) * rows;
+					double m = (sum[bottom + x1] - sum[bottom + x0] - sum[top + x1] + sum[top + x0]) / n;
+					double q = (squares[bottom + x1] - squares[bottom + x0] - squares[top + x1] + squares[top + x0]) / n;
+					double s = Math.sqrt(Math.max(0, q - m * m));
+					// the pixel itself, from the four entries around it
+					long v = sum[at + stride + x + 1] - sum[at + stride + x] - sum[at + x + 1] + sum[at + x];
+					line[x] = v > m * (1 + k * (s / 128 - 1)) ? 255 : 0;
+				}
+				out.setGrayPixels(0, y, width, line, 0);
+			}
+		});
+	}
+
+	private long rect(long[] table, int x, int y, int w, int h) {
+		int x0 = clamp(x, width), x1 = clamp((long) x + w, width);
+		int y0 = clamp(y, height), y1 = clamp((long) y + h, height);
+		if (x1 <= x0 || y1 <= y0)
+			return 0;
+		int top = y0 * stride, bottom = y1 * stride;
+		return table[bottom + x1] - table[bottom + x0] - table[top + x1] + table[top + x0];
+	}
+
+	private static int clamp(long v, int max) {
+		return (int) Math.max(0, Math.min(v, max));
+	}
+}
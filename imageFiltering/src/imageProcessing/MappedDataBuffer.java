@@ -0,0 +1,62 @@
+package imageProcessing;
+
+import java.awt.image.DataBuffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A DataBuffer over memory-mapped segments of whole rows, holding either one int
+ * or one byte per pixel. Created by {@link MappedRaster}.
+ */
+final class MappedDataBuffer extends DataBuffer {
+	private final ByteBuffer[] bytes;
+	private final IntBuffer[] ints;
+	private final int elementsPerSegment;
+
+	MappedDataBuffer(int dataType, int width, int height, int rowsPerSegment, ByteBuffer[] segments) {
+		super(dataType, width * height);
+		this.bytes = segments;
+		this.elementsPerSegment = rowsPerSegment * width;
+		if (dataType == TYPE_INT) {
+			ints = new IntBuffer[segments.length];
+			for (int i = 0; i < segments.length; i++)
+				ints[i] = segments[i].asIntBuffer();
+		} else {
+			ints = null;
+		}
+	}
+
+	@Override
+	public int getElem(int bank, int i) {
+		if (ints != null)
+			return ints[i / elementsPerSegment].get(i % elementsPerSegment);
+		return bytes[i / elementsPerSegment].get(i % elementsPerSegment) & 0xFF;
+	}
+
+	@Override
+	public void setElem(int bank, int i, int val) {
+		if (ints != null)
+			ints[i / elementsPerSegment].put(i % elementsPerSegment, val);
+		else
+			bytes[i / elementsPerSegment].put(i % elementsPerSegment, (byte) val);
+	}
+
+	/**
+	 * Copies n ints starting at element i, which must not cross a segment.
+	 */
+	void getInts(int i, int[] dst, int off, int n) {
+		ints[i / elementsPerSegment].get(i % elementsPerSegment, dst, off, n);
+	}
+
+	void putInts(int i, int[] src, int off, int n) {
+		ints[i / elementsPerSegment].put(i % elementsPerSegment, src, off, n);
+	}
+
+	ByteBuffer byteSegment(int i) {
+		return bytes[i / elementsPerSegment];
+	}
+
+	int segmentOffset(int i) {
+		return i % elementsPerSegment;
+	}
+}
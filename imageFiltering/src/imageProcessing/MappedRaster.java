@@ -0,0 +1,230 @@
+package imageProcessing;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Pixels stored in a memory-mapped file instead of on the Java heap. The pixels are
+ * exposed as an ordinary (TYPE_CUSTOM) BufferedImage, so they can be displayed,
+ * saved with ImageIO and filtered; {@link PixelAccess} reads and writes the mapping
+ * directly. Three layouts are stored: packed RGB and ARGB ints, and gray bytes.
+ *
+ * A raster file starts with a 16 byte header (magic, image type, width, height,
+ * little-endian) followed by the rows, so a file written once can be opened again
+ * by a later run without decoding anything. The mapping is split into segments of
+ * whole rows, each under 1 GiB, so images may exceed the 2 GiB limit of a single
+ * buffer.
+ */
+public class MappedRaster {
+	private static final int MAGIC = 0x52474D49; // "IMGR" read as little-endian
+	private static final int HEADER_BYTES = 16;
+	private static final long SEGMENT_BYTES = 1L << 30;
+
+	private final Path file;
+	private final int imageType;
+	private final BufferedImage image;
+
+	private MappedRaster(Path file, FileChannel channel, int width, int height, int imageType,
+			FileChannel.MapMode mode) throws IOException {
+		this.file = file;
+		this.imageType = imageType;
+		int pixelBytes = imageType == BufferedImage.TYPE_BYTE_GRAY ? 1 : 4;
+		long rowBytes = (long) width * pixelBytes;
+		int rowsPerSegment = (int) Math.max(1, Math.min(height, SEGMENT_BYTES / Math.max(1, rowBytes)));
+		int segments = (height + rowsPerSegment - 1) / rowsPerSegment;
+		ByteBuffer[] buffers = new ByteBuffer[Math.max(1, segments)];
+		for (int s = 0; s < segments; s++) {
+			int rows = Math.min(rowsPerSegment, height - s * rowsPerSegment);
+			MappedByteBuffer map = channel.map(mode, HEADER_BYTES + s * rowsPerSegment * rowBytes, rows * rowBytes);
+			buffers[s] = map.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		if (segments == 0)
+			buffers[0] = ByteBuffer.allocate(0);
+		int dataType = pixelBytes == 1 ? DataBuffer.TYPE_BYTE : DataBuffer.TYPE_INT;
+		MappedDataBuffer db = new MappedDataBuffer(dataType, width, height, rowsPerSegment, buffers);
+		ColorModel model = colorModel(imageType);
+		SampleModel sm = pixelBytes == 1
+				? new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, width, height, 1, width, new int[] {0})
+				: model.createCompatibleSampleModel(width, height);
+		WritableRaster raster = Raster.createWritableRaster(sm, db, null);
+		image = new BufferedImage(model, raster, false, null);
+	}
+
+	/**
+	 * Layout used to store images of the given type: gray stays gray, types with
+	 * alpha become ARGB and everything else RGB.
+	 */
+	static int layoutFor(int imageType) {
+		switch (imageType) {
+		case BufferedImage.TYPE_BYTE_GRAY:
+			return BufferedImage.TYPE_BYTE_GRAY;
+		case BufferedImage.TYPE_INT_ARGB:
+		case BufferedImage.TYPE_INT_ARGB_PRE:
+		case BufferedImage.TYPE_4BYTE_ABGR:
+		case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+			return BufferedImage.TYPE_INT_ARGB;
+		default:
+			return BufferedImage.TYPE_INT_RGB;
+		}
+	}
+
+	private static ColorModel colorModel(int layout) {
+		switch (layout) {
+		case BufferedImage.TYPE_BYTE_GRAY:
+			return new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), new int[] {8}, false, true,
+					Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+		case BufferedImage.TYPE_INT_ARGB:
+			return ColorModel.getRGBdefault();
+		default:
+			return new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF);
+		}
+	}
+
+	/**
+	 * Creates a raster file, replacing any existing file, with all pixels zero.
+	 *
+	 * @param file      the file to create
+	 * @param width     the image width
+	 * @param height    the image height
+	 * @param imageType the type of image to hold, see the class comment for the layouts
+	 * @return the mapped raster
+	 * @throws IOException if the file cannot be created or mapped
+	 */
+	public static MappedRaster create(Path file, int width, int height, int imageType) throws IOException {
+		int layout = layoutFor(imageType);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(layout).putInt(width).putInt(height).flip();
+			channel.write(header, 0);
+			// mappings stay valid after the channel is closed
+			return new MappedRaster(file, channel, width, height, layout, FileChannel.MapMode.READ_WRITE);
+		}
+	}
+
+	/**
+	 * Maps an existing raster file for reading and writing.
+	 *
+	 * @param file a file created by {@link #create} or {@link #store}
+	 * @return the mapped raster
+	 * @throws IOException if the file cannot be mapped or is not a raster file
+	 */
+	public static MappedRaster open(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining() && channel.read(header, header.position()) > 0)
+				;
+			header.flip();
+			if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC)
+				throw new IOException(file + " is not a raster file");
+			int layout = header.getInt();
+			int width = header.getInt();
+			int height = header.getInt();
+			long expected = HEADER_BYTES + (long) width * height * (layout == BufferedImage.TYPE_BYTE_GRAY ? 1 : 4);
+			if (channel.size() < expected)
+				throw new IOException(file + " is truncated");
+			return new MappedRaster(file, channel, width, height, layout, FileChannel.MapMode.READ_WRITE);
+		}
+	}
+
+	/**
+	 * Copies an image into a new raster file.
+	 *
+	 * @param src  the image to store
+	 * @param file the file to create
+	 * @return the mapped copy
+	 * @throws IOException if the file cannot be created or mapped
+	 */
+	public static MappedRaster store(BufferedImage src, Path file) throws IOException {
+		MappedRaster raster = create(file, src.getWidth(), src.getHeight(), src.getType());
+		PixelAccess in = PixelAccess.of(src);
+		PixelAccess out = PixelAccess.of(raster.image);
+		int[] row = new int[src.getWidth()];
+		for (int y = 0; y < src.getHeight(); y++) {
+			in.getPixels(0, y, row.length, row, 0);
+			out.setPixels(0, y, row.length, row, 0);
+		}
+		return raster;
+	}
+
+	/**
+	 * An allocator that gives every filter result its own temporary raster file in
+	 * dir. The files are unlinked right after mapping where the platform allows it,
+	 * otherwise deleted on exit, so they never outlive the images using them.
+	 *
+	 * @param dir the directory for the temporary files
+	 * @return the allocator
+	 */
+	public static ImageAllocator allocator(Path dir) {
+		return (width, height, imageType) -> {
+			try {
+				Path file = Files.createTempFile(dir, "raster", ".img");
+				MappedRaster raster = create(file, width, height, imageType);
+				try {
+					Files.delete(file);
+				} catch (IOException ex) {
+					file.toFile().deleteOnExit();
+				}
+				return raster.image;
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		};
+	}
+
+	/**
+	 * @param image any image
+	 * @return true if image is backed by a raster file
+	 */
+	public static boolean isMapped(BufferedImage image) {
+		return image.getRaster().getDataBuffer() instanceof MappedDataBuffer;
+	}
+
+	/**
+	 * Layout of a mapped image, see {@link #getImageType()}.
+	 *
+	 * @param image an image for which isMapped is true
+	 * @return TYPE_INT_RGB, TYPE_INT_ARGB or TYPE_BYTE_GRAY
+	 */
+	static int layoutOf(BufferedImage image) {
+		if (image.getRaster().getDataBuffer().getDataType() == DataBuffer.TYPE_BYTE)
+			return BufferedImage.TYPE_BYTE_GRAY;
+		return image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+	}
+
+	/**
+	 * The BufferedImage view of the raster. Writes to it go straight to the mapping.
+	 */
+	public BufferedImage getImage() {
+		return image;
+	}
+
+	/**
+	 * The layout of the pixels: TYPE_INT_RGB, TYPE_INT_ARGB or TYPE_BYTE_GRAY.
+	 */
+	public int getImageType() {
+		return imageType;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+}
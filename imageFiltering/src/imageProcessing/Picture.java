@@ -1,26 +1,21 @@
 package imageProcessing;
 
+import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Writer;
-import java.net.URL;
-import java.util.TreeSet;
-import java.awt.geom.AffineTransform;
-import java.awt.image.AffineTransformOp;
+import java.nio.file.Paths;
 import java.awt.image.BufferedImage;
-import java.awt.image.BufferedImageOp;
-import java.awt.image.ColorModel;
-import java.awt.image.Raster;
-import java.awt.image.WritableRaster;
-import javax.imageio.ImageIO;
+import javax.swing.Icon;
 import javax.swing.ImageIcon;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
@@ -28,7 +23,10 @@ import javax.swing.JLabel;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
+import javax.swing.JOptionPane;
+import javax.swing.JProgressBar;
 import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
 import imageProcessing.GraphViewer;
 
 /**
@@ -36,11 +34,33 @@ import imageProcessing.GraphViewer;
  */
 public class Picture extends JFrame implements ActionListener {
 	private static final long serialVersionUID = 1L;
+	/** Decodes for the cache and prefetches the files after the one opened. */
+	private static final ImageLoader loader = new ImageLoader();
+	/** Decoded images shared by all pictures, up to 256 MB of pixels. */
+	private static final ImageCache decoded = new ImageCache(256L << 20, loader);
+	/** Encodes saved pictures in the background. */
+	private static final ImageEncoder encoder = new ImageEncoder();
+	/** The formats written at once by Export. */
+	private static final String[] EXPORT_FORMATS = { "png", "jpg", "tif" };
+	/** Previews are filtered on a copy of at most this many pixels. */
+	private static final long PREVIEW_PIXELS = 512 * 512;
 	private String source;
 	private JLabel label;
 	private BufferedImage image;
+	private PixelAccess pixels;
 	private boolean showLabel;
 	public int[] histogram;
+	private final FilterEngine engine = new FilterEngine();
+	private final HistogramCache histograms = new HistogramCache(engine);
+	private final ImageHistory history = new ImageHistory(50, Runtime.getRuntime().maxMemory() / 4,
+			engine.getScheduler());
+	private final JProgressBar progress = new JProgressBar(0, 100);
+	private final FilterQueue filters = new FilterQueue(engine, this::showProgress);
+	private ImagePyramid pyramid; // of the picture as loaded
+	private BufferedImage proxy; // small copy of the image the queued filters end with, null if unknown
+	private volatile long imageVersion; // bumped by in-place edits of image
+	private long committedVersion; // imageVersion when image was last recorded in history
+	private final DirtyRegion edits = new DirtyRegion(); // pixels set in place since then
 	private int maxCount;
 
 	/**
@@ -54,6 +74,9 @@ public class Picture extends JFrame implements ActionListener {
 		label.setBackground(new Color(155, 155, 155));
 		label.setOpaque(true);
 		add(label);
+		progress.setStringPainted(true);
+		progress.setString("");
+		add(progress, BorderLayout.SOUTH);
 		pack();
 		setVisible(true);
 	}
@@ -88,12 +111,15 @@ public class Picture extends JFrame implements ActionListener {
 	}
 	
 	private void frameImage() {
-		int newWidth = getImageWidth() - 40;
-	    int newHeight = getImageHeight() - 40;
-	    scale(newWidth, newHeight);
-	    moveImage(20, 20);
-//	    border(10);
-	    border(10, new Color(55, 55, 55));
+		setImage(framed(engine, image));
+	}
+
+	private static BufferedImage framed(FilterEngine engine, BufferedImage image) {
+		int newWidth = image.getWidth() - 40;
+	    int newHeight = image.getHeight() - 40;
+	    // recorded lazily so the scale and the move are resampled in one pass
+	    return FilterGraph.of(image, engine).scale(newWidth, newHeight).move(20, 20)
+	    		.border(10, new Color(55, 55, 55)).render();
 	}
 
 	/**
@@ -126,13 +152,36 @@ public class Picture extends JFrame implements ActionListener {
 			menuSA.add(menuItem);
 		}
 		menu.add(menuSA);
+
+		menuItem = new JMenuItem("Export PNG, JPEG and TIFF", KeyEvent.VK_E);
+		menuItem.setActionCommand("Export");
+		menuItem.addActionListener(this);
+		menu.add(menuItem);
 		
 		menuBar.add(menu);
+
+		menu = new JMenu("Edit");
+		menu.setMnemonic(KeyEvent.VK_E);
+		menuItem = new JMenuItem("Undo", KeyEvent.VK_U);
+		menuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, ActionEvent.CTRL_MASK));
+		menuItem.addActionListener(this);
+		menu.add(menuItem);
+
+		menuItem = new JMenuItem("Redo", KeyEvent.VK_R);
+		menuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, ActionEvent.CTRL_MASK));
+		menuItem.addActionListener(this);
+		menu.add(menuItem);
+
+		menuItem = new JMenuItem("Cancel", KeyEvent.VK_C);
+		menuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0));
+		menuItem.addActionListener(this);
+		menu.add(menuItem);
+		menuBar.add(menu);
 		
 		menu = new JMenu("Options");
 		menu.setMnemonic(KeyEvent.VK_O);
-		String[] options = {"Original", "Frame", "Grayscale", "Grayscale - Luminance", "Save Grayscale-Luminance Histogram","Show Histogram", "Equalize Histogram", 
-				"Sobel Edge Detect", "Show Image Name (on/off)"};
+		String[] options = {"Original", "Frame", "Grayscale", "Grayscale - Luminance", "Save Grayscale-Luminance Histogram", "Export Histogram CSV", "Show Histogram", "Equalize Histogram", 
+				"Adaptive Equalize (CLAHE)", "Adaptive Threshold", "Sobel Edge Detect", "Show Image Name (on/off)"};
 		// to do #2 - iterate over options, instantiate a menuItem and register this as the listener for each opt in options.
 		for(String opt : options) {
 			menuItem = new JMenuItem(opt);
@@ -162,7 +211,8 @@ public class Picture extends JFrame implements ActionListener {
 	}
 
 	/**
-	 * Loads a picture from a given source.
+	 * Loads a picture from a given source. Sources opened before are decoded again
+	 * only if they changed, see {@link ImageCache}.
 	 * 
 	 * @param source the image source. If the source starts with http://, it is a
 	 *               URL, otherwise, a filename.
@@ -170,19 +220,29 @@ public class Picture extends JFrame implements ActionListener {
 	public void load(String source) {
 		try {
 			this.source = source;
-			BufferedImage img;
-			if (source.startsWith("http://"))
-				img = ImageIO.read(new URL(source).openStream());
-			else
-				img = ImageIO.read(new File(source));
-
-			setImage(img);
+			// the cached image is shared, setColorAt must not reach it
+			BufferedImage img = engine.copy(decoded.read(source));
+			loaded(source, img, ImagePyramid.of(img, engine.getScheduler()), history.snapshot(img));
 		} catch (Exception ex) {
 			this.source = null;
 			ex.printStackTrace();
 		}
 	}
 
+	/**
+	 * Shows a freshly decoded picture and starts a new undo history with it.
+	 */
+	private void loaded(String source, BufferedImage img, ImagePyramid pyramid, ImageHistory.Snapshot snapshot) {
+		this.source = source;
+		this.pyramid = pyramid;
+		proxy = proxyOf(pyramid);
+		history.reset(snapshot);
+		committedVersion = imageVersion;
+		edits.clear();
+		display(img);
+		setHistogram();
+	}
+
 	/**
 	 * Reloads this picture, undoing any manipulations.
 	 */
@@ -196,7 +256,19 @@ public class Picture extends JFrame implements ActionListener {
 	public void pick() {
 		JFileChooser chooser = new JFileChooser("./images");
 		if (chooser.showOpenDialog(null) == JFileChooser.APPROVE_OPTION) {
-			load(chooser.getSelectedFile().getAbsolutePath());
+			String path = chooser.getSelectedFile().getAbsolutePath();
+			filters.cancel();
+			ImagePyramid[] built = new ImagePyramid[1];
+			ImageHistory.Snapshot[] tiles = new ImageHistory.Snapshot[1];
+			filters.submit("Open", image, (e, src) -> {
+				BufferedImage img = e.copy(decoded.read(path));
+				built[0] = ImagePyramid.of(img, e.getScheduler());
+				tiles[0] = history.snapshot(img);
+				histograms.get(img, imageVersion);
+				// the next pick is likely the next file in the folder
+				loader.prefetchAfter(Paths.get(path), 2);
+				return img;
+			}, img -> loaded(path, img, built[0], tiles[0]));
 		}
 	}
 
@@ -207,12 +279,7 @@ public class Picture extends JFrame implements ActionListener {
 	 * @param dy the offset in the y-direction
 	 */
 	public void moveImage(int dx, int dy) {
-		BufferedImageOp op = new AffineTransformOp(AffineTransform.getTranslateInstance(dx, dy),
-				AffineTransformOp.TYPE_BILINEAR);
-		BufferedImage filteredImage = new BufferedImage(image.getWidth(), image.getHeight(),
-				BufferedImage.TYPE_INT_ARGB);
-		op.filter(image, filteredImage);
-		setImage(filteredImage);
+		setImage(engine.moveImage(image, dx, dy));
 	}
 
 	/**
@@ -224,14 +291,7 @@ public class Picture extends JFrame implements ActionListener {
 	 * @param newHeight the new height of the picture
 	 */
 	public void scale(int newWidth, int newHeight) {
-		double dx = newWidth * 1.0 / image.getWidth();
-		double dy = newHeight * 1.0 / image.getHeight();
-		BufferedImageOp op = new AffineTransformOp(AffineTransform.getScaleInstance(dx, dy),
-				AffineTransformOp.TYPE_BILINEAR);
-		BufferedImage filteredImage = new BufferedImage(image.getWidth(), image.getHeight(),
-				BufferedImage.TYPE_INT_ARGB);
-		op.filter(image, filteredImage);
-		setImage(filteredImage);
+		setImage(engine.scale(image, newWidth, newHeight));
 	}
 
 	/**
@@ -240,18 +300,7 @@ public class Picture extends JFrame implements ActionListener {
 	 * @param width the border width
 	 */
 	public void border(int width) {
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < image.getHeight(); y++) {
-				setColorAt(x, y, Color.BLACK);
-				setColorAt(image.getWidth() - 1 - x, y, Color.BLACK);
-			}
-		}
-		for (int y = 0; y < width; y++) {
-			for (int x = width; x < image.getWidth() - width; x++) {
-				setColorAt(x, y, Color.BLACK);
-				setColorAt(x, image.getHeight() - 1 - y, Color.BLACK);
-			}
-		}
+		border(width, Color.BLACK);
 	}
 	/**
 	 * Adds a color border to the image
@@ -259,18 +308,16 @@ public class Picture extends JFrame implements ActionListener {
 	 * @param c
 	 */
 	public void border(int width, Color c) {
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < image.getHeight(); y++) {
-				setColorAt(x, y, c);
-				setColorAt(image.getWidth() - 1 - x, y, c);
-			}
-		}
-		for (int y = 0; y < width; y++) {
-			for (int x = width; x < image.getWidth() - width; x++) {
-				setColorAt(x, y, c);
-				setColorAt(x, image.getHeight() - 1 - y, c);
-			}
-		}
+		BufferedImage bordered = engine.border(image, width, c);
+		DirtyRegion frame = DirtyRegion.frame(image.getWidth(), image.getHeight(), width);
+		// only the border changed, so only its pixels are counted and stored
+		histograms.derive(image, bordered, imageVersion, frame);
+		recordEdits();
+		history.commit(bordered, frame);
+		committedVersion = imageVersion;
+		proxy = preview(bordered);
+		display(bordered);
+		setHistogram();
 	}
 
 	/**
@@ -281,10 +328,7 @@ public class Picture extends JFrame implements ActionListener {
 	 * @return the color of the pixel at position (x, y)
 	 */
 	public Color getColorAt(int x, int y) {
-		Raster raster = image.getRaster();
-		ColorModel model = image.getColorModel();
-		int argb = model.getRGB(raster.getDataElements(x, y, null));
-		return new Color(argb, true);
+		return new Color(pixels.getArgb(x, y), true);
 	}
 
 
@@ -296,15 +340,92 @@ public class Picture extends JFrame implements ActionListener {
 	 * @param c the color for the pixel at position (x, y)
 	 */
 	public void setColorAt(int x, int y, Color c) {
-		WritableRaster raster = image.getRaster();
-		ColorModel model = image.getColorModel();
-		Object colorData = model.getDataElements(c.getRGB(), null);
-		raster.setDataElements(x, y, colorData);
+		int old = pixels.getArgb(x, y);
+		pixels.setArgb(x, y, c.getRGB());
+		long before = imageVersion++;
+		histograms.edit(image, before, imageVersion, old, pixels.getArgb(x, y));
+		edits.add(x, y, 1, 1);
 		label.repaint();
 	}
 
+	/**
+	 * Shows a new version of the picture and records it in the undo history,
+	 * with a small copy of it for previews.
+	 */
 	private void setImage(BufferedImage image) {
+		setImage(image, preview(image), history.snapshot(image));
+	}
+
+	/**
+	 * Shows a new version of the picture and records it in the undo history.
+	 * Only references are swapped, so filters run in the background hand over
+	 * their result with the work done.
+	 *
+	 * @param small    the small copy of image for previews, null if there is none
+	 * @param snapshot the tiles of image, see {@link ImageHistory#snapshot}
+	 */
+	private void setImage(BufferedImage image, BufferedImage small, ImageHistory.Snapshot snapshot) {
+		proxy = small;
+		record(snapshot);
+		display(image);
+	}
+
+	private void record(ImageHistory.Snapshot snapshot) {
+		recordEdits();
+		history.commit(snapshot);
+		committedVersion = imageVersion;
+	}
+
+	/**
+	 * Records pixels set with setColorAt since the last version, so undo can return
+	 * to them. Only the tiles around the edited pixels are stored again.
+	 */
+	private void recordEdits() {
+		if (imageVersion != committedVersion) {
+			history.commit(image, edits);
+			committedVersion = imageVersion;
+		}
+		edits.clear();
+	}
+
+	/**
+	 * Steps back to the previous version without reloading anything.
+	 */
+	public void undo() {
+		recordEdits();
+		BufferedImage previous = history.undo();
+		if (previous != null) {
+			proxy = null;
+			display(previous);
+		}
+	}
+
+	/**
+	 * Steps forward to the version last undone.
+	 */
+	public void redo() {
+		recordEdits(); // edits since the last version replace what was undone
+		BufferedImage next = history.redo();
+		if (next != null) {
+			proxy = null;
+			display(next);
+		}
+	}
+
+	/**
+	 * Returns to the picture as loaded, as a new version that can be undone.
+	 */
+	public void original() {
+		BufferedImage original = history.original();
+		if (original != null) {
+			// a view of the stored tiles, so the snapshot copies nothing
+			setImage(original, proxyOf(pyramid), history.snapshot(original));
+		}
+	}
+
+	private void display(BufferedImage image) {
 		this.image = image;
+		pixels = PixelAccess.of(image);
 		label.setIcon(new ImageIcon(image));
 		if (showLabel) {
 			// Set the position of the text, relative to the icon:
@@ -341,28 +462,51 @@ public class Picture extends JFrame implements ActionListener {
 		chooser.setSelectedFile(saveFile);
 		int rval = chooser.showSaveDialog(this);
 		if (rval == JFileChooser.APPROVE_OPTION) {
-			saveFile = chooser.getSelectedFile();
-			
-			try {
-				ImageIO.write(image, format, saveFile);
-			} catch (IOException ex) {
-				System.out.println(ex.getMessage());
-			}
+			File file = chooser.getSelectedFile();
+			// taken after the filters queued so far and encoded while later ones run
+			filters.submit("Save", image, (e, src) -> {
+				encoder.writeAsync(src, format, file.toPath()).whenComplete(this::saved);
+				return null;
+			}, null);
+		}
+	}
+
+	/**
+	 * Writes the picture in each of the EXPORT_FORMATS at once, next to the chosen
+	 * file name.
+	 */
+	private void export() {
+		JFileChooser chooser = new JFileChooser("./images");
+		chooser.setSelectedFile(new File(getImageName()));
+		if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+			File base = chooser.getSelectedFile();
+			filters.submit("Export", image, (e, src) -> {
+				encoder.export(src, base.toPath(), EXPORT_FORMATS).whenComplete(this::saved);
+				return null;
+			}, null);
 		}
 	}
 
+	/**
+	 * Reports a failed save or export in a dialog; the writes complete on the
+	 * encoder's threads, so the dialog is shown on the event dispatch thread.
+	 */
+	private void saved(Void v, Throwable ex) {
+		if (ex == null)
+			return;
+		Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+		cause.printStackTrace();
+		SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this, "Could not save the picture:\n"
+				+ cause.getMessage(), "Save failed", JOptionPane.ERROR_MESSAGE));
+	}
+
 	/**
 	 * Returns an array of Strings listing all of the
 	 * informal format names understood by the current set of registered writers.
 	 * @return the formats sorted alphabetically and in lower case
 	 */
 	private String[] getFormats() {
-		String[] formats = ImageIO.getWriterFormatNames();
-		TreeSet<String> formatSet = new TreeSet<String>();
-		for (String s : formats) {
-			formatSet.add(s.toLowerCase());
-		}
-		return formatSet.toArray(new String[formatSet.size()]);
+		return ImageEncoder.getFormats();
 	}
 
 	@Override
@@ -371,43 +515,74 @@ public class Picture extends JFrame implements ActionListener {
 		switch (cmd) {
 		case "Open":
 			pick();
-			setHistogram();
 			break;
 		case "Save":
 			save();
 			break;
+		case "Export":
+			export();
+			break;
 		case "bmp": case "gif": case "jpeg": case "jpg": case "png":
 		case "tif": case "tiff": case "wbmp":
 			System.out.println("Save As ." + cmd);
 			save(cmd);
 			break;
+		case "Cancel":
+			filters.cancel();
+			// drop the previews of the cancelled steps
+			proxy = null;
+			display(image);
+			break;
+		case "Undo":
+			filters.cancel();
+			undo();
+			setHistogram();
+			break;
+		case "Redo":
+			filters.cancel();
+			redo();
+			setHistogram();
+			break;
 		case "Original":
-			reload();
+			filters.cancel();
+			original();
 			setHistogram();
-			saveHistogram();
 			break;
 		case "Frame":
-			frameImage();
+			// the frame is measured in pixels, so a preview would not look like the result
+			queue(cmd, Picture::framed, false);
 			break;
 		case "Grayscale":
-			grayscale();
-			setHistogram();
-			saveHistogram();
+			queue(cmd, FilterEngine::grayscale, true);
 			break;
 		case "Grayscale - Luminance":
-			grayscaleLuminance();
-			setHistogram();
-			saveHistogram();
+			queue(cmd, FilterEngine::grayscaleLuminance, true);
 			break;
 		case "Equalize Histogram":
-			histogramEqualize();
+			queue(cmd, (eng, src) -> eng.histogramEqualize(src, histograms.get(src, imageVersion).getLuma()), true);
+			break;
+		case "Adaptive Equalize (CLAHE)":
+			queue(cmd, (eng, src) -> eng.adaptiveEqualize(src, 8, 2.0), true);
+			break;
+		case "Adaptive Threshold":
+			queue(cmd, (eng, src) -> eng.adaptiveThreshold(src, 15, 0.2), true);
 			break;
 		case "Sobel Edge Detect":
-			sobelEdgeDetect();
+			queue(cmd, (eng, src) -> eng.sobelEdgeDetect(src, histograms.get(src, imageVersion).getLuma()), true);
 			break;
 		case "Save Grayscale-Luminance Histogram":
-			setHistogram();
-			saveHistogram();
+			String name = getImageName();
+			filters.submit(cmd, image, (eng, src) -> {
+				saveHistogram(name, histograms.get(src, imageVersion).getLuma());
+				return null;
+			}, null);
+			break;
+		case "Export Histogram CSV":
+			String csvName = getImageName();
+			filters.submit(cmd, image, (eng, src) -> {
+				exportHistogram(csvName, histograms.get(src, imageVersion).getLuma());
+				return null;
+			}, null);
 			break;
 		case "Show Histogram":
 			Toolkit toolkit = Toolkit.getDefaultToolkit();
@@ -417,108 +592,171 @@ public class Picture extends JFrame implements ActionListener {
 			System.out.println(preferredSize);
 			label.setVisible(false);
 
-			GraphViewer component = new GraphViewer(preferredSize);
+			GraphViewer component = new GraphViewer(preferredSize, approximateHistogram());
 			add(component);
 			break;
 		case "Show Image Name (on/off)":
 			showLabel = !showLabel;
-			setImage(image);
+			display(image);
 			break;
 		}
 	}
 	
-	private void grayscale() {
-		BufferedImage greyFiltered = new BufferedImage(getImageWidth(), getImageHeight(), BufferedImage.TYPE_BYTE_GRAY);
-		Graphics g = greyFiltered.getGraphics();
-		g.drawImage(image, 0, 0, null); // better performance than the pixel by pixel conversion
-		g.dispose();
-		setImage(greyFiltered);
+	/**
+	 * Runs a filter in the background after the ones already queued and shows its
+	 * result when it is done, see {@link FilterQueue}.
+	 */
+	private void queue(String name, FilterQueue.Step step, boolean previewable) {
+		if (previewable && proxy != null) {
+			try {
+				proxy = step.apply(engine, proxy);
+				label.setIcon(new PreviewIcon(proxy, image.getWidth(), image.getHeight()));
+			} catch (Exception ex) {
+				ex.printStackTrace();
+				proxy = null;
+			}
+		} else {
+			proxy = null;
+		}
+		boolean previewed = proxy != null;
+		// everything that reads the whole result is done in the background, without a
+		// preview chain also the small copy, so publishing only swaps references
+		BufferedImage[] small = new BufferedImage[1];
+		ImageHistory.Snapshot[] tiles = new ImageHistory.Snapshot[1];
+		FilterQueue.Step full = (eng, src) -> {
+			BufferedImage result = step.apply(eng, src);
+			if (result != null) {
+				if (!previewed)
+					small[0] = ImagePyramid.downsample(result, PREVIEW_PIXELS, eng.getScheduler());
+				tiles[0] = history.snapshot(result);
+				histograms.get(result, imageVersion);
+			}
+			return result;
+		};
+		filters.submit(name, image, full, result -> {
+			boolean last = !filters.isBusy();
+			if (!last && proxy != null) {
+				// the preview of a later step is showing, keep it until that step is done
+				record(tiles[0]);
+				image = result;
+				pixels = PixelAccess.of(result);
+				return;
+			}
+			if (last && !previewed)
+				proxy = small[0] == result ? null : small[0];
+			setImage(result, proxy, tiles[0]);
+			setHistogram();
+		});
+	}
+
+	/**
+	 * The small copy of an image used for previews, null if the image is small itself.
+	 */
+	private BufferedImage preview(BufferedImage image) {
+		BufferedImage small = ImagePyramid.downsample(image, PREVIEW_PIXELS, engine.getScheduler());
+		return small == image ? null : small;
+	}
+
+	/**
+	 * The small copy of a pyramid used for previews, null if the image is small itself.
+	 */
+	private static BufferedImage proxyOf(ImagePyramid pyramid) {
+		BufferedImage level = pyramid.proxy(PREVIEW_PIXELS);
+		return level == pyramid.level(0) ? null : level;
 	}
 
+	/**
+	 * The luminance histogram for display. Taken from the small copy when there is
+	 * one, with the counts scaled up to the size of the image.
+	 */
+	private int[] approximateHistogram() {
+		if (proxy == null || imageVersion != committedVersion) {
+			setHistogram();
+			return histogram;
+		}
+		int[] small = histograms.get(proxy, 0).getLuma();
+		double scale = (double) image.getWidth() * image.getHeight() / (proxy.getWidth() * proxy.getHeight());
+		int[] counts = new int[small.length];
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = (int) Math.round(small[i] * scale);
+		return counts;
+	}
+
+	/**
+	 * Draws a small image stretched to the size of the picture.
+	 */
+	private static final class PreviewIcon implements Icon {
+		private final BufferedImage preview;
+		private final int width;
+		private final int height;
+
+		PreviewIcon(BufferedImage preview, int width, int height) {
+			this.preview = preview;
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public void paintIcon(Component c, Graphics g, int x, int y) {
+			Graphics2D g2 = (Graphics2D) g.create();
+			g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g2.drawImage(preview, x, y, width, height, null);
+			g2.dispose();
+		}
+
+		@Override
+		public int getIconWidth() {
+			return width;
+		}
+
+		@Override
+		public int getIconHeight() {
+			return height;
+		}
+	}
+
+	/**
+	 * Shows the progress of the background filters below the picture.
+	 */
+	private void showProgress(String step, int percent, int queued) {
+		progress.setValue(step == null ? 0 : percent);
+		progress.setString(step == null ? "" : queued == 0 ? step : step + " (" + queued + " more queued)");
+	}
 
 	/**
 	 * Initializes histogram to 256 cells. Iterates over the field image, parsing each rgb into
 	 * red, green, and blue bands, calculates luminance, and counts that luminance value in the 
-	 * histogram.
+	 * histogram. The result is cached until the image changes; the public field
+	 * gets a copy, so writes to it cannot change the cached counts.
 	 */
 	private void setHistogram() {
-		int w = getImageWidth();
-		int h = getImageHeight();
-		histogram = new int[256];
-		for(int x = 0; x < w; x++)
-			for(int y = 0; y < h; y++) {
-				int rgb = image.getRGB(x, y);
-				int r = rgb >> 16 & 0xFF;
-				int g = rgb >> 8 & 0xFF;
-				int b = rgb & 0xFF;
-				int luma = (int) (r * .2989 + g * .587 + b * .114);
-				histogram[luma]++;
-			}
+		histogram = histograms.get(image, imageVersion).getLuma().clone();
 	}
 
 	/**
-	 * Converts the current image to byte gray, storing its histogram in the process.
-	 * Creates local variables as needed, including a new BufferredImage TYPE_BYTE_GRAY. (produces a darker image)
-	 * Contrast this with the efficient conversion used in grayscale(). 
-	 * Compare the objects in the debugger by looking at the ColorModel fields and raster data. 
-	 * Currently set to use TYPE_INT_RGB.
-	 * Uses the same width and height as the field image,
-	 * instantiates the field histogram, size 256,
-	 * iterates over image getting each rgb value,
-	 *     breaks down the r, g, and b, to create a luminance value based on ITU-R Recommendation BT.601
-	 *     luma = (int) (r * .2989 + g * .587 + b * .114);
-	 *     sets the corresponding pixel in the grayscale image to the luma value
-	 *         be sure to cast luma to a byte when calling setRGB on a byte type image.
-	 * invokes setImage with the completed grayscale image to display the modified image.
-	 * 
+	 * Appends the grayscale luminance histogram to histogram.hist, see
+	 * {@link HistogramFile}. Saving several images collects their histograms in
+	 * one file.
 	 */
-	private void grayscaleLuminance() {
-		// to do #4
-		int w = getImageWidth();
-		int h = getImageHeight();
-		BufferedImage grayscaleLum = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);  // TYPE_INT_RGB);
-//		BufferedImage grayscaleLum = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-		histogram = new int[256];
-		for(int x = 0; x < w; x++)
-			for(int y = 0; y < h; y++) {
-				int rgb = image.getRGB(x, y);
-				int r = rgb >> 16 & 0xFF;
-				int g = rgb >> 8 & 0xFF;
-				int b = rgb & 0xFF;
-				int luma = (int) (r * .2989 + g * .587 + b * .114);
-				histogram[luma]++;
-				int argb = 0xFF << 24 | luma << 16 | luma << 8 | luma;
-				grayscaleLum.setRGB(x, y, (byte)luma);
-//				grayscaleLum.setRGB(x, y, argb);  // (byte)luma);
-			}
-		setImage(grayscaleLum);
+	private void saveHistogram(String name, int[] histogram) {
+		// to do #5
+		try {
+			HistogramFile.append(Paths.get("histogram.hist"), name, histogram);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
-	
+
 	/**
-	 * Writes the grayscale luminance histogram to a csv file. Iterates over the
-	 * field histogram writing three lines of comma separated entries. The first
-	 * line: the image name. The second line: 0, 1, 2, ..., 255. The third line
-	 * contains the values stored at the corresponding indices of the field
-	 * histogram.
-	 * 
+	 * Writes the grayscale luminance histogram to histogram.csv: the image name,
+	 * the levels 0, 1, 2, ..., 255 and the counts, one line each.
 	 */
-	private void saveHistogram() {
-		// to do #5
+	private void exportHistogram(String name, int[] histogram) {
 		try {
-			Writer fw = new FileWriter("histogram.csv");
-			fw.write(getImageName() + "\n");
-			for (int i = 0; i < 256; i++) {
-				fw.write(Integer.toString(i) + ",");
-			}
-			fw.write("\n");
-			for (int j : histogram) {
-				fw.write(Integer.toString(j) + ",");
-			}
-			fw.close();
-		} catch (Exception e) {
+			HistogramFile.exportCsv(Paths.get("histogram.csv"), name, histogram);
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
-
 	}
 	
 	
@@ -546,35 +784,22 @@ public class Picture extends JFrame implements ActionListener {
 		Invokes label's repaint method.
 	 */
 	public void histogramEqualize() {
-	    //call CalculateHist method to get the histogram
-	    //calculate total number of pixel
-	    int n = image.getWidth() * image.getHeight();
-	    int L = 256;
-	    long sum = 0;
-	    int[] lut = new int[256];
-	    float coef = (float) 255.0 / n;
-	    for (int i = 0; i < L; i++) {
-	        sum += histogram[i];
-	        int sK = (int) (coef * sum);
-	        lut[i] = sK;
-	    }
-	    for (int y = 0; y < image.getHeight(); y++) {
-	        for (int x = 0; x < image.getWidth(); x++) {
-	        	int rgb = image.getRGB(x, y);
-				int r = (rgb >> 16) & 0xFF;
-				int g = (rgb >> 8) & 0xFF;
-				int b = rgb & 0xFF;
-				int luma = (int) (r * .2989 + g * .587 + b * .114);
-				
-	        Color equalizedColor = new Color(lut[luma], lut[luma], lut[luma]);
-	        rgb = equalizedColor.getRGB();
-	        image.setRGB(x, y, rgb);
-	    }
-	  }
-	    repaint();
+		setImage(engine.histogramEqualize(image, histogram));
 	}
 
+	/**
+	 * Adaptive histogram equalization with an 8x8 grid of tiles and clip limit 2.
+	 */
+	public void adaptiveEqualize() {
+		setImage(engine.adaptiveEqualize(image, 8, 2.0));
+	}
 
+	/**
+	 * Sauvola thresholding over 31x31 windows with k = 0.2.
+	 */
+	public void adaptiveThreshold() {
+		setImage(engine.adaptiveThreshold(image, 15, 0.2));
+	}
 
 	
 	/**
@@ -598,32 +823,7 @@ public class Picture extends JFrame implements ActionListener {
 	 */
 
 	public void sobelEdgeDetect() {
-		histogramEqualize();
-		
-		int width = getImageWidth();
-		int height = getImageHeight();
-		BufferedImage edgeDetect = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		int[][] gx = {{-1,0,1},{-2,0,2},{-1,0,1}};
-		int[][] gy = {{-1,-2,-1},{0,0,0},{1,2,1}};
-		
-		for(int x = 1; x < (width - 1); x++) {
-			for(int y = 1; y < (height - 1); y++) {
-				int ix = 0;
-				int iy = 0;
-				for(int row = 0; row < 3; row++) {
-					for(int column = 0; column < 3; column++) {
-						
-						int blue = image.getRGB(x + column - 1, y + row-1) & 0xFF;
-							ix += gx[row][column] * blue;
-							iy += gy[row][column] * blue;
-					}
-				}
-				double length = Math.sqrt((ix*ix) + (iy*iy));
-				length = length / 1443 * 255;
-				edgeDetect.setRGB(x, y, (int) length);
-			}
-		}
-		setImage(edgeDetect);
+		setImage(engine.sobelEdgeDetect(image, histogram));
 	}
 	
 	public static void main(String[] args) {
@@ -0,0 +1,555 @@
+package imageProcessing;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Bulk pixel access to a BufferedImage. For the common image types the backing
+ * DataBufferInt or DataBufferByte array is read and written directly, so there is
+ * no ColorModel dispatch and no allocation per pixel. Images backed by a
+ * {@link MappedRaster} are accessed through their mapping, and the tiled views of
+ * {@link ImageHistory} tile by tile. Other types fall back to
+ * the row variants of getRGB/setRGB.
+ *
+ * Pixels are exchanged as packed non-premultiplied ARGB ints. Gray rasters hold
+ * the gray level directly: a sample v reads as (v, v, v) and a written color is
+ * reduced with the same integer weights Java2D uses when drawing into TYPE_BYTE_GRAY.
+ *
+ * Note that touching the data array directly stops Java2D from caching the image in
+ * video memory, which is the right trade-off for images that are processed rather
+ * than repeatedly blitted.
+ */
+public abstract class PixelAccess {
+	protected final BufferedImage image;
+	protected final int width;
+	protected final int height;
+
+	protected PixelAccess(BufferedImage image) {
+		this.image = image;
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+	}
+
+	/**
+	 * Returns the fastest accessor available for the image.
+	 *
+	 * @param image the image to access
+	 * @return an accessor bound to image
+	 */
+	public static PixelAccess of(BufferedImage image) {
+		Raster raster = image.getRaster();
+		if (raster.getDataBuffer() instanceof MappedDataBuffer)
+			return new Mapped(image);
+		if (raster.getDataBuffer() instanceof TiledDataBuffer)
+			return new Tiled(image);
+		switch (image.getType()) {
+		case BufferedImage.TYPE_INT_ARGB:
+		case BufferedImage.TYPE_INT_RGB:
+		case BufferedImage.TYPE_INT_BGR:
+			if (raster.getDataBuffer() instanceof DataBufferInt
+					&& raster.getSampleModel() instanceof SinglePixelPackedSampleModel)
+				return new IntPacked(image);
+			break;
+		case BufferedImage.TYPE_BYTE_GRAY:
+		case BufferedImage.TYPE_3BYTE_BGR:
+		case BufferedImage.TYPE_4BYTE_ABGR:
+			if (raster.getDataBuffer() instanceof DataBufferByte
+					&& raster.getSampleModel() instanceof ComponentSampleModel)
+				return new ByteInterleaved(image);
+			break;
+		}
+		return new Generic(image);
+	}
+
+	/**
+	 * Gray level of a color using the integer weights Java2D uses for TYPE_BYTE_GRAY.
+	 * Unlike the BT.601 luma used by the filters, (v, v, v) maps back to v exactly.
+	 *
+	 * @param argb the packed color
+	 * @return the gray level, 0 to 255
+	 */
+	public static int gray(int argb) {
+		int r = argb >> 16 & 0xFF;
+		int g = argb >> 8 & 0xFF;
+		int b = argb & 0xFF;
+		return (77 * r + 150 * g + 29 * b + 128) >> 8;
+	}
+
+	public BufferedImage getImage() {
+		return image;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Reads w pixels of row y starting at column x.
+	 *
+	 * @param x   the first column
+	 * @param y   the row
+	 * @param w   the number of pixels
+	 * @param dst receives packed ARGB values
+	 * @param off the first index written in dst
+	 */
+	public abstract void getPixels(int x, int y, int w, int[] dst, int off);
+
+	/**
+	 * Writes w pixels of row y starting at column x.
+	 *
+	 * @param x   the first column
+	 * @param y   the row
+	 * @param w   the number of pixels
+	 * @param src packed ARGB values
+	 * @param off the first index read from src
+	 */
+	public abstract void setPixels(int x, int y, int w, int[] src, int off);
+
+	/**
+	 * Writes w gray levels (0 to 255) to row y starting at column x. Gray rasters
+	 * store the levels as is, color rasters store opaque (v, v, v).
+	 *
+	 * @param x    the first column
+	 * @param y    the row
+	 * @param w    the number of pixels
+	 * @param gray the gray levels
+	 * @param off  the first index read from gray
+	 */
+	public void setGrayPixels(int x, int y, int w, int[] gray, int off) {
+		int[] row = new int[w];
+		for (int i = 0; i < w; i++)
+			row[i] = 0xFF000000 | gray[off + i] * 0x010101;
+		setPixels(x, y, w, row, 0);
+	}
+
+	/**
+	 * Reads a whole row.
+	 *
+	 * @param y   the row
+	 * @param dst receives the row, may be null
+	 * @return dst, or a new array if dst was null or too short
+	 */
+	public int[] getRow(int y, int[] dst) {
+		if (dst == null || dst.length < width)
+			dst = new int[width];
+		getPixels(0, y, width, dst, 0);
+		return dst;
+	}
+
+	/**
+	 * Writes a whole row.
+	 *
+	 * @param y   the row
+	 * @param src packed ARGB values, at least getWidth() long
+	 */
+	public void setRow(int y, int[] src) {
+		setPixels(0, y, width, src, 0);
+	}
+
+	public int getArgb(int x, int y) {
+		int[] px = new int[1];
+		getPixels(x, y, 1, px, 0);
+		return px[0];
+	}
+
+	public void setArgb(int x, int y, int argb) {
+		setPixels(x, y, 1, new int[] {argb}, 0);
+	}
+
+	/**
+	 * Fills a rectangle with one color. The rectangle must lie inside the image.
+	 */
+	public void fill(int x, int y, int w, int h, int argb) {
+		if (w <= 0 || h <= 0)
+			return;
+		int[] row = new int[w];
+		Arrays.fill(row, argb);
+		for (int j = y; j < y + h; j++)
+			setPixels(x, j, w, row, 0);
+	}
+
+	/**
+	 * TYPE_INT_ARGB, TYPE_INT_RGB and TYPE_INT_BGR backed by a DataBufferInt.
+	 */
+	private static final class IntPacked extends PixelAccess {
+		private final int[] data;
+		private final int base;
+		private final int stride;
+		private final int type;
+
+		IntPacked(BufferedImage image) {
+			super(image);
+			Raster raster = image.getRaster();
+			DataBufferInt db = (DataBufferInt) raster.getDataBuffer();
+			SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+			data = db.getData();
+			stride = sm.getScanlineStride();
+			base = db.getOffset() - raster.getSampleModelTranslateY() * stride - raster.getSampleModelTranslateX();
+			type = image.getType();
+		}
+
+		@Override
+		public void getPixels(int x, int y, int w, int[] dst, int off) {
+			int i = base + y * stride + x;
+			switch (type) {
+			case BufferedImage.TYPE_INT_ARGB:
+				System.arraycopy(data, i, dst, off, w);
+				break;
+			case BufferedImage.TYPE_INT_RGB:
+				for (int k = 0; k < w; k++)
+					dst[off + k] = 0xFF000000 | data[i + k];
+				break;
+			default:
+				for (int k = 0; k < w; k++) {
+					int p = data[i + k];
+					dst[off + k] = 0xFF000000 | (p & 0xFF) << 16 | (p & 0xFF00) | (p >> 16 & 0xFF);
+				}
+			}
+		}
+
+		@Override
+		public void setPixels(int x, int y, int w, int[] src, int off) {
+			int i = base + y * stride + x;
+			switch (type) {
+			case BufferedImage.TYPE_INT_ARGB:
+				System.arraycopy(src, off, data, i, w);
+				break;
+			case BufferedImage.TYPE_INT_RGB:
+				for (int k = 0; k < w; k++)
+					data[i + k] = src[off + k] & 0xFFFFFF;
+				break;
+			default:
+				for (int k = 0; k < w; k++) {
+					int p = src[off + k];
+					data[i + k] = (p & 0xFF) << 16 | (p & 0xFF00) | (p >> 16 & 0xFF);
+				}
+			}
+		}
+
+		@Override
+		public void setGrayPixels(int x, int y, int w, int[] gray, int off) {
+			int i = base + y * stride + x;
+			int alpha = type == BufferedImage.TYPE_INT_ARGB ? 0xFF000000 : 0;
+			for (int k = 0; k < w; k++)
+				data[i + k] = alpha | gray[off + k] * 0x010101;
+		}
+
+		@Override
+		public int getArgb(int x, int y) {
+			int p = data[base + y * stride + x];
+			switch (type) {
+			case BufferedImage.TYPE_INT_ARGB:
+				return p;
+			case BufferedImage.TYPE_INT_RGB:
+				return 0xFF000000 | p;
+			default:
+				return 0xFF000000 | (p & 0xFF) << 16 | (p & 0xFF00) | (p >> 16 & 0xFF);
+			}
+		}
+
+		@Override
+		public void setArgb(int x, int y, int argb) {
+			int i = base + y * stride + x;
+			switch (type) {
+			case BufferedImage.TYPE_INT_ARGB:
+				data[i] = argb;
+				break;
+			case BufferedImage.TYPE_INT_RGB:
+				data[i] = argb & 0xFFFFFF;
+				break;
+			default:
+				data[i] = (argb & 0xFF) << 16 | (argb & 0xFF00) | (argb >> 16 & 0xFF);
+			}
+		}
+
+		@Override
+		public void fill(int x, int y, int w, int h, int argb) {
+			if (w <= 0 || h <= 0)
+				return;
+			setArgb(x, y, argb);
+			int value = data[base + y * stride + x];
+			for (int j = y; j < y + h; j++) {
+				int i = base + j * stride + x;
+				Arrays.fill(data, i, i + w, value);
+			}
+		}
+	}
+
+	/**
+	 * TYPE_BYTE_GRAY, TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR backed by a DataBufferByte.
+	 */
+	private static final class ByteInterleaved extends PixelAccess {
+		private final byte[] data;
+		private final int base;
+		private final int stride;
+		private final int pixelStride;
+		private final int bands;
+		private final int[] offsets;
+
+		ByteInterleaved(BufferedImage image) {
+			super(image);
+			Raster raster = image.getRaster();
+			DataBufferByte db = (DataBufferByte) raster.getDataBuffer();
+			ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+			data = db.getData();
+			stride = sm.getScanlineStride();
+			pixelStride = sm.getPixelStride();
+			base = db.getOffset() - raster.getSampleModelTranslateY() * stride
+					- raster.getSampleModelTranslateX() * pixelStride;
+			bands = sm.getNumBands();
+			offsets = sm.getBandOffsets();
+		}
+
+		@Override
+		public void getPixels(int x, int y, int w, int[] dst, int off) {
+			int i = base + y * stride + x * pixelStride;
+			if (bands == 1) {
+				int o = offsets[0];
+				for (int k = 0; k < w; k++, i += pixelStride)
+					dst[off + k] = 0xFF000000 | (data[i + o] & 0xFF) * 0x010101;
+			} else {
+				int r = offsets[0], g = offsets[1], b = offsets[2];
+				int a = bands > 3 ? offsets[3] : -1;
+				for (int k = 0; k < w; k++, i += pixelStride) {
+					int alpha = a < 0 ? 0xFF : data[i + a] & 0xFF;
+					dst[off + k] = alpha << 24 | (data[i + r] & 0xFF) << 16 | (data[i + g] & 0xFF) << 8
+							| (data[i + b] & 0xFF);
+				}
+			}
+		}
+
+		@Override
+		public void setPixels(int x, int y, int w, int[] src, int off) {
+			int i = base + y * stride + x * pixelStride;
+			if (bands == 1) {
+				int o = offsets[0];
+				for (int k = 0; k < w; k++, i += pixelStride)
+					data[i + o] = (byte) gray(src[off + k]);
+			} else {
+				int r = offsets[0], g = offsets[1], b = offsets[2];
+				int a = bands > 3 ? offsets[3] : -1;
+				for (int k = 0; k < w; k++, i += pixelStride) {
+					int p = src[off + k];
+					data[i + r] = (byte) (p >> 16);
+					data[i + g] = (byte) (p >> 8);
+					data[i + b] = (byte) p;
+					if (a >= 0)
+						data[i + a] = (byte) (p >>> 24);
+				}
+			}
+		}
+
+		@Override
+		public void setGrayPixels(int x, int y, int w, int[] gray, int off) {
+			int i = base + y * stride + x * pixelStride;
+			if (bands == 1) {
+				int o = offsets[0];
+				for (int k = 0; k < w; k++, i += pixelStride)
+					data[i + o] = (byte) gray[off + k];
+			} else {
+				int r = offsets[0], g = offsets[1], b = offsets[2];
+				int a = bands > 3 ? offsets[3] : -1;
+				for (int k = 0; k < w; k++, i += pixelStride) {
+					byte v = (byte) gray[off + k];
+					data[i + r] = v;
+					data[i + g] = v;
+					data[i + b] = v;
+					if (a >= 0)
+						data[i + a] = (byte) 0xFF;
+				}
+			}
+		}
+
+		@Override
+		public int getArgb(int x, int y) {
+			int i = base + y * stride + x * pixelStride;
+			if (bands == 1)
+				return 0xFF000000 | (data[i + offsets[0]] & 0xFF) * 0x010101;
+			int alpha = bands > 3 ? data[i + offsets[3]] & 0xFF : 0xFF;
+			return alpha << 24 | (data[i + offsets[0]] & 0xFF) << 16 | (data[i + offsets[1]] & 0xFF) << 8
+					| (data[i + offsets[2]] & 0xFF);
+		}
+
+		@Override
+		public void setArgb(int x, int y, int argb) {
+			int i = base + y * stride + x * pixelStride;
+			if (bands == 1) {
+				data[i + offsets[0]] = (byte) gray(argb);
+			} else {
+				data[i + offsets[0]] = (byte) (argb >> 16);
+				data[i + offsets[1]] = (byte) (argb >> 8);
+				data[i + offsets[2]] = (byte) argb;
+				if (bands > 3)
+					data[i + offsets[3]] = (byte) (argb >>> 24);
+			}
+		}
+	}
+
+	/**
+	 * Images whose pixels live in a {@link MappedRaster}.
+	 */
+	private static final class Mapped extends PixelAccess {
+		private final MappedDataBuffer data;
+		private final int layout;
+
+		Mapped(BufferedImage image) {
+			super(image);
+			data = (MappedDataBuffer) image.getRaster().getDataBuffer();
+			layout = MappedRaster.layoutOf(image);
+		}
+
+		@Override
+		public void getPixels(int x, int y, int w, int[] dst, int off) {
+			int i = y * width + x;
+			switch (layout) {
+			case BufferedImage.TYPE_INT_ARGB:
+				data.getInts(i, dst, off, w);
+				break;
+			case BufferedImage.TYPE_INT_RGB:
+				data.getInts(i, dst, off, w);
+				for (int k = 0; k < w; k++)
+					dst[off + k] |= 0xFF000000;
+				break;
+			default:
+				ByteBuffer segment = data.byteSegment(i);
+				int j = data.segmentOffset(i);
+				for (int k = 0; k < w; k++)
+					dst[off + k] = 0xFF000000 | (segment.get(j + k) & 0xFF) * 0x010101;
+			}
+		}
+
+		@Override
+		public void setPixels(int x, int y, int w, int[] src, int off) {
+			int i = y * width + x;
+			switch (layout) {
+			case BufferedImage.TYPE_INT_ARGB:
+				data.putInts(i, src, off, w);
+				break;
+			case BufferedImage.TYPE_INT_RGB:
+				for (int k = 0; k < w; k++)
+					data.setElem(i + k, src[off + k] & 0xFFFFFF);
+				break;
+			default:
+				ByteBuffer segment = data.byteSegment(i);
+				int j = data.segmentOffset(i);
+				for (int k = 0; k < w; k++)
+					segment.put(j + k, (byte) gray(src[off + k]));
+			}
+		}
+
+		@Override
+		public void setGrayPixels(int x, int y, int w, int[] gray, int off) {
+			int i = y * width + x;
+			if (layout == BufferedImage.TYPE_BYTE_GRAY) {
+				ByteBuffer segment = data.byteSegment(i);
+				int j = data.segmentOffset(i);
+				for (int k = 0; k < w; k++)
+					segment.put(j + k, (byte) gray[off + k]);
+			} else {
+				int alpha = layout == BufferedImage.TYPE_INT_ARGB ? 0xFF000000 : 0;
+				for (int k = 0; k < w; k++)
+					data.setElem(i + k, alpha | gray[off + k] * 0x010101);
+			}
+		}
+
+		@Override
+		public int getArgb(int x, int y) {
+			int v = data.getElem(y * width + x);
+			switch (layout) {
+			case BufferedImage.TYPE_INT_ARGB:
+				return v;
+			case BufferedImage.TYPE_INT_RGB:
+				return 0xFF000000 | v;
+			default:
+				return 0xFF000000 | v * 0x010101;
+			}
+		}
+
+		@Override
+		public void setArgb(int x, int y, int argb) {
+			int i = y * width + x;
+			switch (layout) {
+			case BufferedImage.TYPE_INT_ARGB:
+				data.setElem(i, argb);
+				break;
+			case BufferedImage.TYPE_INT_RGB:
+				data.setElem(i, argb & 0xFFFFFF);
+				break;
+			default:
+				data.setElem(i, gray(argb));
+			}
+		}
+	}
+
+	/**
+	 * Views of {@link ImageHistory} versions, packed ARGB in tiles.
+	 */
+	private static final class Tiled extends PixelAccess {
+		private final TiledDataBuffer data;
+
+		Tiled(BufferedImage image) {
+			super(image);
+			data = (TiledDataBuffer) image.getRaster().getDataBuffer();
+		}
+
+		@Override
+		public void getPixels(int x, int y, int w, int[] dst, int off) {
+			data.getPixels(x, y, w, dst, off);
+		}
+
+		@Override
+		public void setPixels(int x, int y, int w, int[] src, int off) {
+			data.setPixels(x, y, w, src, off);
+		}
+
+		@Override
+		public int getArgb(int x, int y) {
+			return data.getElem(y * width + x);
+		}
+
+		@Override
+		public void setArgb(int x, int y, int argb) {
+			data.setElem(y * width + x, argb);
+		}
+	}
+
+	/**
+	 * Any other image type, accessed through the row variants of getRGB and setRGB.
+	 */
+	private static final class Generic extends PixelAccess {
+
+		Generic(BufferedImage image) {
+			super(image);
+		}
+
+		@Override
+		public void getPixels(int x, int y, int w, int[] dst, int off) {
+			image.getRGB(x, y, w, 1, dst, off, w);
+		}
+
+		@Override
+		public void setPixels(int x, int y, int w, int[] src, int off) {
+			image.setRGB(x, y, w, 1, src, off, w);
+		}
+
+		@Override
+		public int getArgb(int x, int y) {
+			return image.getRGB(x, y);
+		}
+
+		@Override
+		public void setArgb(int x, int y, int argb) {
+			image.setRGB(x, y, argb);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package imageProcessing;
+
+/**
+ * The inner loops shared by the filters, applied to one row at a time. The
+ * implementation is chosen once per JVM: a SIMD version built on the
+ * jdk.incubator.vector module when that module is present (run with
+ * --add-modules jdk.incubator.vector), otherwise a plain scalar version. Both
+ * produce exactly the same output; set -DimageProcessing.simd=false to force
+ * the scalar one.
+ *
+ * Luma is computed in integer arithmetic with the fixed-point weights of
+ * {@link LumaWeights}.
+ */
+public abstract class PixelKernels {
+	private static final PixelKernels INSTANCE = create();
+
+	/**
+	 * @return the kernels selected for this JVM
+	 */
+	public static PixelKernels get() {
+		return INSTANCE;
+	}
+
+	private static PixelKernels create() {
+		if (!Boolean.parseBoolean(System.getProperty("imageProcessing.simd", "true")))
+			return new ScalarKernels();
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty())
+			return new ScalarKernels();
+		try {
+			// loaded by name so the vector classes are only linked when the module is there
+			return (PixelKernels) Class.forName("imageProcessing.VectorKernels").getDeclaredConstructor()
+					.newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return new ScalarKernels();
+		}
+	}
+
+	/**
+	 * Fixed-point BT.601 luma of a packed rgb value.
+	 */
+	public static int luma(int rgb) {
+		return LumaWeights.BT601.luma(rgb);
+	}
+
+	/**
+	 * @return a short name of the implementation, e.g. for logs
+	 */
+	public abstract String getName();
+
+	/**
+	 * dst[dstOff + i] = weights.luma(argb[off + i]) for i in 0..n-1.
+	 */
+	public abstract void luma(LumaWeights weights, int[] argb, int off, int[] dst, int dstOff, int n);
+
+	/**
+	 * dst[dstOff + i] = lut[src[off + i]] for i in 0..n-1. The values in src must be
+	 * valid indices into lut. src and dst may be the same array.
+	 */
+	public abstract void lookup(int[] src, int off, int[] lut, int[] dst, int dstOff, int n);
+
+	/**
+	 * One row of a separable or row-by-row convolution:
+	 *     dst[dstOff + i] = sum over k of taps[k] * src[off + i + k]
+	 * for i in 0..n-1. src must hold n + taps.length - 1 values from off.
+	 */
+	public abstract void convolveRow(int[] src, int off, int[] taps, int[] dst, int dstOff, int n);
+
+	/**
+	 * The column step of a separable convolution:
+	 *     dst[off + i] = sum over k of taps[k] * rows[k][off + i]
+	 * for i in 0..n-1, with one row per tap.
+	 */
+	public abstract void convolveColumn(int[][] rows, int[] taps, int[] dst, int off, int n);
+
+	/**
+	 * Gradient length normalized from 0..1443, the largest Sobel response on 8-bit
+	 * levels, to 0..255:
+	 *     dst[off + i] = (int) (sqrt(ix * ix + iy * iy) / 1443 * 255)
+	 * for i in 0..n-1, where ix and iy are the values at off + i.
+	 */
+	public abstract void magnitude(int[] ix, int[] iy, int[] dst, int off, int n);
+}
@@ -0,0 +1,316 @@
+package imageProcessing;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads a PNG row by row from the top, inflating the image data as it goes, so
+ * that reading all rows costs one pass over the file and the image never has to
+ * be in memory as a whole. The JDK PNG reader decodes from the start of the file
+ * for every source region, which is why {@link StreamingProcessor} uses this for
+ * png input; it is the counterpart of {@link PngStripWriter}.
+ *
+ * All color types and bit depths are read, with 16-bit samples cut to their
+ * high byte, and tRNS transparency is applied. Interlaced images cannot be read
+ * row by row and are rejected. Chunk CRCs are not checked.
+ */
+class PngStripReader implements AutoCloseable {
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+	private static final int IHDR = 0x49484452;
+	private static final int PLTE = 0x504C5445;
+	private static final int TRNS = 0x74524E53;
+	private static final int IDAT = 0x49444154;
+
+	private final DataInputStream in;
+	private final int width;
+	private final int height;
+	private final int bitDepth;
+	private final int colorType;
+	private final int channels;
+	/** Bytes per complete pixel, at least 1, as the filters use it. */
+	private final int bpp;
+	private int[] palette;
+	/** The transparent gray or rgb sample values, or the palette alphas. */
+	private int[] transparent;
+	private final Inflater zlib = new Inflater();
+	private final InflaterInputStream data;
+	private byte[] line;
+	private byte[] previous;
+	private int rowsRead;
+
+	/**
+	 * Reads the header chunks, up to the image data.
+	 *
+	 * @param file the png file
+	 * @throws IOException if the file cannot be read, is not a PNG or is interlaced
+	 */
+	PngStripReader(File file) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			byte[] signature = new byte[SIGNATURE.length];
+			in.readFully(signature);
+			if (!Arrays.equals(signature, SIGNATURE))
+				throw new IOException(file + ": not a PNG");
+			int length = in.readInt();
+			if (in.readInt() != IHDR || length != 13)
+				throw new IOException(file + ": IHDR missing");
+			width = in.readInt();
+			height = in.readInt();
+			bitDepth = in.readUnsignedByte();
+			colorType = in.readUnsignedByte();
+			in.readUnsignedByte(); // compression, always deflate
+			in.readUnsignedByte(); // filter method, always adaptive
+			if (in.readUnsignedByte() != 0)
+				throw new IOException(file + ": interlaced PNGs cannot be read row by row");
+			in.readInt(); // crc
+			channels = colorType == 0 || colorType == 3 ? 1 : colorType == 2 ? 3 : colorType == 4 ? 2 : 4;
+			bpp = Math.max(1, channels * bitDepth / 8);
+			int stride = (int) (((long) width * channels * bitDepth + 7) / 8);
+			line = new byte[stride];
+			previous = new byte[stride];
+			while ((length = in.readInt()) >= 0) {
+				int type = in.readInt();
+				if (type == IDAT)
+					break;
+				if (type == PLTE) {
+					palette = new int[256];
+					for (int i = 0; i < length / 3; i++)
+						palette[i] = 0xFF000000 | in.readUnsignedByte() << 16 | in.readUnsignedByte() << 8
+								| in.readUnsignedByte();
+					in.skipBytes(length - length / 3 * 3);
+				} else if (type == TRNS) {
+					transparent = new int[colorType == 3 ? 256 : colorType == 2 ? 3 : 1];
+					Arrays.fill(transparent, colorType == 3 ? 255 : -1);
+					for (int i = 0; i < length; i++) {
+						if (colorType == 3)
+							transparent[i] = in.readUnsignedByte();
+						else if (i % 2 == 0 && i / 2 < transparent.length)
+							transparent[i / 2] = in.readUnsignedShort();
+						else
+							in.readUnsignedByte();
+					}
+					if (colorType != 3 && length % 2 != 0)
+						throw new IOException(file + ": bad tRNS chunk");
+				} else {
+					skip(length);
+				}
+				in.readInt(); // crc
+			}
+			if (colorType == 3 && palette == null)
+				throw new IOException(file + ": PLTE missing");
+			data = new InflaterInputStream(new IdatStream(length), zlib, 1 << 16);
+		} catch (IOException | RuntimeException ex) {
+			in.close();
+			zlib.end();
+			throw ex;
+		}
+	}
+
+	int getWidth() {
+		return width;
+	}
+
+	int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Whether the image is gray without transparency, so it can be read into
+	 * TYPE_BYTE_GRAY.
+	 */
+	boolean isGray() {
+		return colorType == 0 && transparent == null;
+	}
+
+	/**
+	 * Whether some pixel may be transparent.
+	 */
+	boolean hasAlpha() {
+		return colorType == 4 || colorType == 6 || transparent != null;
+	}
+
+	/**
+	 * Reads the next row as ARGB pixels.
+	 *
+	 * @param argb receives width pixels
+	 * @throws IOException if the file cannot be read or the image data is corrupt
+	 */
+	void readRow(int[] argb) throws IOException {
+		if (rowsRead == height)
+			throw new EOFException("all " + height + " rows read");
+		int filter = data.read();
+		if (filter < 0)
+			throw new EOFException("image data ends at row " + rowsRead);
+		readFully(line);
+		unfilter(filter);
+		convert(argb);
+		byte[] t = previous;
+		previous = line;
+		line = t;
+		rowsRead++;
+	}
+
+	private void readFully(byte[] b) throws IOException {
+		for (int n = 0, r; n < b.length; n += r)
+			if ((r = data.read(b, n, b.length - n)) < 0)
+				throw new EOFException("image data ends at row " + rowsRead);
+	}
+
+	private void unfilter(int filter) throws IOException {
+		byte[] cur = line;
+		byte[] up = previous;
+		int n = cur.length;
+		switch (filter) {
+		case 0:
+			break;
+		case 1: // sub
+			for (int i = bpp; i < n; i++)
+				cur[i] += cur[i - bpp];
+			break;
+		case 2: // up
+			for (int i = 0; i < n; i++)
+				cur[i] += up[i];
+			break;
+		case 3: // average
+			for (int i = 0; i < n; i++) {
+				int left = i < bpp ? 0 : cur[i - bpp] & 0xFF;
+				cur[i] += (left + (up[i] & 0xFF)) >> 1;
+			}
+			break;
+		case 4: // paeth
+			for (int i = 0; i < n; i++) {
+				int a = i < bpp ? 0 : cur[i - bpp] & 0xFF;
+				int b = up[i] & 0xFF;
+				int c = i < bpp ? 0 : up[i - bpp] & 0xFF;
+				int p = a + b - c;
+				int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+				cur[i] += pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+			}
+			break;
+		default:
+			throw new IOException("bad filter type " + filter + " at row " + rowsRead);
+		}
+	}
+
+	private void convert(int[] argb) {
+		byte[] b = line;
+		switch (colorType) {
+		case 0: // gray
+		case 3: // palette
+			for (int x = 0; x < width; x++) {
+				int v = sample(b, x);
+				if (colorType == 3) {
+					argb[x] = palette[v] & 0xFFFFFF | (transparent == null ? 0xFF : transparent[v]) << 24;
+				} else {
+					int g = bitDepth == 16 ? v >> 8 : v * 255 / ((1 << bitDepth) - 1);
+					int a = transparent != null && v == transparent[0] ? 0 : 0xFF;
+					argb[x] = a << 24 | g << 16 | g << 8 | g;
+				}
+			}
+			break;
+		case 2: // rgb
+			for (int x = 0; x < width; x++) {
+				int r = sample(b, 3 * x), g = sample(b, 3 * x + 1), bl = sample(b, 3 * x + 2);
+				int a = transparent != null && r == transparent[0] && g == transparent[1] && bl == transparent[2] ? 0 : 0xFF;
+				argb[x] = a << 24 | high(r) << 16 | high(g) << 8 | high(bl);
+			}
+			break;
+		case 4: // gray and alpha
+			for (int x = 0; x < width; x++) {
+				int g = high(sample(b, 2 * x));
+				argb[x] = high(sample(b, 2 * x + 1)) << 24 | g << 16 | g << 8 | g;
+			}
+			break;
+		default: // rgba
+			for (int x = 0; x < width; x++)
+				argb[x] = high(sample(b, 4 * x + 3)) << 24 | high(sample(b, 4 * x)) << 16
+						| high(sample(b, 4 * x + 1)) << 8 | high(sample(b, 4 * x + 2));
+		}
+	}
+
+	/**
+	 * The i-th sample of a row, at its full bit depth.
+	 */
+	private int sample(byte[] b, int i) {
+		switch (bitDepth) {
+		case 8:
+			return b[i] & 0xFF;
+		case 16:
+			return (b[2 * i] & 0xFF) << 8 | b[2 * i + 1] & 0xFF;
+		default:
+			int bit = i * bitDepth;
+			return (b[bit >> 3] & 0xFF) >> (8 - bitDepth - (bit & 7)) & (1 << bitDepth) - 1;
+		}
+	}
+
+	/**
+	 * An 8 or 16 bit sample cut to 8 bits.
+	 */
+	private int high(int v) {
+		return bitDepth == 16 ? v >> 8 : v;
+	}
+
+	private void skip(long n) throws IOException {
+		while (n > 0) {
+			int skipped = in.skipBytes((int) Math.min(n, Integer.MAX_VALUE));
+			if (skipped <= 0)
+				throw new EOFException();
+			n -= skipped;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			in.close();
+		} finally {
+			zlib.end();
+		}
+	}
+
+	/**
+	 * The data of consecutive IDAT chunks as one stream.
+	 */
+	private final class IdatStream extends InputStream {
+		private int remaining;
+		private boolean done;
+
+		IdatStream(int first) {
+			remaining = first;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			while (remaining == 0) {
+				if (done)
+					return -1;
+				in.readInt(); // crc of the chunk just read
+				remaining = in.readInt();
+				if (in.readInt() != IDAT) {
+					done = true;
+					remaining = 0;
+					return -1;
+				}
+			}
+			int n = in.read(b, off, Math.min(len, remaining));
+			if (n < 0)
+				throw new EOFException("IDAT chunk cut short");
+			remaining -= n;
+			return n;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package imageProcessing;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an 8-bit PNG row strip by row strip, so that an image never has to be in
+ * memory as a whole. The JDK PNG writer can only encode complete images, which is
+ * why {@link StreamingProcessor} uses this for png output. Gray images are written
+ * as gray, others as RGB or RGBA depending on whether the first strip has alpha.
+ */
+class PngStripWriter implements AutoCloseable {
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+	/** Compressed bytes collected before an IDAT chunk is emitted. */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private final DataOutputStream out;
+	private final int width;
+	private final int height;
+	private final ByteArrayOutputStream idat = new ByteArrayOutputStream(CHUNK_SIZE * 2);
+	private Deflater zlib;
+	private DeflaterOutputStream deflater;
+	private int channels;
+	private int rowsWritten;
+	private byte[] line;
+	private int[] row;
+
+	/**
+	 * @param file   the png file to create
+	 * @param width  the image width
+	 * @param height the image height
+	 * @throws IOException if the file cannot be created
+	 */
+	PngStripWriter(File file, int width, int height) throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Appends the rows of strip below the rows written so far.
+	 *
+	 * @param strip rows of the image, as wide as the image
+	 * @throws IOException if writing fails
+	 */
+	void write(BufferedImage strip) throws IOException {
+		if (deflater == null)
+			start(strip);
+		PixelAccess pixels = PixelAccess.of(strip);
+		for (int y = 0; y < strip.getHeight(); y++) {
+			pixels.getPixels(0, y, width, row, 0);
+			line[0] = 0; // filter type None
+			for (int x = 0, i = 1; x < width; x++) {
+				int p = row[x];
+				if (channels == 1) {
+					line[i++] = (byte) p;
+				} else {
+					line[i++] = (byte) (p >> 16);
+					line[i++] = (byte) (p >> 8);
+					line[i++] = (byte) p;
+					if (channels == 4)
+						line[i++] = (byte) (p >>> 24);
+				}
+			}
+			deflater.write(line);
+			if (idat.size() >= CHUNK_SIZE)
+				flushIdat();
+		}
+		rowsWritten += strip.getHeight();
+	}
+
+	private void start(BufferedImage first) throws IOException {
+		if (first.getType() == BufferedImage.TYPE_BYTE_GRAY)
+			channels = 1;
+		else
+			channels = first.getColorModel().hasAlpha() ? 4 : 3;
+		line = new byte[1 + width * channels];
+		row = new int[width];
+		out.write(SIGNATURE);
+		ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+		DataOutputStream h = new DataOutputStream(header);
+		h.writeInt(width);
+		h.writeInt(height);
+		h.writeByte(8); // bit depth
+		h.writeByte(channels == 1 ? 0 : channels == 3 ? 2 : 6); // color type
+		h.writeByte(0); // deflate
+		h.writeByte(0); // adaptive filtering
+		h.writeByte(0); // no interlace
+		chunk("IHDR", header.toByteArray(), header.size());
+		zlib = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		deflater = new DeflaterOutputStream(idat, zlib, 1 << 16);
+	}
+
+	private void flushIdat() throws IOException {
+		chunk("IDAT", idat.toByteArray(), idat.size());
+		idat.reset();
+	}
+
+	private void chunk(String type, byte[] data, int length) throws IOException {
+		byte[] name = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(name);
+		crc.update(data, 0, length);
+		out.writeInt(length);
+		out.write(name);
+		out.write(data, 0, length);
+		out.writeInt((int) crc.getValue());
+	}
+
+	/**
+	 * Finishes the image. Every row must have been written; if some are missing
+	 * the file is closed without its last chunks, so it does not pass for a
+	 * complete PNG, and the caller should delete it.
+	 *
+	 * @throws IOException if writing fails or rows are missing
+	 */
+	@Override
+	@SuppressWarnings("try") // o only closes out, whatever happens before
+	public void close() throws IOException {
+		try (OutputStream o = out) {
+			if (deflater == null)
+				throw new IOException("no rows written");
+			if (rowsWritten != height)
+				throw new IOException("wrote " + rowsWritten + " of " + height + " rows");
+			deflater.finish();
+			flushIdat();
+			chunk("IEND", new byte[0], 0);
+		} finally {
+			// DeflaterOutputStream only ends deflaters it created itself
+			if (zlib != null)
+				zlib.end();
+		}
+	}
+}
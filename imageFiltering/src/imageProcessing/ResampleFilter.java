@@ -0,0 +1,94 @@
+package imageProcessing;
+
+/**
+ * The reconstruction filters of a {@link Resampler}. Each is applied separably,
+ * first along rows and then along columns. When shrinking, the filter is
+ * stretched by the reduction factor so every source pixel contributes and fine
+ * detail averages out instead of aliasing.
+ */
+public enum ResampleFilter {
+	/**
+	 * Each output pixel is the average of the source area it covers, weighted by
+	 * how much of each source pixel lies inside. Exact for downscales by whole
+	 * factors and never rings, but soft when enlarging.
+	 */
+	AREA(0.5) {
+		@Override
+		double weight(double x) {
+			return Math.abs(x) <= 0.5 ? 1 : 0;
+		}
+
+		@Override
+		double weight(double d, double footprint) {
+			// overlap of the source pixel [d - 0.5, d + 0.5] with the footprint
+			double half = footprint / 2;
+			return Math.max(0, Math.min(d + 0.5, half) - Math.max(d - 0.5, -half));
+		}
+
+		@Override
+		double reach(double footprint) {
+			return footprint / 2 + 0.5;
+		}
+	},
+	/** Linear interpolation between the two nearest pixels, a triangle filter. */
+	BILINEAR(1) {
+		@Override
+		double weight(double x) {
+			x = Math.abs(x);
+			return x < 1 ? 1 - x : 0;
+		}
+	},
+	/** The Catmull-Rom cubic, a = -0.5: sharper than bilinear with a slight overshoot. */
+	BICUBIC(2) {
+		@Override
+		double weight(double x) {
+			x = Math.abs(x);
+			if (x < 1)
+				return (1.5 * x - 2.5) * x * x + 1;
+			if (x < 2)
+				return ((-0.5 * x + 2.5) * x - 4) * x + 2;
+			return 0;
+		}
+	},
+	/** A windowed sinc over three lobes: the sharpest, at the cost of faint ringing at hard edges. */
+	LANCZOS3(3) {
+		@Override
+		double weight(double x) {
+			x = Math.abs(x);
+			if (x < 1e-9)
+				return 1;
+			if (x >= 3)
+				return 0;
+			double px = Math.PI * x;
+			return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+		}
+	};
+
+	/** How far the filter reaches on each side, in source pixels at scale 1. */
+	final double radius;
+
+	ResampleFilter(double radius) {
+		this.radius = radius;
+	}
+
+	/**
+	 * The filter kernel at x pixels from the sample point, unnormalized.
+	 */
+	abstract double weight(double x);
+
+	/**
+	 * The unnormalized weight of the source pixel d pixels from the sample point,
+	 * for an output pixel that covers footprint source pixels.
+	 */
+	double weight(double d, double footprint) {
+		return weight(d / Math.max(1, footprint));
+	}
+
+	/**
+	 * How far from the sample point source pixels have weight, for an output pixel
+	 * that covers footprint source pixels.
+	 */
+	double reach(double footprint) {
+		return radius * Math.max(1, footprint);
+	}
+}
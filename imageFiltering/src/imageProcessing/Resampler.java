@@ -0,0 +1,294 @@
+package imageProcessing;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Scales and moves images with separable {@link ResampleFilter}s. A source pixel
+ * at (u, v) lands at (u * sx + tx, v * sy + ty) in the destination, and each
+ * destination pixel whose center falls inside the moved source is computed in a
+ * single pass, so a scale followed by a move is never resampled twice.
+ *
+ * The filter weights of every destination column and row are computed once per
+ * call, in 14-bit fixed point and normalized to sum to exactly one, so flat areas
+ * come out unchanged. Each band of destination rows filters the source rows it
+ * needs horizontally, then combines them vertically; see {@link BandScheduler}.
+ * Shrinking by more than half first halves the source with
+ * {@link ImagePyramid}, so the cost per pixel stays bounded however far an image
+ * is reduced. Colors with alpha are filtered premultiplied.
+ */
+public class Resampler {
+	private static final int BITS = 14;
+	private static final int ONE = 1 << BITS;
+	private static final int ROUND = 1 << BITS - 1;
+
+	private final BandScheduler scheduler;
+
+	public Resampler(BandScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Draws src into dst, scaled by sx, sy and moved by tx, ty. Source pixels
+	 * outside src repeat its edge; destination pixels outside the moved source
+	 * are left as they are.
+	 *
+	 * @param src    the source image
+	 * @param dst    the destination, of any size
+	 * @param sx     the horizontal scale, positive
+	 * @param sy     the vertical scale, positive
+	 * @param tx     where the left edge of src lands
+	 * @param ty     where the top edge of src lands
+	 * @param filter the reconstruction filter
+	 */
+	public void resample(BufferedImage src, BufferedImage dst, double sx, double sy, double tx, double ty,
+			ResampleFilter filter) {
+		if (!(sx > 0 && sy > 0))
+			throw new IllegalArgumentException("scales must be positive: " + sx + ", " + sy);
+		int w = src.getWidth();
+		int h = src.getHeight();
+		// destination pixels whose centers lie inside the moved source
+		int x0 = (int) Math.max(0, Math.ceil(tx - 0.5));
+		int x1 = (int) Math.min(dst.getWidth(), Math.ceil(tx + sx * w - 0.5));
+		int y0 = (int) Math.max(0, Math.ceil(ty - 0.5));
+		int y1 = (int) Math.min(dst.getHeight(), Math.ceil(ty + sy * h - 0.5));
+		if (x1 <= x0 || y1 <= y0)
+			return;
+		if (sx == 1 && sy == 1 && tx == Math.rint(tx) && ty == Math.rint(ty)) {
+			copy(src, dst, x0, x1, y0, y1, (int) tx, (int) ty);
+			return;
+		}
+		// each level halves the size in both directions, so source coordinates simply double
+		boolean alpha = src.getColorModel().hasAlpha();
+		boolean premultiplied = false; // whether src holds premultiplied colors already
+		while (sx <= 0.5 && sy <= 0.5 && Math.max(src.getWidth(), src.getHeight()) > 1) {
+			if (alpha && !premultiplied) {
+				// averaging must not let the color of transparent pixels bleed in
+				src = premultiplied(src);
+				premultiplied = true;
+			}
+			src = ImagePyramid.half(src, scheduler);
+			sx *= 2;
+			sy *= 2;
+		}
+		Weights cols = new Weights(src.getWidth(), sx, tx, x0, x1, filter);
+		Weights rows = new Weights(src.getHeight(), sy, ty, y0, y1, filter);
+		boolean premultiply = alpha && !premultiplied;
+		PixelAccess in = PixelAccess.of(src);
+		PixelAccess out = PixelAccess.of(dst);
+		int sw = src.getWidth();
+		int ow = x1 - x0;
+		// bands of several filter heights, so the rows shared with the next band are few
+		scheduler.forEach(ow, y1 - y0, 4 * rows.taps, (r0, r1) -> {
+			// the source rows this band reads, filtered horizontally once each into
+			// planes of red, green, blue and, with alpha, alpha
+			int first = rows.start[r0];
+			int last = rows.start[r1 - 1] + rows.length[r1 - 1];
+			int[][][] planes = new int[alpha ? 4 : 3][last - first][ow];
+			int[] row = new int[sw];
+			for (int v = first; v < last; v++) {
+				in.getPixels(0, v, sw, row, 0);
+				if (premultiply)
+					premultiply(row, sw);
+				horizontal(row, cols, planes, v - first, alpha);
+			}
+			int[][] sums = new int[planes.length][ow];
+			int[] line = new int[ow];
+			for (int i = r0; i < r1; i++) {
+				int off = i * rows.taps;
+				for (int c = 0; c < planes.length; c++) {
+					int[] sum = sums[c];
+					Arrays.fill(sum, ROUND);
+					for (int t = 0; t < rows.length[i]; t++) {
+						int[] f = planes[c][rows.start[i] + t - first];
+						int wt = rows.weights[off + t];
+						for (int x = 0; x < ow; x++)
+							sum[x] += f[x] * wt;
+					}
+				}
+				int[] r = sums[0], g = sums[1], bl = sums[2];
+				for (int x = 0; x < ow; x++) {
+					int al = alpha ? clamp(sums[3][x] >> BITS, 255) : 255;
+					line[x] = al << 24 | channel(r[x], al) << 16 | channel(g[x], al) << 8 | channel(bl[x], al);
+				}
+				if (alpha)
+					unpremultiply(line, ow);
+				out.setPixels(x0, y0 + i, ow, line, 0);
+			}
+		});
+	}
+
+	/**
+	 * Filters one source row into row i of the destination column planes. Without
+	 * alpha the alpha channel is 255 throughout and is not filtered.
+	 */
+	private static void horizontal(int[] row, Weights cols, int[][][] planes, int i, boolean alpha) {
+		int taps = cols.taps;
+		int[] rp = planes[0][i], gp = planes[1][i], bp = planes[2][i];
+		int[] ap = alpha ? planes[3][i] : null;
+		for (int x = 0; x < rp.length; x++) {
+			int s = cols.start[x];
+			int off = x * taps;
+			int a = ROUND, r = ROUND, g = ROUND, b = ROUND;
+			for (int t = 0; t < cols.length[x]; t++) {
+				int p = row[s + t];
+				int wt = cols.weights[off + t];
+				a += (p >>> 24) * wt;
+				r += (p >> 16 & 0xFF) * wt;
+				g += (p >> 8 & 0xFF) * wt;
+				b += (p & 0xFF) * wt;
+			}
+			int al = alpha ? clamp(a >> BITS, 255) : 255;
+			if (alpha)
+				ap[x] = al;
+			rp[x] = channel(r, al);
+			gp[x] = channel(g, al);
+			bp[x] = channel(b, al);
+		}
+	}
+
+	/**
+	 * A rounded fixed-point sum as a channel value, clamped to 0..max. Filters with
+	 * negative lobes can overshoot, and premultiplied colors must not exceed their
+	 * alpha, which is 255 without alpha.
+	 */
+	private static int channel(int sum, int max) {
+		return clamp(sum >> BITS, max);
+	}
+
+	private static int clamp(int v, int max) {
+		return v < 0 ? 0 : v > max ? max : v;
+	}
+
+	private static void premultiply(int[] row, int n) {
+		for (int i = 0; i < n; i++) {
+			int p = row[i];
+			int a = p >>> 24;
+			if (a == 255)
+				continue;
+			row[i] = a << 24 | mul(p >> 16 & 0xFF, a) << 16 | mul(p >> 8 & 0xFF, a) << 8 | mul(p & 0xFF, a);
+		}
+	}
+
+	/** c * a / 255, rounded. */
+	private static int mul(int c, int a) {
+		int t = c * a + 128;
+		return (t + (t >> 8)) >> 8;
+	}
+
+	private static void unpremultiply(int[] row, int n) {
+		for (int i = 0; i < n; i++) {
+			int p = row[i];
+			int a = p >>> 24;
+			if (a == 255)
+				continue;
+			if (a == 0) {
+				row[i] = 0;
+				continue;
+			}
+			int half = a / 2;
+			row[i] = a << 24 | ((p >> 16 & 0xFF) * 255 + half) / a << 16 | ((p >> 8 & 0xFF) * 255 + half) / a << 8
+					| ((p & 0xFF) * 255 + half) / a;
+		}
+	}
+
+	/**
+	 * A TYPE_INT_ARGB copy of src whose pixels hold premultiplied colors.
+	 */
+	private BufferedImage premultiplied(BufferedImage src) {
+		int w = src.getWidth();
+		BufferedImage copy = new BufferedImage(w, src.getHeight(), BufferedImage.TYPE_INT_ARGB);
+		PixelAccess in = PixelAccess.of(src);
+		PixelAccess out = PixelAccess.of(copy);
+		scheduler.forEach(w, src.getHeight(), (y0, y1) -> {
+			int[] row = new int[w];
+			for (int y = y0; y < y1; y++) {
+				in.getPixels(0, y, w, row, 0);
+				premultiply(row, w);
+				out.setPixels(0, y, w, row, 0);
+			}
+		});
+		return copy;
+	}
+
+	/**
+	 * Moves src by whole pixels: the pixels are copied, not filtered.
+	 */
+	private void copy(BufferedImage src, BufferedImage dst, int x0, int x1, int y0, int y1, int dx, int dy) {
+		PixelAccess in = PixelAccess.of(src);
+		PixelAccess out = PixelAccess.of(dst);
+		int n = x1 - x0;
+		scheduler.forEach(n, y1 - y0, (r0, r1) -> {
+			int[] row = new int[n];
+			for (int i = r0; i < r1; i++) {
+				in.getPixels(x0 - dx, y0 + i - dy, n, row, 0);
+				out.setPixels(x0, y0 + i, n, row, 0);
+			}
+		});
+	}
+
+	/**
+	 * The filter weights of a range of destination columns or rows: output i reads
+	 * the length[i] source pixels from start[i] with weights[i * taps ...].
+	 */
+	static final class Weights {
+		final int[] start;
+		final int[] length;
+		final int[] weights;
+		final int taps;
+
+		/**
+		 * @param size   the source width or height
+		 * @param scale  the scale along this axis
+		 * @param offset where source coordinate 0 lands
+		 * @param from   the first destination pixel
+		 * @param to     the end of the destination pixels, exclusive
+		 * @param filter the filter
+		 */
+		Weights(int size, double scale, double offset, int from, int to, ResampleFilter filter) {
+			int n = to - from;
+			double footprint = 1 / scale;
+			double reach = filter.reach(footprint);
+			taps = Math.min(size, (int) Math.ceil(2 * reach) + 1);
+			start = new int[n];
+			length = new int[n];
+			weights = new int[n * taps];
+			double[] w = new double[(int) Math.ceil(2 * reach) + 2];
+			for (int i = 0; i < n; i++) {
+				// the sample point in source pixel coordinates, pixel centers at whole numbers
+				double u = (from + i + 0.5 - offset) * footprint - 0.5;
+				int lo = (int) Math.ceil(u - reach);
+				int hi = Math.min(lo + w.length - 1, (int) Math.floor(u + reach));
+				double sum = 0;
+				for (int k = lo; k <= hi; k++) {
+					w[k - lo] = filter.weight(k - u, footprint);
+					sum += w[k - lo];
+				}
+				if (sum == 0) {
+					// a footprint between two samples of the kernel: take the nearest pixel
+					lo = hi = (int) Math.round(u);
+					w[0] = sum = 1;
+				}
+				// pixels past the edge repeat the edge pixel, so their weight moves onto it
+				int first = Math.max(0, Math.min(lo, size - 1));
+				int last = Math.max(0, Math.min(hi, size - 1));
+				int off = i * taps;
+				int total = 0;
+				int peak = off;
+				for (int k = lo; k <= hi; k++) {
+					int j = Math.max(first, Math.min(k, last)) - first;
+					weights[off + j] += (int) Math.round(w[k - lo] / sum * ONE);
+				}
+				for (int j = 0; j <= last - first; j++) {
+					total += weights[off + j];
+					if (weights[off + j] > weights[peak])
+						peak = off + j;
+				}
+				// rounding error goes to the largest weight, so the weights sum to exactly ONE
+				weights[peak] += ONE - total;
+				start[i] = first;
+				length[i] = last - first + 1;
+			}
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package imageProcessing;
+
+import java.util.Arrays;
+
+/**
+ * Plain Java implementation of {@link PixelKernels}.
+ */
+final class ScalarKernels extends PixelKernels {
+
+	@Override
+	public String getName() {
+		return "scalar";
+	}
+
+	@Override
+	public void luma(LumaWeights weights, int[] argb, int off, int[] dst, int dstOff, int n) {
+		for (int i = 0; i < n; i++)
+			dst[dstOff + i] = weights.luma(argb[off + i]);
+	}
+
+	@Override
+	public void lookup(int[] src, int off, int[] lut, int[] dst, int dstOff, int n) {
+		for (int i = 0; i < n; i++)
+			dst[dstOff + i] = lut[src[off + i]];
+	}
+
+	@Override
+	public void convolveRow(int[] src, int off, int[] taps, int[] dst, int dstOff, int n) {
+		// one sweep per tap, which the JIT can vectorize on its own
+		Arrays.fill(dst, dstOff, dstOff + n, 0);
+		for (int k = 0; k < taps.length; k++) {
+			int t = taps[k];
+			if (t == 0)
+				continue;
+			int s = off + k;
+			for (int i = 0; i < n; i++)
+				dst[dstOff + i] += t * src[s + i];
+		}
+	}
+
+	@Override
+	public void convolveColumn(int[][] rows, int[] taps, int[] dst, int off, int n) {
+		Arrays.fill(dst, off, off + n, 0);
+		for (int k = 0; k < taps.length; k++) {
+			int t = taps[k];
+			if (t == 0)
+				continue;
+			int[] row = rows[k];
+			for (int i = off; i < off + n; i++)
+				dst[i] += t * row[i];
+		}
+	}
+
+	@Override
+	public void magnitude(int[] ix, int[] iy, int[] dst, int off, int n) {
+		for (int i = off; i < off + n; i++)
+			dst[i] = magnitude(ix[i] * ix[i] + iy[i] * iy[i]);
+	}
+
+	static int magnitude(int squared) {
+		double length = Math.sqrt(squared);
+		length = length / 1443 * 255;
+		return (int) length;
+	}
+}
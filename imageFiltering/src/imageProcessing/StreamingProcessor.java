@@ -0,0 +1,402 @@
+package imageProcessing;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Runs a filter chain over an image that may be larger than the heap. The source is
+ * read strip by strip (optionally subsampled), each strip is filtered with enough
+ * halo rows for the neighborhood filters in the chain, and the result is written
+ * strip by strip, so peak memory depends on the strip size rather than the image
+ * size. PNG sources are read row by row with {@link PngStripReader}, TIFF sources
+ * through ImageReadParam.setSourceRegion; other formats, such as jpeg, can only be
+ * decoded from the start and are rejected.
+ *
+ * Output goes through an ImageWriter that can write an empty image and replace its
+ * pixels afterwards (tiff in the JDK), or through {@link PngStripWriter} for png.
+ *
+ * Equalize and sobel need the histogram of the whole image they are applied to, so
+ * each of them adds one streaming pass over the source before the final pass.
+ * Filters that move pixels (frame) are not supported.
+ *
+ * <pre>
+ * java -cp image-filtering.jar imageProcessing.StreamingProcessor
+ *     [-f luminance,equalize,sobel] [-r stripRows] [-s subsampling] input output
+ * </pre>
+ */
+public class StreamingProcessor {
+	private final FilterEngine engine;
+	private final int stripRows;
+
+	/**
+	 * One filter of the chain.
+	 */
+	private static final class Stage {
+		final String name;
+		/** Rows needed above and below each output row. */
+		final int halo;
+		final boolean needsLut;
+		int[] lut;
+
+		Stage(String name, int halo, boolean needsLut) {
+			this.name = name;
+			this.halo = halo;
+			this.needsLut = needsLut;
+		}
+	}
+
+	/**
+	 * Receives the filtered strips of a pass in order.
+	 */
+	private interface StripSink {
+		void accept(int y, BufferedImage strip) throws IOException;
+	}
+
+	/**
+	 * @param engine    runs the filters on each strip
+	 * @param stripRows output rows per strip
+	 */
+	public StreamingProcessor(FilterEngine engine, int stripRows) {
+		if (stripRows < 1)
+			throw new IllegalArgumentException("stripRows must be positive: " + stripRows);
+		this.engine = engine;
+		this.stripRows = stripRows;
+	}
+
+	private static List<Stage> parse(String filters) {
+		List<Stage> stages = new ArrayList<Stage>();
+		for (String name : filters.split(",")) {
+			name = name.trim().toLowerCase(Locale.ROOT);
+			switch (name) {
+			case "":
+				break;
+			case "grayscale":
+			case "luminance":
+				stages.add(new Stage(name, 0, false));
+				break;
+			case "equalize":
+				stages.add(new Stage(name, 0, true));
+				break;
+			case "sobel":
+				stages.add(new Stage(name, 1, true));
+				break;
+			default:
+				throw new IllegalArgumentException("filter cannot be streamed: " + name);
+			}
+		}
+		return stages;
+	}
+
+	/**
+	 * Filters input into output.
+	 *
+	 * @param input       the source image file
+	 * @param output      the file to write, its suffix selects the format
+	 * @param filters     comma separated filter names, see the class comment
+	 * @param subsampling keep every n-th row and column of the source, 1 keeps all
+	 * @throws IOException if the source cannot be read or the output format cannot be
+	 *                     written incrementally
+	 */
+	public void process(File input, File output, String filters, int subsampling) throws IOException {
+		if (subsampling < 1)
+			throw new IllegalArgumentException("subsampling must be positive: " + subsampling);
+		List<Stage> stages = parse(filters);
+		String name = output.getName();
+		String format = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+		try (ImageInputStream iis = ImageIO.createImageInputStream(input)) {
+			if (iis == null)
+				throw new IOException("cannot open " + input);
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+			if (!readers.hasNext())
+				throw new IOException("no reader for " + input);
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(iis, false, true);
+				int width = (reader.getWidth(0) + subsampling - 1) / subsampling;
+				int height = (reader.getHeight(0) + subsampling - 1) / subsampling;
+				Source source = source(input, reader, subsampling, width);
+				for (int i = 0; i < stages.size(); i++) {
+					if (stages.get(i).needsLut)
+						stages.get(i).lut = equalizationLut(source, stages, i, width, height);
+				}
+				if (format.equals("png")) {
+					writePng(source, stages, output, width, height);
+				} else {
+					writeIncrementally(source, stages, format, output, width, height);
+				}
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Streams the source through the stages before stage i and builds the
+	 * equalization lut from the histogram of the result.
+	 */
+	private int[] equalizationLut(Source source, List<Stage> stages, int i, int width, int height)
+			throws IOException {
+		// a whole panorama can hold more than 2^31 pixels, in total and per level
+		long[] histogram = new long[256];
+		pass(source, stages, i, width, height, (y, strip) -> {
+			int[] h = engine.histogram(strip);
+			for (int k = 0; k < 256; k++)
+				histogram[k] += h[k];
+		});
+		return engine.equalizationLut(histogram, (long) width * height);
+	}
+
+	private void writePng(Source source, List<Stage> stages, File output, int width, int height)
+			throws IOException {
+		boolean written = false;
+		try {
+			try (PngStripWriter png = new PngStripWriter(output, width, height)) {
+				pass(source, stages, stages.size(), width, height, (y, strip) -> png.write(strip));
+			}
+			written = true;
+		} finally {
+			if (!written)
+				output.delete();
+		}
+	}
+
+	private void writeIncrementally(Source source, List<Stage> stages, String format, File output,
+			int width, int height) throws IOException {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+		if (!writers.hasNext())
+			throw new IOException("no writer for " + format);
+		ImageWriter writer = writers.next();
+		output.delete();
+		boolean written = false;
+		try {
+			try (ImageOutputStream ios = ImageIO.createImageOutputStream(output)) {
+				writer.setOutput(ios);
+				if (!writer.canWriteEmpty())
+					throw new IOException(format + " cannot be written incrementally, use png or tiff");
+				ImageWriteParam param = writer.getDefaultWriteParam();
+				boolean[] started = new boolean[1];
+				pass(source, stages, stages.size(), width, height, (y, strip) -> {
+					if (!started[0]) {
+						writer.prepareWriteEmpty(null, ImageTypeSpecifier.createFromRenderedImage(strip),
+								width, height, null, null, param);
+						if (!writer.canReplacePixels(0))
+							throw new IOException(format + " cannot be written incrementally, use png or tiff");
+						writer.prepareReplacePixels(0, new Rectangle(0, 0, width, height));
+						started[0] = true;
+					}
+					ImageWriteParam region = writer.getDefaultWriteParam();
+					region.setDestinationOffset(new Point(0, y));
+					writer.replacePixels(strip.getRaster(), region);
+				});
+				writer.endReplacePixels();
+				writer.endWriteEmpty();
+			}
+			written = true;
+		} finally {
+			writer.dispose();
+			if (!written)
+				output.delete();
+		}
+	}
+
+	/**
+	 * Reads the source strip by strip, runs the first count stages on each strip and
+	 * hands the rows that belong to the strip, without halo, to sink.
+	 */
+	private void pass(Source source, List<Stage> stages, int count, int width, int height, StripSink sink)
+			throws IOException {
+		int halo = 0;
+		for (int i = 0; i < count; i++)
+			halo += stages.get(i).halo;
+		try (Strips strips = source.open()) {
+			for (int y0 = 0; y0 < height; y0 += stripRows) {
+				int y1 = Math.min(height, y0 + stripRows);
+				int r0 = Math.max(0, y0 - halo);
+				int r1 = Math.min(height, y1 + halo);
+				BufferedImage strip = strips.read(r0, r1);
+				for (int i = 0; i < count; i++)
+					strip = apply(stages.get(i), strip);
+				sink.accept(y0, strip.getSubimage(0, y0 - r0, width, y1 - y0));
+			}
+		}
+	}
+
+	/**
+	 * How the passes read the source. The JDK PNG and JPEG readers decode from the
+	 * start of the file for every source region, which would make a pass cost
+	 * height^2 / stripRows rows, so PNG is read row by row with a
+	 * {@link PngStripReader} and only TIFF, whose strips and tiles are found
+	 * through its directory, is read by region. Other formats are rejected.
+	 */
+	private static Source source(File input, ImageReader reader, int subsampling, int width) throws IOException {
+		String format = reader.getFormatName().toLowerCase(Locale.ROOT);
+		if (format.equals("png"))
+			return () -> new PngStrips(new PngStripReader(input), subsampling, width);
+		if (format.startsWith("tif")) {
+			int sourceWidth = reader.getWidth(0);
+			int sourceHeight = reader.getHeight(0);
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+			return () -> new Strips() {
+				@Override
+				public BufferedImage read(int r0, int r1) throws IOException {
+					int sy0 = r0 * subsampling;
+					int sy1 = Math.min(sourceHeight, r1 * subsampling);
+					param.setSourceRegion(new Rectangle(0, sy0, sourceWidth, sy1 - sy0));
+					return reader.read(0, param);
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+		}
+		throw new IOException(format + " cannot be read strip by strip without decoding it again for every strip,"
+				+ " convert it to png or tiff");
+	}
+
+	/**
+	 * Opens the source for one pass.
+	 */
+	private interface Source {
+		Strips open() throws IOException;
+	}
+
+	/**
+	 * The rows of the subsampled source for one pass, asked for from the top
+	 * down. Consecutive strips may overlap by their halo rows, but r0 never goes
+	 * back further than that.
+	 */
+	private interface Strips extends Closeable {
+		BufferedImage read(int r0, int r1) throws IOException;
+	}
+
+	/**
+	 * Strips of a PNG read row by row. The rows of the last strip are kept, so
+	 * the halo rows the next strip shares with it need not be read again.
+	 */
+	private static final class PngStrips implements Strips {
+		private final PngStripReader png;
+		private final int subsampling;
+		private final int width;
+		private final int type;
+		private final int[] source;
+		private final List<int[]> kept = new ArrayList<int[]>();
+		private int keptFrom; // the row of kept.get(0)
+		private int sourceRow; // the next row the reader returns
+
+		PngStrips(PngStripReader png, int subsampling, int width) {
+			this.png = png;
+			this.subsampling = subsampling;
+			this.width = width;
+			this.type = png.isGray() ? BufferedImage.TYPE_BYTE_GRAY
+					: png.hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+			this.source = new int[png.getWidth()];
+		}
+
+		@Override
+		public BufferedImage read(int r0, int r1) throws IOException {
+			if (r0 < keptFrom)
+				throw new IllegalStateException("row " + r0 + " was dropped already");
+			while (keptFrom < r0 && !kept.isEmpty()) {
+				kept.remove(0);
+				keptFrom++;
+			}
+			if (kept.isEmpty())
+				keptFrom = r0;
+			while (keptFrom + kept.size() < r1)
+				kept.add(next(keptFrom + kept.size()));
+			BufferedImage strip = new BufferedImage(width, r1 - r0, type);
+			PixelAccess pixels = PixelAccess.of(strip);
+			for (int y = r0; y < r1; y++) {
+				if (type == BufferedImage.TYPE_BYTE_GRAY)
+					pixels.setGrayPixels(0, y - r0, width, kept.get(y - keptFrom), 0);
+				else
+					pixels.setPixels(0, y - r0, width, kept.get(y - keptFrom), 0);
+			}
+			return strip;
+		}
+
+		/**
+		 * Reads up to source row row * subsampling and keeps every subsampling-th
+		 * pixel of it, as gray levels for gray images.
+		 */
+		private int[] next(int row) throws IOException {
+			while (sourceRow < row * subsampling) {
+				png.readRow(source);
+				sourceRow++;
+			}
+			png.readRow(source);
+			sourceRow++;
+			int[] out = new int[width];
+			for (int x = 0; x < width; x++) {
+				int argb = source[x * subsampling];
+				out[x] = type == BufferedImage.TYPE_BYTE_GRAY ? argb & 0xFF : argb;
+			}
+			return out;
+		}
+
+		@Override
+		public void close() throws IOException {
+			png.close();
+		}
+	}
+
+	private BufferedImage apply(Stage stage, BufferedImage strip) {
+		switch (stage.name) {
+		case "grayscale":
+			return engine.grayscale(strip);
+		case "luminance":
+			return engine.grayscaleLuminance(strip);
+		case "equalize":
+			return engine.equalize(strip, stage.lut);
+		default:
+			return engine.sobel(strip, stage.lut);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		String filters = "luminance,equalize,sobel";
+		int stripRows = 256;
+		int subsampling = 1;
+		List<String> files = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-f":
+				filters = args[++i];
+				break;
+			case "-r":
+				stripRows = Integer.parseInt(args[++i]);
+				break;
+			case "-s":
+				subsampling = Integer.parseInt(args[++i]);
+				break;
+			default:
+				files.add(args[i]);
+			}
+		}
+		if (files.size() != 2) {
+			System.err.println("usage: StreamingProcessor [-f filters] [-r stripRows] [-s subsampling] input output");
+			System.exit(2);
+		}
+		new StreamingProcessor(new FilterEngine(), stripRows)
+				.process(new File(files.get(0)), new File(files.get(1)), filters, subsampling);
+	}
+}
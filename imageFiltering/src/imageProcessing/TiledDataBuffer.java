@@ -0,0 +1,111 @@
+package imageProcessing;
+
+import java.awt.image.DataBuffer;
+
+/**
+ * A DataBuffer of packed ARGB ints split into square tiles, each its own array.
+ * Tiles may be shared with other buffers, so a tile is copied the first time it
+ * is written, see {@link ImageHistory}.
+ */
+final class TiledDataBuffer extends DataBuffer {
+	static final int TILE = 128;
+
+	private final int width;
+	private final int columns;
+	private final int[][] tiles;
+	private final boolean[] owned;
+
+	/**
+	 * @param width  the image width
+	 * @param height the image height
+	 * @param tiles  the tiles row by row, each TILE wide and high except at the
+	 *               right and bottom edges; the tiles themselves are shared and
+	 *               never written to
+	 */
+	TiledDataBuffer(int width, int height, int[][] tiles) {
+		super(TYPE_INT, width * height);
+		this.width = width;
+		this.columns = columns(width);
+		this.tiles = tiles.clone();
+		this.owned = new boolean[tiles.length];
+	}
+
+	static int columns(int width) {
+		return (width + TILE - 1) / TILE;
+	}
+
+	/**
+	 * The width of the tiles in tile column c of an image of the given width.
+	 */
+	static int tileWidth(int c, int width) {
+		return Math.min(TILE, width - c * TILE);
+	}
+
+	@Override
+	public int getElem(int bank, int i) {
+		int x = i % width;
+		int y = i / width;
+		return tiles[y / TILE * columns + x / TILE][y % TILE * tileWidth(x / TILE, width) + x % TILE];
+	}
+
+	@Override
+	public void setElem(int bank, int i, int val) {
+		int x = i % width;
+		int y = i / width;
+		writable(y / TILE * columns + x / TILE)[y % TILE * tileWidth(x / TILE, width) + x % TILE] = val;
+	}
+
+	/**
+	 * Copies n pixels of row y from column x on into dst.
+	 */
+	void getPixels(int x, int y, int n, int[] dst, int off) {
+		int row = y / TILE * columns;
+		int ty = y % TILE;
+		while (n > 0) {
+			int c = x / TILE;
+			int tw = tileWidth(c, width);
+			int k = Math.min(n, tw - x % TILE);
+			System.arraycopy(tiles[row + c], ty * tw + x % TILE, dst, off, k);
+			x += k;
+			off += k;
+			n -= k;
+		}
+	}
+
+	/**
+	 * Copies n pixels from src into row y from column x on.
+	 */
+	void setPixels(int x, int y, int n, int[] src, int off) {
+		int row = y / TILE * columns;
+		int ty = y % TILE;
+		while (n > 0) {
+			int c = x / TILE;
+			int tw = tileWidth(c, width);
+			int k = Math.min(n, tw - x % TILE);
+			System.arraycopy(src, off, writable(row + c), ty * tw + x % TILE, k);
+			x += k;
+			off += k;
+			n -= k;
+		}
+	}
+
+	/**
+	 * Tile t, copied first unless this buffer already made it its own.
+	 */
+	private int[] writable(int t) {
+		if (!owned[t]) {
+			tiles[t] = tiles[t].clone();
+			owned[t] = true;
+		}
+		return tiles[t];
+	}
+
+	/**
+	 * Hands out the current tiles for sharing. Writes after this copy the tiles
+	 * again, so the returned arrays never change.
+	 */
+	synchronized int[][] share() {
+		java.util.Arrays.fill(owned, false);
+		return tiles.clone();
+	}
+}
@@ -0,0 +1,147 @@
+package imageProcessing;
+
+import java.util.Arrays;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD implementation of {@link PixelKernels} on the incubating Vector API. Only
+ * loaded when jdk.incubator.vector is in the boot layer. Every loop finishes its
+ * tail with the scalar code, and the gradient length is computed in double lanes
+ * with the same operations as the scalar code, so results are bit-exact.
+ */
+final class VectorKernels extends PixelKernels {
+	private static final VectorSpecies<Integer> INT = IntVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Double> DOUBLE = DoubleVector.SPECIES_PREFERRED;
+	/** Int lanes matching the lane count of DOUBLE, used to convert to and from double. */
+	private static final VectorSpecies<Integer> INT_HALF = VectorSpecies.of(int.class,
+			VectorShape.forBitSize(DOUBLE.vectorBitSize() / 2));
+
+	@Override
+	public String getName() {
+		return "vector " + INT.vectorBitSize() + " bit";
+	}
+
+	@Override
+	public void luma(LumaWeights weights, int[] argb, int off, int[] dst, int dstOff, int n) {
+		int i = 0;
+		int bound = INT.loopBound(n);
+		for (; i < bound; i += INT.length()) {
+			IntVector p = IntVector.fromArray(INT, argb, off + i);
+			IntVector r = p.lanewise(VectorOperators.LSHR, 16).and(0xFF);
+			IntVector g = p.lanewise(VectorOperators.LSHR, 8).and(0xFF);
+			IntVector b = p.and(0xFF);
+			r.mul(weights.r).add(g.mul(weights.g)).add(b.mul(weights.b)).add(LumaWeights.ROUND)
+					.lanewise(VectorOperators.ASHR, LumaWeights.SHIFT)
+					.intoArray(dst, dstOff + i);
+		}
+		for (; i < n; i++)
+			dst[dstOff + i] = weights.luma(argb[off + i]);
+	}
+
+	@Override
+	public void lookup(int[] src, int off, int[] lut, int[] dst, int dstOff, int n) {
+		int i = 0;
+		int bound = INT.loopBound(n);
+		for (; i < bound; i += INT.length())
+			IntVector.fromArray(INT, lut, 0, src, off + i).intoArray(dst, dstOff + i);
+		for (; i < n; i++)
+			dst[dstOff + i] = lut[src[off + i]];
+	}
+
+	@Override
+	public void convolveRow(int[] src, int off, int[] taps, int[] dst, int dstOff, int n) {
+		if (taps.length == 3) {
+			convolve3(src, off, src, off + 1, src, off + 2, taps, dst, dstOff, n);
+			return;
+		}
+		// one sweep per tap keeps every vector inside a simple counted loop
+		boolean first = true;
+		for (int k = 0; k < taps.length; k++) {
+			int t = taps[k];
+			if (t == 0)
+				continue;
+			int i = 0;
+			int bound = INT.loopBound(n);
+			for (; i < bound; i += INT.length()) {
+				IntVector v = IntVector.fromArray(INT, src, off + i + k).mul(t);
+				if (!first)
+					v = v.add(IntVector.fromArray(INT, dst, dstOff + i));
+				v.intoArray(dst, dstOff + i);
+			}
+			for (; i < n; i++)
+				dst[dstOff + i] = (first ? 0 : dst[dstOff + i]) + t * src[off + i + k];
+			first = false;
+		}
+		if (first)
+			Arrays.fill(dst, dstOff, dstOff + n, 0);
+	}
+
+	@Override
+	public void convolveColumn(int[][] rows, int[] taps, int[] dst, int off, int n) {
+		if (taps.length == 3) {
+			convolve3(rows[0], off, rows[1], off, rows[2], off, taps, dst, off, n);
+			return;
+		}
+		boolean first = true;
+		for (int k = 0; k < taps.length; k++) {
+			int t = taps[k];
+			if (t == 0)
+				continue;
+			int[] row = rows[k];
+			int i = off;
+			int bound = off + INT.loopBound(n);
+			for (; i < bound; i += INT.length()) {
+				IntVector v = IntVector.fromArray(INT, row, i).mul(t);
+				if (!first)
+					v = v.add(IntVector.fromArray(INT, dst, i));
+				v.intoArray(dst, i);
+			}
+			for (; i < off + n; i++)
+				dst[i] = (first ? 0 : dst[i]) + t * row[i];
+			first = false;
+		}
+		if (first)
+			Arrays.fill(dst, off, off + n, 0);
+	}
+
+	/**
+	 * dst[dstOff + i] = t0 * a[ao + i] + t1 * b[bo + i] + t2 * c[co + i] in a single
+	 * sweep, the common case of 3x3 kernels.
+	 */
+	private static void convolve3(int[] a, int ao, int[] b, int bo, int[] c, int co, int[] taps, int[] dst,
+			int dstOff, int n) {
+		int t0 = taps[0], t1 = taps[1], t2 = taps[2];
+		int i = 0;
+		int bound = INT.loopBound(n);
+		for (; i < bound; i += INT.length()) {
+			IntVector.fromArray(INT, a, ao + i).mul(t0)
+					.add(IntVector.fromArray(INT, b, bo + i).mul(t1))
+					.add(IntVector.fromArray(INT, c, co + i).mul(t2))
+					.intoArray(dst, dstOff + i);
+		}
+		for (; i < n; i++)
+			dst[dstOff + i] = t0 * a[ao + i] + t1 * b[bo + i] + t2 * c[co + i];
+	}
+
+	@Override
+	public void magnitude(int[] ix, int[] iy, int[] dst, int off, int n) {
+		int step = INT_HALF.length();
+		int i = off;
+		int bound = off + n - step;
+		for (; i <= bound; i += step) {
+			IntVector x = IntVector.fromArray(INT_HALF, ix, i);
+			IntVector y = IntVector.fromArray(INT_HALF, iy, i);
+			IntVector squared = x.mul(x).add(y.mul(y));
+			DoubleVector length = (DoubleVector) squared.convertShape(VectorOperators.I2D, DOUBLE, 0);
+			length = length.lanewise(VectorOperators.SQRT).div(1443).mul(255);
+			((IntVector) length.convertShape(VectorOperators.D2I, INT_HALF, 0)).intoArray(dst, i);
+		}
+		for (; i < off + n; i++)
+			dst[i] = ScalarKernels.magnitude(ix[i] * ix[i] + iy[i] * iy[i]);
+	}
+}
@@ -1,3 +1,8 @@
 module tompkinsQ2 {
 	requires java.desktop;
+	requires java.management;
+	requires jdk.management;
+	requires jdk.jfr;
+	requires static jdk.incubator.vector;
+	exports imageProcessing;
 }
\ No newline at end of file